@@ -8,10 +8,19 @@ import java.util.Map;
 import org.apache.log4j.Logger;
 import org.hitchhackers.tools.jmx.commands.Browse;
 import org.hitchhackers.tools.jmx.commands.CommandBase;
+import org.hitchhackers.tools.jmx.commands.DiffSnapshots;
+import org.hitchhackers.tools.jmx.commands.GetGCEvents;
+import org.hitchhackers.tools.jmx.commands.GetMemoryAlarms;
+import org.hitchhackers.tools.jmx.commands.GetThreadAllocation;
 import org.hitchhackers.tools.jmx.commands.GetThreadInfo;
 import org.hitchhackers.tools.jmx.commands.InvokeOperation;
 import org.hitchhackers.tools.jmx.commands.ModifyAttribute;
+import org.hitchhackers.tools.jmx.commands.ProfileThreads;
 import org.hitchhackers.tools.jmx.commands.ReadAttributes;
+import org.hitchhackers.tools.jmx.commands.ReadHistory;
+import org.hitchhackers.tools.jmx.commands.SearchMBeans;
+import org.hitchhackers.tools.jmx.commands.Subscribe;
+import org.hitchhackers.tools.jmx.commands.TakeSnapshot;
 import org.hitchhackers.tools.jmx.connection.JMXConnectionFactory;
 import org.hitchhackers.tools.jmx.connection.JMXConnectionFactoryPrimitive;
 
@@ -34,9 +43,18 @@ public class CommandProcessor {
 	static {
 		// TODO this should be springified
  		commandsByName.put("browse", Browse.class);
+		commandsByName.put("gc_events", GetGCEvents.class);
 		commandsByName.put("get_attribute", ReadAttributes.class);
+		commandsByName.put("history", ReadHistory.class);
 		commandsByName.put("invoke", InvokeOperation.class);
+		commandsByName.put("memory_alarms", GetMemoryAlarms.class);
+		commandsByName.put("profile", ProfileThreads.class);
+		commandsByName.put("search", SearchMBeans.class);
 		commandsByName.put("set_attribute", ModifyAttribute.class);
+		commandsByName.put("snapshot", TakeSnapshot.class);
+		commandsByName.put("snapshot_diff", DiffSnapshots.class);
+		commandsByName.put("subscribe", Subscribe.class);
+		commandsByName.put("thread_alloc", GetThreadAllocation.class);
 		commandsByName.put("thread_info", GetThreadInfo.class);
 		
 		LOGGER.debug("command initialization complete - known commands are:");
@@ -1,6 +1,7 @@
 package com.jabubo.jmx;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.regex.Pattern;
 
 import org.apache.log4j.Appender;
@@ -26,7 +27,7 @@ public class JMXConsoleTool {
 		client.run(args);
 	}
 	
-	private void initLog4J(String[] args) {
+	public void initLog4J(String[] args) {
 		Level desiredLevel = Level.INFO;
 		
 		// find out if we're running in debug mode
@@ -41,36 +42,44 @@ public class JMXConsoleTool {
 		}
 		
 		// configure log4j 
-		// TODO think about this again - output to STDOUT could conflict with scripts expecting JSON output
-		Appender consoleAppender = new ConsoleAppender();
-		consoleAppender.setLayout(new PatternLayout("%-5p %m%n"));
+		// log to STDERR - log lines in STDOUT would corrupt JSON and binary output
+		Appender consoleAppender = new ConsoleAppender(new PatternLayout("%-5p %m%n"), ConsoleAppender.SYSTEM_ERR);
 		
 		Logger.getRootLogger().addAppender(consoleAppender);
 		Logger.getRootLogger().setLevel(desiredLevel);
 	}	
 	
-	private void printGlobalUsage() {
-		System.out.println();
-		System.out.println(CommandBase.USAGE_TITLE);
-		System.out.println();
-		System.out.println("Please pass the name of the command to run as first parameter - known commands are:");
+	private void printGlobalUsage(PrintStream out) {
+		out.println();
+		out.println(CommandBase.USAGE_TITLE);
+		out.println();
+		out.println("Please pass the name of the command to run as first parameter - known commands are:");
 		String[] commandNames = CommandProcessor.getCommandNames();
 		for (String commandName : commandNames) {
-			System.out.println("  " + commandName);
+			out.println("  " + commandName);
 		}
-		System.out.println();
-		System.out.println("If you call a command without any parameters like this");
-		System.out.println("  ./jmx_console.sh browse");
-		System.out.println("you'll get a detailed help screen about this command.");
-		System.exit(1);
+		out.println();
+		out.println("If you call a command without any parameters like this");
+		out.println("  ./jmx_console.sh browse");
+		out.println("you'll get a detailed help screen about this command.");
 	}	
 	
 	public void run(String[] args) {
 		
 		initLog4J(args);
 		
+		System.exit(execute(args, System.out, System.err));
+	}
+	
+	/**
+	 * executes the command line and writes all output to the passed streams
+	 * 
+	 * @return the exit code for the command line
+	 */
+	public int execute(String[] args, PrintStream out, PrintStream err) {
 		if (args.length < 1) {
-			printGlobalUsage();
+			printGlobalUsage(out);
+			return 1;
 		}
 		
 		// read the command name and remove it from the parameter list
@@ -83,31 +92,36 @@ public class JMXConsoleTool {
 		CommandProcessor commandProcessor = null;
 		try {
 			commandProcessor = new CommandProcessor(commandName);
+			commandProcessor.getCommand().setOut(out);
 			commandProcessor.init(newArgs);
 			String result = commandProcessor.execute();
-			System.out.println(result);
-			System.exit(0);
+			// streamed and binary output has been written already (and an empty result is returned),
+			// a line break would add an empty line or corrupt the binary output
+			if (result != null && result.length() > 0) {
+				out.println(result);
+			}
+			return 0;
 		} catch (HelpRequiredException e) {
 			commandProcessor.getCommand().printUsage();
-			System.exit(0);
+			return 0;
 		} catch (IllegalArgumentException e) {
-			System.err.println("[ERROR] : " + e.getMessage());
+			err.println("[ERROR] : " + e.getMessage());
 		
 			if ((commandProcessor != null) && (commandProcessor.getCommand() != null)) {
 				commandProcessor.getCommand().printUsage();
 			} else {
-				printGlobalUsage();
+				printGlobalUsage(out);
 			}
 			// TODO write a test for exit values
-			System.exit(1);
+			return 1;
 		} catch (IOException e) {
-			System.err.println("Could not establish connection to VM via JMX : ");
-			e.printStackTrace(System.err);
-			System.exit(2);
+			err.println("Could not establish connection to VM via JMX : ");
+			e.printStackTrace(err);
+			return 2;
 		} catch (Throwable t) {
-			System.err.println("There occurred a very unexpected error:");
-			t.printStackTrace();
-			System.exit(3);
+			err.println("There occurred a very unexpected error:");
+			t.printStackTrace(err);
+			return 3;
 		}
 	}
 
@@ -0,0 +1,13 @@
+package com.jabubo.jmx.commands;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * formatter whose output can't be passed around as string; commands write it with {@link CommandBase#print(OutputFormatter)}
+ */
+public interface BinaryOutputFormatter extends OutputFormatter {
+
+	void writeTo(OutputStream out) throws IOException;
+	
+}
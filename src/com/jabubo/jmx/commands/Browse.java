@@ -1,22 +1,26 @@
 package com.jabubo.jmx.commands;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.AbstractList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.regex.Pattern;
 
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanInfo;
 import javax.management.MBeanOperationInfo;
 import javax.management.MBeanParameterInfo;
-import javax.management.ObjectInstance;
+import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
+import javax.management.QueryExp;
 
-import net.sf.json.JSONObject;
-
+import org.apache.log4j.Logger;
+import org.hitchhackers.tools.jmx.connection.MBeanCatalog;
+import org.hitchhackers.tools.jmx.util.JsonWriter;
+import org.hitchhackers.tools.jmx.util.QueryExpParser;
 import org.hitchhackers.tools.jmx.util.parser.Param;
 import org.hitchhackers.tools.jmx.util.parser.ParameterParser;
 import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
@@ -29,8 +33,16 @@ import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
  */
 public class Browse extends CommandBase {
 
+	private static final Logger LOGGER = Logger.getLogger(Browse.class);
+
 	private String objectNameToQuery = "";
 	
+	// restricts the listed MBeans (both are evaluated by the target) and the page of MBeans to print
+	private ObjectName pattern = null;
+	private QueryExp query = null;
+	private int offset = 0;
+	private int limit = 0;
+	
 	public Browse() {
 		super();
 		addFormatter(CommandBase.OutputType.TEXT, TextFormatter.class);
@@ -43,8 +55,15 @@ public class Browse extends CommandBase {
 				"If <i>object</i> is specified, the attributes and operations of the specified " +
 				"MBean object are displayed (you can find this value if you connect to the target VM with the JConsole " +
 				"and take a look at the <i>MBean Name</i> displayed on the <i>Info</i> tab).<br/><br/>" +
+				"Otherwise the names of all MBeans are listed, sorted by their canonical name. The list can be restricted " +
+				"with an object name <i>pattern</i> and <i>query</i> conditions on attribute values (operators =, !=, <, <=, " +
+				">, >= and ~ for wildcard matches; multiple conditions must all match). Both are evaluated by the target VM, " +
+				"so only the matching names are transferred (a daemon that already mirrors the names of the target matches " +
+				"patterns locally). Large lists can be paged with <i>offset</i> and <i>limit</i>.<br/><br/>" +
 				"Examples:<br/>" +
-				"browse [...] object=java.lang:type=Memory";
+				"browse [...] object=java.lang:type=Memory<br/>" +
+				"browse [...] pattern=java.lang:type=GarbageCollector,*<br/>" +
+				"browse [...] pattern=kafka.log:type=Log,* query=Size>1000000 offset=100 limit=50";
 	}
 
 	@Override
@@ -55,6 +74,27 @@ public class Browse extends CommandBase {
 				setShortName("o").
 				setMightBeUnnamed(true)
 		);
+		parser.addParam(
+			new Param("pattern").
+				setDescription("object name pattern the listed MBeans have to match (e.g. kafka.log:type=Log,*)").
+				setShortName("p")
+		);
+		parser.addParam(
+			new Param("query").
+				setDescription("condition on an attribute the listed MBeans have to fulfill (e.g. Size>1000)").
+				setShortName("q").
+				setMultiParam(true)
+		);
+		parser.addParam(
+			new Param("offset").
+				setDescription("number of MBeans to skip (defaults to 0)").
+				setValidationPattern(Pattern.compile("\\d+"))
+		);
+		parser.addParam(
+			new Param("limit").
+				setDescription("maximum number of MBeans to list (defaults to all)").
+				setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
 	}
 
 	@Override
@@ -62,6 +102,22 @@ public class Browse extends CommandBase {
 		if (commandLine.hasOption("object")) {
 			objectNameToQuery = commandLine.getOptionValue("object");
 		}
+		if (commandLine.hasOption("pattern")) {
+			try {
+				pattern = ObjectName.getInstance(commandLine.getOptionValue("pattern"));
+			} catch (MalformedObjectNameException e) {
+				throw new IllegalArgumentException("invalid object name pattern '" + commandLine.getOptionValue("pattern") + "' : " + e.getMessage());
+			}
+		}
+		if (commandLine.hasOption("query")) {
+			query = QueryExpParser.parse(commandLine.getOptionValues("query"));
+		}
+		if (commandLine.hasOption("offset")) {
+			offset = Integer.parseInt(commandLine.getOptionValue("offset"));
+		}
+		if (commandLine.hasOption("limit")) {
+			limit = Integer.parseInt(commandLine.getOptionValue("limit"));
+		}
 	}	
 	
 	@Override
@@ -70,10 +126,12 @@ public class Browse extends CommandBase {
 		
 		ObjectName objectName = null;
 		if (objectNameToQuery != "") {
-			System.out.println("displaying information about " + objectNameToQuery);
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("displaying information about " + objectNameToQuery);
+			}
 			objectName = ObjectName.getInstance(objectNameToQuery);
 				
-			MBeanInfo beanInfo = getConnection().getMBeanInfo(objectName);
+			MBeanInfo beanInfo = getMBeanInfo(objectName, false);
 			
 			// get attributes
 			MBeanAttributeInfo[] attributes = beanInfo.getAttributes();
@@ -100,78 +158,154 @@ public class Browse extends CommandBase {
 				formatter.addOperation(beanOperationInfo);
 			}
 		} else {
-			Set<ObjectInstance> beans = getConnection().queryMBeans(null, null);
-			TreeSet<ObjectInstance> treeSet = new TreeSet<ObjectInstance>(new Comparator<ObjectInstance>() {
-
-				public int compare(ObjectInstance o1, ObjectInstance o2) {
-					return o1.getObjectName().getCanonicalName().compareTo(o2.getObjectName().getCanonicalName());
-				}
-			});
-			treeSet.addAll(beans);
-			for (ObjectInstance objectInstance : treeSet) {
-				formatter.addObject(objectInstance);
-			}			
+			List<ObjectName> sortedNames;
+			// a long-lived connection (daemon) may mirror the names already - but a catalog isn't worth
+			// creating for a single listing, which would transfer all names instead of the matching ones
+			MBeanCatalog catalog = (query == null) ? MBeanCatalog.getExistingCatalog(getConnection()) : null;
+			if (catalog != null) {
+				sortedNames = new CatalogNameList(catalog.query(pattern));
+			} else {
+				// names only - the class names of queryMBeans() are not printed anyway
+				Set<ObjectName> names = getConnection().queryNames(pattern, query);
+				ObjectName[] nameArray = names.toArray(new ObjectName[names.size()]);
+				Arrays.sort(nameArray, new Comparator<ObjectName>() {
+					public int compare(ObjectName o1, ObjectName o2) {
+						return o1.getCanonicalName().compareTo(o2.getCanonicalName());
+					}
+				});
+				sortedNames = Arrays.asList(nameArray);
+			}
+			
+			// stream the page instead of building up the whole output
+			int end = (limit > 0) ? (int) Math.min((long) offset + limit, sortedNames.size()) : sortedNames.size();
+			formatter.startObjects(getOut(), sortedNames.size());
+			for (int i = offset; i < end; i++) {
+				formatter.addObject(sortedNames.get(i));
+			}
+			formatter.endObjects();
+			if (getOut().checkError()) {
+				throw new IOException("could not write the list of MBeans - the output has been closed");
+			}
 		}
 				
 		return formatter.asString();
 	}	
 
+	/**
+	 * names of catalog entries - the ObjectNames are only created for the page that is printed
+	 */
+	static class CatalogNameList extends AbstractList<ObjectName> {
+		
+		private final List<MBeanCatalog.Entry> entries;
+
+		CatalogNameList(List<MBeanCatalog.Entry> entries) {
+			this.entries = entries;
+		}
+
+		@Override
+		public ObjectName get(int index) {
+			return entries.get(index).getObjectName();
+		}
+
+		@Override
+		public int size() {
+			return entries.size();
+		}
+		
+	}
+	
+	/**
+	 * the list of MBeans is streamed to the given output, attributes and operations are returned by asString()
+	 */
 	interface Formatter extends OutputFormatter {
-		void addObject(ObjectInstance objectInstance);
+		void startObjects(PrintStream out, int total);
+		void addObject(ObjectName objectName);
+		void endObjects();
 		void addOperation(MBeanOperationInfo operationInfo);
 		void addAttribute(MBeanAttributeInfo attributeInfo);
 	}
 	
-	@SuppressWarnings(value="unchecked")
+	/**
+	 * writes objects, attributes and operations (in this order) as they are added
+	 */
 	static class JsonFormatter implements Formatter {
+		
+		private static final String[] SECTIONS = { "objects", "attributes", "operations" };
 
-		final ArrayList<Map> objects = new ArrayList<Map>();
-		final ArrayList<Map> attributes = new ArrayList<Map>();
-		final ArrayList<Map> operations = new ArrayList<Map>();
+		private final StringBuilder sb = new StringBuilder();
+		private JsonWriter json = new JsonWriter(sb);
+		private PrintStream out = null;
 		
-		public void addAttribute(MBeanAttributeInfo attributeInfo) {
-			Map<String,String> map = new HashMap<String, String>();
-			map.put("name", attributeInfo.getName());
-			attributes.add(map);
+		// index of the section whose array is currently open (-1 = none yet)
+		private int section = -1;
+		
+		private void startSection(int newSection) {
+			if (section < 0) {
+				json.beginObject();
+			}
+			while (section < newSection) {
+				if (section >= 0) {
+					json.endArray();
+				}
+				section++;
+				json.name(SECTIONS[section]).beginArray();
+			}
+		}
+		
+		private void finish() {
+			startSection(SECTIONS.length - 1);
+			json.endArray();
+			json.endObject();
+		}
+		
+		public void startObjects(PrintStream out, int total) {
+			// the list of objects may be large, so it goes to the output right away
+			this.out = out;
+			json = new JsonWriter(out);
+			json.beginObject();
+			json.name("total").value(total);
+			section = 0;
+			json.name(SECTIONS[section]).beginArray();
 		}
 
-		public void addObject(ObjectInstance objectInstance) {
-			Map<String, String> objectMap = new HashMap<String, String>();
-			objectMap.put("name", objectInstance.getObjectName().toString());
-			objects.add(objectMap);
+		public void addObject(ObjectName objectName) {
+			startSection(0);
+			json.beginObject().name("name").value(objectName.toString()).endObject();
 		}
 
-		@SuppressWarnings(value="unchecked")
-		public void addOperation(MBeanOperationInfo operationInfo) {
-			Map operationMap = new HashMap();
-			
-			operationMap.put("name", operationInfo.getName());
-			
-			String returnType = operationInfo.getReturnType();
-			operationMap.put("return_type", returnType);
+		public void endObjects() {
+			finish();
+			out.println();
+		}
 
-			ArrayList<Map<String, String>> params = new ArrayList<Map<String,String>>();
-			MBeanParameterInfo[] signature = operationInfo.getSignature();
-			for (MBeanParameterInfo beanParameterInfo : signature) {
-				final Map<String, String> param = new HashMap<String, String>();
-				param.put("name", beanParameterInfo.getName());
-				param.put("type", beanParameterInfo.getType());
-				params.add(param);			
+		public void addAttribute(MBeanAttributeInfo attributeInfo) {
+			startSection(1);
+			json.beginObject().name("name").value(attributeInfo.getName()).endObject();
+		}
+
+		public void addOperation(MBeanOperationInfo operationInfo) {
+			startSection(2);
+			json.beginObject();
+			json.name("name").value(operationInfo.getName());
+			json.name("return_type").value(operationInfo.getReturnType());
+			json.name("params").beginArray();
+			for (MBeanParameterInfo beanParameterInfo : operationInfo.getSignature()) {
+				json.beginObject();
+				json.name("name").value(beanParameterInfo.getName());
+				json.name("type").value(beanParameterInfo.getType());
+				json.endObject();
 			}
-			operationMap.put("params", params);
-			operations.add(operationMap);
+			json.endArray();
+			json.endObject();
 		}
 
 		public String asString() {
-			// let's put the three collections into a map
-			final Map<String, ArrayList<Map>> result = 
-				new HashMap<String, ArrayList<Map>>();
-			result.put("objects", objects);
-			result.put("attributes", attributes);
-			result.put("operations", operations);
-			
-			JSONObject jsonObject = JSONObject.fromObject(result);
-			return jsonObject.toString();
+			if (out != null) {
+				// everything has been written already
+				return "";
+			}
+			finish();
+			return sb.toString();
 		}
 		
 	}
@@ -184,9 +318,18 @@ public class Browse extends CommandBase {
 			this.sb = new StringBuilder();
 		}
 
-		public void addObject(ObjectInstance objectInstance) {
-			sb.append(objectInstance.getObjectName());
-			sb.append("\n");
+		private PrintStream out;
+		
+		public void startObjects(PrintStream out, int total) {
+			this.out = out;
+		}
+
+		public void addObject(ObjectName objectName) {
+			out.println(objectName);
+		}
+
+		public void endObjects() {
+			out.flush();
 		}
 
 		public void addAttribute(MBeanAttributeInfo attributeInfo) {
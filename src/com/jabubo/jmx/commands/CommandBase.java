@@ -1,14 +1,20 @@
 package com.jabubo.jmx.commands;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.management.JMException;
+import javax.management.MBeanInfo;
 import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXServiceURL;
 
 import org.hitchhackers.tools.jmx.HelpRequiredException;
 import org.hitchhackers.tools.jmx.connection.JMXConnectionFactory;
+import org.hitchhackers.tools.jmx.connection.MBeanInfoCache;
 import org.hitchhackers.tools.jmx.connection.pool.PoolingConnectionFactory;
 import org.hitchhackers.tools.jmx.util.parser.Param;
 import org.hitchhackers.tools.jmx.util.parser.ParameterParser;
@@ -22,7 +28,6 @@ import org.hitchhackers.tools.jmx.util.parser.formatter.HelpFormatter;
  */
 abstract public class CommandBase {
 
-	// TODO add interval
 	// TODO add command/script file
 	
 	private MBeanServerConnection connection;
@@ -36,6 +41,9 @@ abstract public class CommandBase {
 	private HashMap<String, String[]> environment;
 
 	private OutputType outputType = OutputType.TEXT;
+
+	// commands that stream their results (e.g. in interval mode) write to this stream directly
+	private PrintStream out = System.out;
 	
 	private Map<OutputType, Class<? extends OutputFormatter>> formatterByType = 
 		new HashMap<OutputType, Class<? extends OutputFormatter>>();
@@ -84,11 +92,58 @@ abstract public class CommandBase {
 		OutputFormatter outputFormatter = result.newInstance();
 		return outputFormatter;
 	}
+	
+	/**
+	 * returns the output of the formatter; binary output is written to {@link #getOut()} right away
+	 * (and an empty string is returned)
+	 */
+	protected String print(OutputFormatter formatter) throws IOException {
+		if (!(formatter instanceof BinaryOutputFormatter)) {
+			return formatter.asString();
+		}
+		((BinaryOutputFormatter) formatter).writeTo(getOut());
+		getOut().flush();
+		if (getOut().checkError()) {
+			throw new IOException("could not write the output - the output has been closed");
+		}
+		return "";
+	}
 
 	public MBeanServerConnection getConnection() {
 		return connection;
 	}
 	
+	/**
+	 * returns the connector of the current connection (null if the connection factory doesn't know it)
+	 */
+	protected JMXConnector getConnector() {
+		return connectionFactory.getConnector(connection);
+	}
+	
+	public JMXServiceURL getServiceURL() {
+		return url;
+	}
+	
+	/**
+	 * returns the MBeanInfo of the given MBean from the shared cache (if enabled); with <code>refresh</code> the
+	 * cached value is dropped and fetched from the target again
+	 */
+	protected MBeanInfo getMBeanInfo(ObjectName objectName, boolean refresh) throws IOException, JMException {
+		MBeanInfoCache cache = MBeanInfoCache.getInstance();
+		if (refresh) {
+			cache.invalidate(connection, objectName);
+		}
+		return cache.getMBeanInfo(connection, objectName);
+	}
+	
+	public PrintStream getOut() {
+		return out;
+	}
+
+	public void setOut(PrintStream out) {
+		this.out = out;
+	}
+
 	public OutputType getOutputType() {
 		return outputType;
 	}
@@ -111,18 +166,27 @@ abstract public class CommandBase {
 			OutputType outputType = 
 				CommandBase.OutputType.valueOf(commandLine.getParamValue("output_type"));
 			setOutputType(outputType);
+			// text can't stand in for binary output
+			if (outputType == OutputType.BINARY && !formatterByType.containsKey(outputType)) {
+				throw new IllegalArgumentException("this command does not support output type '" + outputType + "'");
+			}
 		}
 		
-		// establish the connection
-		url = connectionFactory.buildURLFromCommandLine(commandLine);
-		
-		environment = connectionFactory.getEnvironment(commandLine);
-		
-		// ...and give the command a chance to init
+		// give the command a chance to init (it may decide whether it needs a connection)...
 		processParams(commandLine);
+		
+		// ...and establish the connection
+		if (needsConnection()) {
+			url = connectionFactory.buildURLFromCommandLine(commandLine);
+			
+			environment = connectionFactory.getEnvironment(commandLine);
+		}
 	}
 	
 	public String doRun() throws Exception {
+		if (!needsConnection()) {
+			return run();
+		}
 		connection = connectionFactory.getConnection(url, environment);
                 try {
                     String result = run();
@@ -169,37 +233,37 @@ abstract public class CommandBase {
 	
 	
 	public void printUsage() {
-		System.out.println();
-		System.out.println(USAGE_TITLE + " (" + commandName + ")");
-		System.out.println();
+		out.println();
+		out.println(USAGE_TITLE + " (" + commandName + ")");
+		out.println();
 		
 		String commandHeader = getUsageHeaderConsole();
 		if (! commandHeader.equals("")) {
-			System.out.println(commandHeader);
-			System.out.println();
+			out.println(commandHeader);
+			out.println();
 		}
 		
 		String syntaxLine = getSyntaxLine();
-		System.out.println("Usage:");
-		System.out.println("  " + USAGE_SYNTAX_LINE_START + " " + commandName + " " + syntaxLine);
-		System.out.println();
-		System.out.println("Parameters:");
+		out.println("Usage:");
+		out.println("  " + USAGE_SYNTAX_LINE_START + " " + commandName + " " + syntaxLine);
+		out.println();
+		out.println("Parameters:");
 		String parameterDetails = getParameterDetails();
-		System.out.println(parameterDetails);
+		out.println(parameterDetails);
 	}
 
 	protected void initGlobalParams(ParameterParser parser) {
 		parser.addParam(
 				new Param("host").
 				setDescription("the host against which to connect").
-				setRequired(true).
+				setRequired(needsConnection()).
 				setShortName("h")
 		);
 		
 		parser.addParam(
 				new Param("port").
 				setDescription("the port against which to connect").
-				setRequired(true).
+				setRequired(needsConnection()).
 				setShortName("p")
 		);
 		
@@ -239,7 +303,7 @@ abstract public class CommandBase {
 		
 		parser.addParam(
 			new Param("output_type").
-				setDescription("in which format should the output be returned? (one of JSON or TEXT)").
+				setDescription("in which format should the output be returned? (one of JSON, TEXT or BINARY; BINARY is CBOR and is supported by some commands only)").
 				setShortName("t")
 		);
 		
@@ -259,6 +323,14 @@ abstract public class CommandBase {
 		this.commandName = commandName;
 	}	
 	
+	/**
+	 * commands that work on local data only (e.g. files) return false here; this is asked before
+	 * the params are parsed (to decide whether host and port are required) and after processParams()
+	 */
+	protected boolean needsConnection() {
+		return true;
+	}
+	
 	// these should be overridden in descendent classes
 	abstract protected void initParams(ParameterParser parser);
 	
@@ -273,7 +345,8 @@ abstract public class CommandBase {
 	public enum OutputType {
 		
 		TEXT('t'),
-		JSON('j');
+		JSON('j'),
+		BINARY('b');
 		
 		private final char id;
 		
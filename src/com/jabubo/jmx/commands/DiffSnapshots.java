@@ -0,0 +1,392 @@
+package com.jabubo.jmx.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.hitchhackers.tools.jmx.util.JsonWriter;
+import org.hitchhackers.tools.jmx.util.SnapshotFile;
+import org.hitchhackers.tools.jmx.util.parser.Param;
+import org.hitchhackers.tools.jmx.util.parser.ParameterParser;
+import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
+
+/**
+ * command that compares two snapshots written by {@link TakeSnapshot}
+ *
+ * Both snapshots are sorted by MBean name, so they are merged line by line and only the current
+ * MBean of each file is kept in memory.
+ *
+ * @author butzi
+ */
+public class DiffSnapshots extends CommandBase {
+
+	private File oldFile;
+	private File newFile;
+
+	// counts for the summary
+	private int addedCount = 0;
+	private int removedCount = 0;
+	private int changedMBeanCount = 0;
+	private int changedAttributeCount = 0;
+
+	public DiffSnapshots() {
+		super();
+		addFormatter(CommandBase.OutputType.TEXT, TextFormatter.class);
+		addFormatter(CommandBase.OutputType.JSON, JsonFormatter.class);
+	}
+
+	@Override
+	public String getUsageHeader() {
+		return
+			"This command compares two snapshot files written by the <i>snapshot</i> command and prints the MBeans " +
+			"that have been added (+) or removed (-) and the attribute values that have changed (~). Numeric changes " +
+			"are printed with their delta and the delta per second between the two snapshots, so counters can be " +
+			"compared directly. Values of composite attributes are compared per key (attribute/key).<br/><br/>" +
+			"No connection is needed, both snapshots are read from disk.<br/><br/>" +
+			"Examples:<br/>" +
+			"snapshot_diff /tmp/broker1-before.jmx.gz /tmp/broker1-after.jmx.gz<br/>" +
+			"snapshot_diff old=/tmp/a.jmx new=/tmp/b.jmx output_type=JSON";
+	}
+
+	@Override
+	protected boolean needsConnection() {
+		return false;
+	}
+
+	@Override
+	protected void initParams(ParameterParser parser) {
+		parser.addParam(
+			new Param("old")
+				.setDescription("the older snapshot")
+				.setMightBeUnnamed(true)
+				.setRequired(true)
+		);
+		parser.addParam(
+			new Param("new")
+				.setDescription("the newer snapshot")
+				.setMightBeUnnamed(true)
+				.setRequired(true)
+		);
+	}
+
+	@Override
+	public void processParams(ParsedCommandLine commandLine) {
+		oldFile = new File(commandLine.getOptionValue("old"));
+		newFile = new File(commandLine.getOptionValue("new"));
+	}
+
+	@Override
+	public String run() throws Exception {
+		Formatter formatter = (Formatter) getFormatter();
+
+		SnapshotFile.Reader oldSnapshot = new SnapshotFile.Reader(oldFile);
+		try {
+			SnapshotFile.Reader newSnapshot = new SnapshotFile.Reader(newFile);
+			try {
+				double elapsedSeconds = (newSnapshot.getTimestamp() - oldSnapshot.getTimestamp()) / 1000.0;
+				formatter.start(getOut(), oldSnapshot.getURL(), newSnapshot.getURL(), elapsedSeconds);
+				merge(oldSnapshot, newSnapshot, formatter, elapsedSeconds);
+			} finally {
+				newSnapshot.close();
+			}
+		} finally {
+			oldSnapshot.close();
+		}
+
+		getOut().flush();
+		if (getOut().checkError()) {
+			throw new IOException("could not write the differences - the output has been closed");
+		}
+		formatter.setSummary(addedCount, removedCount, changedMBeanCount, changedAttributeCount);
+		return formatter.asString();
+	}
+
+	private void merge(SnapshotFile.Reader oldSnapshot, SnapshotFile.Reader newSnapshot, Formatter formatter, double elapsedSeconds) throws IOException {
+		JSONObject oldMBean = oldSnapshot.next();
+		JSONObject newMBean = newSnapshot.next();
+		while (oldMBean != null || newMBean != null) {
+			int comparison;
+			if (oldMBean == null) {
+				comparison = 1;
+			} else if (newMBean == null) {
+				comparison = -1;
+			} else {
+				comparison = oldMBean.getString("name").compareTo(newMBean.getString("name"));
+			}
+
+			if (comparison < 0) {
+				removedCount++;
+				formatter.addRemovedMBean(oldMBean.getString("name"));
+				oldMBean = oldSnapshot.next();
+			} else if (comparison > 0) {
+				addedCount++;
+				formatter.addAddedMBean(newMBean.getString("name"));
+				newMBean = newSnapshot.next();
+			} else {
+				int changes = compareAttributes(oldMBean, newMBean, formatter, elapsedSeconds);
+				if (changes > 0) {
+					changedMBeanCount++;
+					changedAttributeCount += changes;
+				}
+				oldMBean = oldSnapshot.next();
+				newMBean = newSnapshot.next();
+			}
+		}
+	}
+
+	/**
+	 * compares the attributes of two versions of an MBean (both sorted by name) and returns the number of changes
+	 */
+	private int compareAttributes(JSONObject oldMBean, JSONObject newMBean, Formatter formatter, double elapsedSeconds) {
+		String objectName = oldMBean.getString("name");
+		JSONArray oldAttributes = oldMBean.has("attributes") ? oldMBean.getJSONArray("attributes") : new JSONArray();
+		JSONArray newAttributes = newMBean.has("attributes") ? newMBean.getJSONArray("attributes") : new JSONArray();
+
+		int changes = 0;
+		int oldIndex = 0;
+		int newIndex = 0;
+		while (oldIndex < oldAttributes.size() || newIndex < newAttributes.size()) {
+			JSONObject oldAttribute = (oldIndex < oldAttributes.size()) ? oldAttributes.getJSONObject(oldIndex) : null;
+			JSONObject newAttribute = (newIndex < newAttributes.size()) ? newAttributes.getJSONObject(newIndex) : null;
+
+			int comparison;
+			if (oldAttribute == null) {
+				comparison = 1;
+			} else if (newAttribute == null) {
+				comparison = -1;
+			} else {
+				comparison = oldAttribute.getString("name").compareTo(newAttribute.getString("name"));
+			}
+
+			if (comparison < 0) {
+				if (oldAttribute.has("value")) {
+					formatter.addChange(objectName, oldAttribute.getString("name"), null, oldAttribute.get("value"), null);
+					changes++;
+				}
+				oldIndex++;
+			} else if (comparison > 0) {
+				if (newAttribute.has("value")) {
+					formatter.addChange(objectName, newAttribute.getString("name"), null, null, newAttribute.get("value"));
+					changes++;
+				}
+				newIndex++;
+			} else {
+				// attributes that could not be read in one of the snapshots can't be compared
+				if (oldAttribute.has("value") && newAttribute.has("value")) {
+					changes += compareValues(objectName, oldAttribute.getString("name"), oldAttribute.get("value"), newAttribute.get("value"), formatter, elapsedSeconds);
+				}
+				oldIndex++;
+				newIndex++;
+			}
+		}
+		return changes;
+	}
+
+	private int compareValues(String objectName, String attributeName, Object oldValue, Object newValue, Formatter formatter, double elapsedSeconds) {
+		if (oldValue instanceof JSONObject && newValue instanceof JSONObject) {
+			// composite values are compared per key
+			JSONObject oldComposite = (JSONObject) oldValue;
+			JSONObject newComposite = (JSONObject) newValue;
+			TreeSet<String> keys = new TreeSet<String>();
+			for (Iterator<?> iterator = oldComposite.keys(); iterator.hasNext();) {
+				keys.add((String) iterator.next());
+			}
+			for (Iterator<?> iterator = newComposite.keys(); iterator.hasNext();) {
+				keys.add((String) iterator.next());
+			}
+
+			int changes = 0;
+			for (String key : keys) {
+				Object oldElement = oldComposite.has(key) ? oldComposite.get(key) : null;
+				Object newElement = newComposite.has(key) ? newComposite.get(key) : null;
+				if (compareValue(objectName, attributeName, key, oldElement, newElement, formatter, elapsedSeconds)) {
+					changes++;
+				}
+			}
+			return changes;
+		}
+		return compareValue(objectName, attributeName, null, oldValue, newValue, formatter, elapsedSeconds) ? 1 : 0;
+	}
+
+	private boolean compareValue(String objectName, String attributeName, String compositeKey, Object oldValue, Object newValue, Formatter formatter, double elapsedSeconds) {
+		if (String.valueOf(oldValue).equals(String.valueOf(newValue))) {
+			return false;
+		}
+
+		if (oldValue instanceof Number && newValue instanceof Number) {
+			Number delta;
+			if (isIntegral((Number) oldValue) && isIntegral((Number) newValue)) {
+				delta = ((Number) newValue).longValue() - ((Number) oldValue).longValue();
+			} else {
+				delta = ((Number) newValue).doubleValue() - ((Number) oldValue).doubleValue();
+			}
+			Double perSecond = (elapsedSeconds > 0) ? delta.doubleValue() / elapsedSeconds : null;
+			formatter.addCounterChange(objectName, attributeName, compositeKey, (Number) oldValue, (Number) newValue, delta, perSecond);
+		} else {
+			formatter.addChange(objectName, attributeName, compositeKey, oldValue, newValue);
+		}
+		return true;
+	}
+
+	private static boolean isIntegral(Number number) {
+		return (number instanceof Integer) || (number instanceof Long) || (number instanceof Short) || (number instanceof Byte);
+	}
+
+	/**
+	 * the differences are streamed to the given output, the summary is returned by asString()
+	 */
+	interface Formatter extends OutputFormatter {
+		void start(PrintStream out, String oldURL, String newURL, double elapsedSeconds);
+		void addAddedMBean(String objectName);
+		void addRemovedMBean(String objectName);
+		/**
+		 * a value that has changed; oldValue or newValue is null if the attribute has been added or removed
+		 */
+		void addChange(String objectName, String attributeName, String compositeKey, Object oldValue, Object newValue);
+		/**
+		 * a numeric value that has changed; perSecond is null if the snapshots have the same timestamp
+		 */
+		void addCounterChange(String objectName, String attributeName, String compositeKey, Number oldValue, Number newValue, Number delta, Double perSecond);
+		void setSummary(int added, int removed, int changedMBeans, int changedAttributes);
+	}
+
+	static String getFullName(String objectName, String attributeName, String compositeKey) {
+		return objectName + "/" + attributeName + ((compositeKey != null) ? "/" + compositeKey : "");
+	}
+
+	static class TextFormatter implements Formatter {
+
+		private PrintStream out;
+		private String summary = "";
+
+		public void start(PrintStream out, String oldURL, String newURL, double elapsedSeconds) {
+			this.out = out;
+			if (!oldURL.equals(newURL)) {
+				out.println("[warn] comparing snapshots of different targets : " + oldURL + " / " + newURL);
+			}
+			out.println(String.format("comparing snapshots taken %.1fs apart", elapsedSeconds));
+		}
+
+		public void addAddedMBean(String objectName) {
+			out.println("+ " + objectName);
+		}
+
+		public void addRemovedMBean(String objectName) {
+			out.println("- " + objectName);
+		}
+
+		public void addChange(String objectName, String attributeName, String compositeKey, Object oldValue, Object newValue) {
+			out.println("~ " + getFullName(objectName, attributeName, compositeKey) + " : " +
+				((oldValue == null) ? "(none)" : oldValue) + " -> " + ((newValue == null) ? "(none)" : newValue));
+		}
+
+		public void addCounterChange(String objectName, String attributeName, String compositeKey, Number oldValue, Number newValue, Number delta, Double perSecond) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("~ ").append(getFullName(objectName, attributeName, compositeKey)).append(" : ");
+			sb.append(oldValue).append(" -> ").append(newValue);
+			sb.append(" (").append((delta.doubleValue() > 0) ? "+" : "").append(delta);
+			if (perSecond != null) {
+				sb.append(String.format(", %.2f/s", perSecond));
+			}
+			sb.append(")");
+			out.println(sb.toString());
+		}
+
+		public void setSummary(int added, int removed, int changedMBeans, int changedAttributes) {
+			summary = added + " MBeans added, " + removed + " removed, " + changedAttributes + " values changed in " + changedMBeans + " MBeans";
+		}
+
+		public String asString() {
+			return summary;
+		}
+
+	}
+
+	/**
+	 * prints one JSON object per difference and the summary as last line
+	 */
+	static class JsonFormatter implements Formatter {
+
+		private JsonWriter json;
+		private PrintStream out;
+		
+		private final StringBuilder summary = new StringBuilder();
+		private final JsonWriter summaryJson = new JsonWriter(summary);
+
+		public void start(PrintStream out, String oldURL, String newURL, double elapsedSeconds) {
+			this.out = out;
+			json = new JsonWriter(out);
+			summaryJson.beginObject();
+			summaryJson.name("type").value("summary");
+			summaryJson.name("old_url").value(oldURL);
+			summaryJson.name("new_url").value(newURL);
+			summaryJson.name("elapsed_seconds").value(elapsedSeconds);
+		}
+
+		public void addAddedMBean(String objectName) {
+			startEntry("added", objectName);
+			endEntry();
+		}
+
+		public void addRemovedMBean(String objectName) {
+			startEntry("removed", objectName);
+			endEntry();
+		}
+
+		public void addChange(String objectName, String attributeName, String compositeKey, Object oldValue, Object newValue) {
+			startEntry("changed", objectName, attributeName, compositeKey);
+			json.name("old").value(oldValue);
+			json.name("new").value(newValue);
+			endEntry();
+		}
+
+		public void addCounterChange(String objectName, String attributeName, String compositeKey, Number oldValue, Number newValue, Number delta, Double perSecond) {
+			startEntry("changed", objectName, attributeName, compositeKey);
+			json.name("old").value(oldValue);
+			json.name("new").value(newValue);
+			json.name("delta").value(delta);
+			if (perSecond != null) {
+				json.name("per_second").value(perSecond.doubleValue());
+			}
+			endEntry();
+		}
+
+		private void startEntry(String type, String objectName) {
+			json.beginObject();
+			json.name("type").value(type);
+			json.name("object_name").value(objectName);
+		}
+
+		private void startEntry(String type, String objectName, String attributeName, String compositeKey) {
+			startEntry(type, objectName);
+			json.name("attribute_name").value(attributeName);
+			if (compositeKey != null) {
+				json.name("composite_key").value(compositeKey);
+			}
+		}
+
+		private void endEntry() {
+			json.endObject();
+			out.println();
+		}
+
+		public void setSummary(int added, int removed, int changedMBeans, int changedAttributes) {
+			summaryJson.name("added").value(added);
+			summaryJson.name("removed").value(removed);
+			summaryJson.name("changed_mbeans").value(changedMBeans);
+			summaryJson.name("changed_values").value(changedAttributes);
+			summaryJson.endObject();
+		}
+
+		public String asString() {
+			return summary.toString();
+		}
+
+	}
+
+}
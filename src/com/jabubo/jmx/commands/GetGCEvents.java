@@ -0,0 +1,456 @@
+package com.jabubo.jmx.commands;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.hitchhackers.tools.jmx.util.JsonWriter;
+import org.hitchhackers.tools.jmx.util.parser.Param;
+import org.hitchhackers.tools.jmx.util.parser.ParameterParser;
+import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
+
+/**
+ * command that prints each garbage collection of the target VM along with rolling pause time percentiles
+ *
+ * The events are the GC notifications of the HotSpot GarbageCollectorMXBeans; their user data
+ * (GarbageCollectionNotificationInfo with GcInfo) is decoded from the open types, so the client
+ * does not depend on com.sun.management.
+ *
+ * @author butzi
+ */
+public class GetGCEvents extends NotificationCommandBase {
+
+	static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+	private static final String GC_PATTERN = "java.lang:type=GarbageCollector,*";
+
+	private static final int DEFAULT_WINDOW = 100;
+	private static final long DEFAULT_INTERVAL = 60;
+
+	// number of recent pauses per collector the percentiles are computed over and seconds between two reports
+	private int window = DEFAULT_WINDOW;
+	private long interval = DEFAULT_INTERVAL;
+
+	private Formatter formatter;
+
+	// pause times per collector, sorted by name
+	private final Map<String, PauseWindow> windows = new TreeMap<String, PauseWindow>();
+	private long lastReport;
+
+	public GetGCEvents() {
+		super();
+		addFormatter(CommandBase.OutputType.TEXT, TextFormatter.class);
+		addFormatter(CommandBase.OutputType.JSON, JsonFormatter.class);
+	}
+
+	@Override
+	public String getUsageHeader() {
+		return
+			"This command prints each garbage collection of the target VM as it happens: collector, action, cause, " +
+			"duration and the usage of each memory pool that has changed (before -> after). Every <i>interval</i> " +
+			"seconds, the percentiles of the last <i>window</i> durations of each collector that has been active " +
+			"are printed, and once more when the command ends.<br/><br/>" +
+			"The events are the notifications of type " + GC_NOTIFICATION + " of all GarbageCollector MBeans (offered by " +
+			"HotSpot VMs since Java 7u4). For concurrent collectors the duration is the one of the whole cycle, " +
+			"not of a pause.<br/><br/>" +
+			"Examples:<br/>" +
+			"gc_events [...]<br/>" +
+			"gc_events [...] duration=3600 interval=300 window=1000 output_type=JSON";
+	}
+
+	@Override
+	protected void initParams(ParameterParser parser) {
+		super.initParams(parser);
+		parser.addParam(
+			new Param("interval")
+				.setDescription("seconds between two percentile reports (defaults to " + DEFAULT_INTERVAL + ")")
+				.setShortName("i")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+		parser.addParam(
+			new Param("window")
+				.setDescription("number of recent collections per collector the percentiles are computed over (defaults to " + DEFAULT_WINDOW + ")")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+	}
+
+	@Override
+	public void processParams(ParsedCommandLine commandLine) {
+		super.processParams(commandLine);
+		if (commandLine.hasOption("interval")) {
+			interval = Long.parseLong(commandLine.getOptionValue("interval"));
+		}
+		if (commandLine.hasOption("window")) {
+			window = Integer.parseInt(commandLine.getOptionValue("window"));
+		}
+		try {
+			patterns.add(ObjectName.getInstance(GC_PATTERN));
+		} catch (MalformedObjectNameException e) {
+			throw new IllegalStateException(e);
+		}
+		types.add(GC_NOTIFICATION);
+	}
+
+	@Override
+	protected void start() throws Exception {
+		formatter = (Formatter) getFormatter();
+		formatter.start(getOut());
+		lastReport = System.currentTimeMillis();
+	}
+
+	@Override
+	protected void notificationReceived(Notification notification) {
+		if (!GC_NOTIFICATION.equals(notification.getType()) || !(notification.getUserData() instanceof CompositeData)) {
+			return;
+		}
+		GCEvent event = GCEvent.decode(notification.getTimeStamp(), (CompositeData) notification.getUserData());
+		PauseWindow pauseWindow = windows.get(event.gcName);
+		if (pauseWindow == null) {
+			pauseWindow = new PauseWindow(window);
+			windows.put(event.gcName, pauseWindow);
+		}
+		pauseWindow.add(event.duration);
+		formatter.addEvent(event);
+	}
+
+	@Override
+	protected void notificationsDropped(long dropped, long totalDropped) {
+		formatter.addDropped(dropped, totalDropped);
+	}
+
+	@Override
+	protected void tick(long now) {
+		if (now - lastReport >= interval * 1000) {
+			report(now, false);
+			lastReport = now;
+		}
+	}
+
+	@Override
+	protected String finish(long received, long dropped, int mbeanCount) {
+		report(System.currentTimeMillis(), true);
+		formatter.setSummary(received, dropped, mbeanCount);
+		return formatter.asString();
+	}
+
+	/**
+	 * reports the percentiles of the collectors that have been active since the last report (or of all of them)
+	 */
+	private void report(long timestamp, boolean all) {
+		for (Map.Entry<String, PauseWindow> entry : windows.entrySet()) {
+			PauseWindow pauseWindow = entry.getValue();
+			if (all || pauseWindow.hasNewPauses()) {
+				formatter.addPercentiles(timestamp, entry.getKey(), pauseWindow.getTotalCount(), pauseWindow.getSize(), pauseWindow.getPercentiles());
+			}
+		}
+	}
+
+	/**
+	 * a decoded GC notification
+	 */
+	static class GCEvent {
+
+		long timestamp;
+		String gcName;
+		String action;
+		String cause;
+		long id;
+		// milliseconds since the start of the VM, as reported by GcInfo
+		long startTime;
+		long duration;
+		final List<PoolUsage> pools = new ArrayList<PoolUsage>();
+
+		/**
+		 * decodes the user data of a GC notification (see com.sun.management.GarbageCollectionNotificationInfo)
+		 */
+		static GCEvent decode(long timestamp, CompositeData notificationInfo) {
+			GCEvent event = new GCEvent();
+			event.timestamp = timestamp;
+			event.gcName = (String) notificationInfo.get("gcName");
+			event.action = (String) notificationInfo.get("gcAction");
+			event.cause = (String) notificationInfo.get("gcCause");
+
+			CompositeData gcInfo = (CompositeData) notificationInfo.get("gcInfo");
+			event.id = ((Number) gcInfo.get("id")).longValue();
+			event.startTime = ((Number) gcInfo.get("startTime")).longValue();
+			event.duration = ((Number) gcInfo.get("duration")).longValue();
+
+			Map<String, CompositeData> before = getUsageByPool((TabularData) gcInfo.get("memoryUsageBeforeGc"));
+			Map<String, CompositeData> after = getUsageByPool((TabularData) gcInfo.get("memoryUsageAfterGc"));
+			for (Map.Entry<String, CompositeData> entry : after.entrySet()) {
+				CompositeData usageBefore = before.get(entry.getKey());
+				long usedBefore = (usageBefore == null) ? 0 : ((Number) usageBefore.get("used")).longValue();
+				long usedAfter = ((Number) entry.getValue().get("used")).longValue();
+				// most pools (e.g. code cache, metaspace) are not touched by a collection
+				if (usedBefore != usedAfter) {
+					event.pools.add(new PoolUsage(entry.getKey(), usedBefore, usedAfter,
+							((Number) entry.getValue().get("committed")).longValue()));
+				}
+			}
+			return event;
+		}
+
+		private static Map<String, CompositeData> getUsageByPool(TabularData usages) {
+			// rows of Map<String, MemoryUsage> are (key, value) composites
+			Map<String, CompositeData> result = new TreeMap<String, CompositeData>();
+			for (Object row : usages.values()) {
+				CompositeData rowData = (CompositeData) row;
+				result.put((String) rowData.get("key"), (CompositeData) rowData.get("value"));
+			}
+			return result;
+		}
+
+	}
+
+	static class PoolUsage {
+
+		final String name;
+		final long usedBefore;
+		final long usedAfter;
+		final long committedAfter;
+
+		PoolUsage(String name, long usedBefore, long usedAfter, long committedAfter) {
+			this.name = name;
+			this.usedBefore = usedBefore;
+			this.usedAfter = usedAfter;
+			this.committedAfter = committedAfter;
+		}
+
+	}
+
+	/**
+	 * the durations of the most recent collections of one collector (a ring buffer)
+	 */
+	static class PauseWindow {
+
+		// reported percentiles: median, 90th, 99th and maximum
+		static final double[] PERCENTILES = { 50, 90, 99, 100 };
+
+		private final long[] durations;
+		private int size = 0;
+		private int next = 0;
+		private long totalCount = 0;
+		private boolean newPauses = false;
+
+		PauseWindow(int capacity) {
+			durations = new long[capacity];
+		}
+
+		void add(long duration) {
+			durations[next] = duration;
+			next = (next + 1) % durations.length;
+			size = Math.min(size + 1, durations.length);
+			totalCount++;
+			newPauses = true;
+		}
+
+		long getTotalCount() {
+			return totalCount;
+		}
+
+		boolean hasNewPauses() {
+			return newPauses;
+		}
+
+		/**
+		 * returns the values of {@link #PERCENTILES} (nearest rank) over the window; resets hasNewPauses()
+		 */
+		long[] getPercentiles() {
+			newPauses = false;
+			long[] sorted = Arrays.copyOf(durations, size);
+			Arrays.sort(sorted);
+			long[] result = new long[PERCENTILES.length];
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				int rank = (int) Math.ceil(PERCENTILES[i] / 100 * size);
+				result[i] = (size == 0) ? 0 : sorted[Math.max(rank, 1) - 1];
+			}
+			return result;
+		}
+
+		int getSize() {
+			return size;
+		}
+
+	}
+
+	/**
+	 * events and percentiles are written to the output as they are added
+	 */
+	interface Formatter extends OutputFormatter {
+		void start(PrintStream out);
+		void addEvent(GCEvent event);
+		/**
+		 * percentiles are the ones of {@link PauseWindow#PERCENTILES}
+		 */
+		void addPercentiles(long timestamp, String gcName, long totalCount, int windowSize, long[] percentiles);
+		void addDropped(long dropped, long totalDropped);
+		void setSummary(long received, long dropped, int mbeanCount);
+	}
+
+	static class TextFormatter implements Formatter {
+
+		private PrintStream out;
+		private final StringBuilder summary = new StringBuilder();
+
+		public void start(PrintStream out) {
+			this.out = out;
+		}
+
+		public void addEvent(GCEvent event) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(event.timestamp);
+			sb.append(" ");
+			sb.append(event.gcName);
+			sb.append(" #");
+			sb.append(event.id);
+			sb.append(" ");
+			sb.append(event.action);
+			sb.append(" (");
+			sb.append(event.cause);
+			sb.append(") ");
+			sb.append(event.duration);
+			sb.append("ms");
+			for (int i = 0; i < event.pools.size(); i++) {
+				PoolUsage pool = event.pools.get(i);
+				sb.append((i == 0) ? " : " : ", ");
+				sb.append(pool.name);
+				sb.append(" ");
+				appendSize(pool.usedBefore, sb);
+				sb.append("->");
+				appendSize(pool.usedAfter, sb);
+				sb.append("(");
+				appendSize(pool.committedAfter, sb);
+				sb.append(")");
+			}
+			out.println(sb.toString());
+		}
+
+		public void addPercentiles(long timestamp, String gcName, long totalCount, int windowSize, long[] percentiles) {
+			out.println("[percentiles] " + gcName + " : " + totalCount + " collections, last " + windowSize + " : p50=" + percentiles[0] +
+					"ms p90=" + percentiles[1] + "ms p99=" + percentiles[2] + "ms max=" + percentiles[3] + "ms");
+		}
+
+		public void addDropped(long dropped, long totalDropped) {
+			out.println("[warning] dropped " + dropped + " events (" + totalDropped + " in total)");
+		}
+
+		public void setSummary(long received, long dropped, int mbeanCount) {
+			summary.append("received ");
+			summary.append(received);
+			summary.append(" events from ");
+			summary.append(mbeanCount);
+			summary.append(" collectors (");
+			summary.append(dropped);
+			summary.append(" dropped)");
+		}
+
+		static void appendSize(long bytes, StringBuilder sb) {
+			if (bytes >= 10L << 30) {
+				sb.append(bytes >> 30);
+				sb.append("G");
+			} else if (bytes >= 10L << 20) {
+				sb.append(bytes >> 20);
+				sb.append("M");
+			} else {
+				sb.append(bytes >> 10);
+				sb.append("K");
+			}
+		}
+
+		public String asString() {
+			return summary.toString();
+		}
+
+	}
+
+	/**
+	 * prints one JSON object per line; the type of the object is "gc", "gc_percentiles",
+	 * "jmxconsole.dropped" or "jmxconsole.summary"
+	 */
+	static class JsonFormatter implements Formatter {
+
+		private PrintStream out;
+		private JsonWriter json;
+
+		private final StringBuilder summary = new StringBuilder();
+
+		public void start(PrintStream out) {
+			this.out = out;
+			json = new JsonWriter(out);
+		}
+
+		public void addEvent(GCEvent event) {
+			json.beginObject();
+			json.name("type").value("gc");
+			json.name("timestamp").value(event.timestamp);
+			json.name("gc").value(event.gcName);
+			json.name("action").value(event.action);
+			json.name("cause").value(event.cause);
+			json.name("id").value(event.id);
+			json.name("start_uptime_ms").value(event.startTime);
+			json.name("duration_ms").value(event.duration);
+			json.name("pools").beginArray();
+			for (PoolUsage pool : event.pools) {
+				json.beginObject();
+				json.name("name").value(pool.name);
+				json.name("before").value(pool.usedBefore);
+				json.name("after").value(pool.usedAfter);
+				json.name("committed").value(pool.committedAfter);
+				json.endObject();
+			}
+			json.endArray();
+			json.endObject();
+			out.println();
+		}
+
+		public void addPercentiles(long timestamp, String gcName, long totalCount, int windowSize, long[] percentiles) {
+			json.beginObject();
+			json.name("type").value("gc_percentiles");
+			json.name("timestamp").value(timestamp);
+			json.name("gc").value(gcName);
+			json.name("collections").value(totalCount);
+			json.name("window").value(windowSize);
+			json.name("p50_ms").value(percentiles[0]);
+			json.name("p90_ms").value(percentiles[1]);
+			json.name("p99_ms").value(percentiles[2]);
+			json.name("max_ms").value(percentiles[3]);
+			json.endObject();
+			out.println();
+		}
+
+		public void addDropped(long dropped, long totalDropped) {
+			json.beginObject();
+			json.name("type").value("jmxconsole.dropped");
+			json.name("timestamp").value(System.currentTimeMillis());
+			json.name("dropped").value(dropped);
+			json.name("total_dropped").value(totalDropped);
+			json.endObject();
+			out.println();
+		}
+
+		public void setSummary(long received, long dropped, int mbeanCount) {
+			new JsonWriter(summary).beginObject()
+				.name("type").value("jmxconsole.summary")
+				.name("received").value(received)
+				.name("dropped").value(dropped)
+				.name("mbeans").value(mbeanCount)
+				.endObject();
+		}
+
+		public String asString() {
+			return summary.toString();
+		}
+
+	}
+
+}
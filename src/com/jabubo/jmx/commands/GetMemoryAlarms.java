@@ -0,0 +1,526 @@
+package com.jabubo.jmx.commands;
+
+import java.io.PrintStream;
+import java.lang.management.MemoryNotificationInfo;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.log4j.Logger;
+import org.hitchhackers.tools.jmx.util.JsonWriter;
+import org.hitchhackers.tools.jmx.util.TypeConversionHelper;
+import org.hitchhackers.tools.jmx.util.Wildcard;
+import org.hitchhackers.tools.jmx.util.parser.Param;
+import org.hitchhackers.tools.jmx.util.parser.ParameterParser;
+import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
+
+/**
+ * command that sets usage thresholds on the memory pools of the target VM and prints the memory
+ * notifications that are sent when a pool exceeds them
+ *
+ * The thresholds are set through the MemoryPool MBeans the same way set_attribute does; the previous
+ * thresholds are restored when the command ends (also on Ctrl-C), unless they are to be kept.
+ *
+ * @author butzi
+ */
+public class GetMemoryAlarms extends NotificationCommandBase {
+
+	private static final Logger LOGGER = Logger.getLogger(GetMemoryAlarms.class);
+
+	private static final String MEMORY_NAME = "java.lang:type=Memory";
+	private static final String POOL_PATTERN = "java.lang:type=MemoryPool,*";
+
+	// bytes (with an optional unit) or a percentage of the maximum size of a pool
+	private static final Pattern THRESHOLD_PATTERN = Pattern.compile("(\\d+)([kKmMgG]?)|(\\d+(?:\\.\\d+)?)%");
+
+	/**
+	 * the two thresholds of a memory pool: the name of the attribute, of the attribute telling whether the
+	 * pool supports it and the type of the notification that is sent when it is exceeded
+	 */
+	enum Kind {
+		USAGE("usage", "UsageThreshold", "UsageThresholdSupported", MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED),
+		COLLECTION_USAGE("collection_usage", "CollectionUsageThreshold", "CollectionUsageThresholdSupported",
+			MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED);
+
+		final String label;
+		final String attributeName;
+		final String supportedAttributeName;
+		final String notificationType;
+
+		private Kind(String label, String attributeName, String supportedAttributeName, String notificationType) {
+			this.label = label;
+			this.attributeName = attributeName;
+			this.supportedAttributeName = supportedAttributeName;
+			this.notificationType = notificationType;
+		}
+
+		static Kind forNotificationType(String type) {
+			for (Kind kind : values()) {
+				if (kind.notificationType.equals(type)) {
+					return kind;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * a threshold that has been set on a pool
+	 */
+	static class Threshold {
+		final ObjectName objectName;
+		final String poolName;
+		final Kind kind;
+		final long value;
+		final Object previousValue;
+
+		Threshold(ObjectName objectName, String poolName, Kind kind, long value, Object previousValue) {
+			this.objectName = objectName;
+			this.poolName = poolName;
+			this.kind = kind;
+			this.value = value;
+			this.previousValue = previousValue;
+		}
+	}
+
+	private final List<String> poolPatterns = new ArrayList<String>();
+	private final Map<Kind, String> thresholdValues = new HashMap<Kind, String>();
+	private boolean keep = false;
+
+	private Formatter formatter;
+
+	// thresholds that have been set and must be restored, by pool name and kind
+	private final Map<String, Threshold> thresholds = new HashMap<String, Threshold>();
+	private Thread restoreHook;
+
+	public GetMemoryAlarms() {
+		super();
+		addFormatter(CommandBase.OutputType.TEXT, TextFormatter.class);
+		addFormatter(CommandBase.OutputType.JSON, JsonFormatter.class);
+	}
+
+	@Override
+	public String getUsageHeader() {
+		return
+			"This command sets the usage threshold and/or the collection usage threshold of the memory pools of the " +
+			"target VM and prints each memory notification that is sent when a pool exceeds its threshold, along with " +
+			"the usage of the pool at that time and the number of times the threshold has been exceeded.<br/><br/>" +
+			"A threshold is given in bytes (with an optional unit K, M or G) or as percentage of the maximum size " +
+			"of the pool; pools without a maximum size are skipped then. The usage threshold is checked against the " +
+			"current usage of a pool, the collection usage threshold against the usage right after a garbage " +
+			"collection. When the command ends, the previous thresholds are restored unless <i>keep</i> is given.<br/><br/>" +
+			"Examples:<br/>" +
+			"memory_alarms [...] usage_threshold=80%<br/>" +
+			"memory_alarms [...] pool=*Old* collection_threshold=70% duration=3600 output_type=JSON<br/>" +
+			"memory_alarms [...] pool=Metaspace usage_threshold=200M keep count=1";
+	}
+
+	@Override
+	protected void initParams(ParameterParser parser) {
+		parser.addParam(
+			new Param("pool")
+				.setDescription("name (pattern) of the memory pools to set the thresholds of (defaults to all pools)")
+				.setMultiParam(true)
+		);
+		parser.addParam(
+			new Param("usage_threshold")
+				.setDescription("usage threshold to set, in bytes or as percentage of the maximum pool size (e.g. 512M or 80%)")
+				.setValidationPattern(THRESHOLD_PATTERN)
+		);
+		parser.addParam(
+			new Param("collection_threshold")
+				.setDescription("collection usage threshold to set, in bytes or as percentage of the maximum pool size")
+				.setValidationPattern(THRESHOLD_PATTERN)
+		);
+		parser.addParam(
+			new Param("keep")
+				.setDescription("leave the thresholds set when the command ends")
+				.setHasNoValue(true)
+		);
+		super.initParams(parser);
+	}
+
+	@Override
+	public void processParams(ParsedCommandLine commandLine) {
+		super.processParams(commandLine);
+		if (commandLine.hasOption("pool")) {
+			for (String pool : commandLine.getOptionValues("pool")) {
+				poolPatterns.add(pool);
+			}
+		}
+		if (commandLine.hasOption("usage_threshold")) {
+			thresholdValues.put(Kind.USAGE, commandLine.getOptionValue("usage_threshold"));
+		}
+		if (commandLine.hasOption("collection_threshold")) {
+			thresholdValues.put(Kind.COLLECTION_USAGE, commandLine.getOptionValue("collection_threshold"));
+		}
+		if (thresholdValues.isEmpty()) {
+			throw new IllegalArgumentException("either usage_threshold or collection_threshold has to be given");
+		}
+		for (String value : thresholdValues.values()) {
+			Matcher matcher = THRESHOLD_PATTERN.matcher(value);
+			if (matcher.matches() && matcher.group(3) != null && Double.parseDouble(matcher.group(3)) > 100) {
+				throw new IllegalArgumentException("invalid threshold '" + value + "' : percentage must not exceed 100%");
+			}
+		}
+		keep = commandLine.hasOption("keep");
+
+		try {
+			patterns.add(ObjectName.getInstance(MEMORY_NAME));
+		} catch (MalformedObjectNameException e) {
+			throw new IllegalStateException(e);
+		}
+		for (Kind kind : thresholdValues.keySet()) {
+			types.add(kind.notificationType);
+		}
+	}
+
+	@Override
+	protected void start() throws Exception {
+		formatter = (Formatter) getFormatter();
+		formatter.start(getOut());
+	}
+
+	/**
+	 * the thresholds are set once listening has started, so no notification is missed
+	 */
+	@Override
+	protected void subscribed() throws Exception {
+		MBeanServerConnection connection = getConnection();
+		if (!keep) {
+			restoreHook = new Thread("restore memory thresholds") {
+				@Override
+				public void run() {
+					restoreThresholds();
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(restoreHook);
+		}
+
+		for (ObjectName objectName : connection.queryNames(ObjectName.getInstance(POOL_PATTERN), null)) {
+			AttributeList attributes = connection.getAttributes(objectName, new String[] {
+				"Name", "Usage", "UsageThresholdSupported", "CollectionUsageThresholdSupported", "UsageThreshold", "CollectionUsageThreshold"
+			});
+			Map<String, Object> values = new HashMap<String, Object>();
+			for (Object attribute : attributes) {
+				values.put(((Attribute) attribute).getName(), ((Attribute) attribute).getValue());
+			}
+			String poolName = (String) values.get("Name");
+			if (poolName == null || !matchesPool(poolName)) {
+				continue;
+			}
+			for (Map.Entry<Kind, String> entry : thresholdValues.entrySet()) {
+				Kind kind = entry.getKey();
+				if (!Boolean.TRUE.equals(values.get(kind.supportedAttributeName))) {
+					LOGGER.debug("memory pool '" + poolName + "' does not support a " + kind.attributeName);
+					continue;
+				}
+				long value = toBytes(entry.getValue(), (CompositeData) values.get("Usage"));
+				if (value < 0) {
+					LOGGER.warn("memory pool '" + poolName + "' has no maximum size, skipping " + kind.attributeName + " " + entry.getValue());
+					continue;
+				}
+				setThreshold(connection, new Threshold(objectName, poolName, kind, value, values.get(kind.attributeName)));
+			}
+		}
+		if (thresholds.isEmpty()) {
+			throw new IllegalArgumentException("no memory pool supports the thresholds to be set");
+		}
+	}
+
+	private boolean matchesPool(String poolName) {
+		if (poolPatterns.isEmpty()) {
+			return true;
+		}
+		for (String pattern : poolPatterns) {
+			if (Wildcard.matches(pattern, poolName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * returns the threshold in bytes or -1 if it is a percentage and the pool has no maximum size
+	 */
+	private static long toBytes(String threshold, CompositeData usage) {
+		Matcher matcher = THRESHOLD_PATTERN.matcher(threshold);
+		matcher.matches();
+		if (matcher.group(3) != null) {
+			long max = (usage != null) ? ((Long) usage.get("max")).longValue() : -1;
+			if (max < 0) {
+				return -1;
+			}
+			return (long) (max * Double.parseDouble(matcher.group(3)) / 100);
+		}
+		long bytes = Long.parseLong(matcher.group(1));
+		switch (Character.toUpperCase(matcher.group(2).length() > 0 ? matcher.group(2).charAt(0) : ' ')) {
+			case 'G':
+				return bytes << 30;
+			case 'M':
+				return bytes << 20;
+			case 'K':
+				return bytes << 10;
+			default:
+				return bytes;
+		}
+	}
+
+	private void setThreshold(MBeanServerConnection connection, Threshold threshold) throws Exception {
+		setAttribute(connection, threshold.objectName, threshold.kind.attributeName, String.valueOf(threshold.value));
+		synchronized (thresholds) {
+			thresholds.put(threshold.poolName + "/" + threshold.kind.label, threshold);
+		}
+		formatter.addThreshold(threshold.poolName, threshold.kind.label, threshold.value, threshold.previousValue);
+	}
+
+	/**
+	 * sets the attribute converting the value to the attribute's type, like set_attribute does
+	 */
+	private void setAttribute(MBeanServerConnection connection, ObjectName objectName, String attributeName, String value) throws Exception {
+		MBeanAttributeInfo attributeFound = findAttribute(objectName, attributeName, false);
+		if (attributeFound == null) {
+			// the cached MBeanInfo might be outdated
+			attributeFound = findAttribute(objectName, attributeName, true);
+		}
+		if (attributeFound == null || !attributeFound.isWritable()) {
+			throw new IllegalArgumentException("attribute '" + objectName + "/" + attributeName + "' not found or read-only!");
+		}
+		Object valueObject = TypeConversionHelper.getObjectFromString(attributeFound.getType(), value);
+		connection.setAttribute(objectName, new Attribute(attributeName, valueObject));
+	}
+
+	private MBeanAttributeInfo findAttribute(ObjectName objectName, String attributeName, boolean refresh) throws Exception {
+		for (MBeanAttributeInfo beanAttributeInfo : getMBeanInfo(objectName, refresh).getAttributes()) {
+			if (beanAttributeInfo.getName().equals(attributeName)) {
+				return beanAttributeInfo;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * restores the previous thresholds; called when listening has ended and by the shutdown hook
+	 */
+	private void restoreThresholds() {
+		List<Threshold> toRestore;
+		synchronized (thresholds) {
+			toRestore = new ArrayList<Threshold>(thresholds.values());
+			thresholds.clear();
+		}
+		for (Threshold threshold : toRestore) {
+			if (threshold.previousValue == null) {
+				continue;
+			}
+			try {
+				setAttribute(getConnection(), threshold.objectName, threshold.kind.attributeName, String.valueOf(threshold.previousValue));
+			} catch (Exception e) {
+				LOGGER.warn("could not restore " + threshold.kind.attributeName + " of memory pool '" + threshold.poolName + "' : " + e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	protected void notificationReceived(Notification notification) {
+		Kind kind = Kind.forNotificationType(notification.getType());
+		if (kind == null || !(notification.getUserData() instanceof CompositeData)) {
+			return;
+		}
+		// MemoryNotificationInfo, decoded from the open types
+		CompositeData info = (CompositeData) notification.getUserData();
+		String poolName = (String) info.get("poolName");
+		CompositeData usage = (CompositeData) info.get("usage");
+		long count = ((Long) info.get("count")).longValue();
+
+		Threshold threshold;
+		synchronized (thresholds) {
+			threshold = thresholds.get(poolName + "/" + kind.label);
+		}
+		formatter.addAlarm(notification.getTimeStamp(), kind.label, poolName, count,
+			((Long) usage.get("used")).longValue(), ((Long) usage.get("committed")).longValue(), ((Long) usage.get("max")).longValue(),
+			(threshold != null) ? threshold.value : -1);
+	}
+
+	@Override
+	protected void notificationsDropped(long dropped, long totalDropped) {
+		formatter.addDropped(dropped, totalDropped);
+	}
+
+	@Override
+	protected void stopped() {
+		if (restoreHook != null) {
+			restoreThresholds();
+			try {
+				Runtime.getRuntime().removeShutdownHook(restoreHook);
+			} catch (IllegalStateException e) {
+				// the VM is shutting down already
+			}
+		}
+	}
+
+	@Override
+	protected String finish(long received, long dropped, int mbeanCount) {
+		formatter.setSummary(received, dropped);
+		return formatter.asString();
+	}
+
+	/**
+	 * thresholds and alarms are written to the output as they are added
+	 */
+	interface Formatter extends OutputFormatter {
+		void start(PrintStream out);
+		void addThreshold(String poolName, String kind, long threshold, Object previousThreshold);
+		void addAlarm(long timestamp, String kind, String poolName, long count, long used, long committed, long max, long threshold);
+		void addDropped(long dropped, long totalDropped);
+		void setSummary(long received, long dropped);
+	}
+
+	static class TextFormatter implements Formatter {
+
+		private PrintStream out;
+		private final StringBuilder summary = new StringBuilder();
+
+		public void start(PrintStream out) {
+			this.out = out;
+		}
+
+		public void addThreshold(String poolName, String kind, long threshold, Object previousThreshold) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("[threshold] ");
+			sb.append(poolName);
+			sb.append(" ");
+			sb.append(kind);
+			sb.append(" ");
+			GetGCEvents.TextFormatter.appendSize(threshold, sb);
+			sb.append(" (was ");
+			sb.append(previousThreshold);
+			sb.append(")");
+			out.println(sb.toString());
+		}
+
+		public void addAlarm(long timestamp, String kind, String poolName, long count, long used, long committed, long max, long threshold) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(timestamp);
+			sb.append(" [");
+			sb.append(kind);
+			sb.append("] ");
+			sb.append(poolName);
+			sb.append(" exceeded ");
+			if (threshold >= 0) {
+				GetGCEvents.TextFormatter.appendSize(threshold, sb);
+				sb.append(" ");
+			}
+			sb.append("(#");
+			sb.append(count);
+			sb.append(") : used ");
+			GetGCEvents.TextFormatter.appendSize(used, sb);
+			sb.append(", committed ");
+			GetGCEvents.TextFormatter.appendSize(committed, sb);
+			if (max >= 0) {
+				sb.append(", max ");
+				GetGCEvents.TextFormatter.appendSize(max, sb);
+				sb.append(" (");
+				sb.append(max > 0 ? used * 100 / max : 0);
+				sb.append("%)");
+			}
+			out.println(sb.toString());
+		}
+
+		public void addDropped(long dropped, long totalDropped) {
+			out.println("[warning] dropped " + dropped + " notifications (" + totalDropped + " in total)");
+		}
+
+		public void setSummary(long received, long dropped) {
+			summary.append("received ");
+			summary.append(received);
+			summary.append(" memory notifications (");
+			summary.append(dropped);
+			summary.append(" dropped)");
+		}
+
+		public String asString() {
+			return summary.toString();
+		}
+
+	}
+
+	/**
+	 * prints one JSON object per line; the type of the object is "memory_threshold", "memory_alarm",
+	 * "jmxconsole.dropped" or "jmxconsole.summary"
+	 */
+	static class JsonFormatter implements Formatter {
+
+		private PrintStream out;
+		private JsonWriter json;
+
+		private final StringBuilder summary = new StringBuilder();
+
+		public void start(PrintStream out) {
+			this.out = out;
+			json = new JsonWriter(out);
+		}
+
+		public void addThreshold(String poolName, String kind, long threshold, Object previousThreshold) {
+			json.beginObject();
+			json.name("type").value("memory_threshold");
+			json.name("timestamp").value(System.currentTimeMillis());
+			json.name("pool").value(poolName);
+			json.name("kind").value(kind);
+			json.name("threshold").value(threshold);
+			json.name("previous_threshold").value(previousThreshold);
+			json.endObject();
+			out.println();
+		}
+
+		public void addAlarm(long timestamp, String kind, String poolName, long count, long used, long committed, long max, long threshold) {
+			json.beginObject();
+			json.name("type").value("memory_alarm");
+			json.name("timestamp").value(timestamp);
+			json.name("pool").value(poolName);
+			json.name("kind").value(kind);
+			json.name("count").value(count);
+			json.name("threshold").value(threshold);
+			json.name("used").value(used);
+			json.name("committed").value(committed);
+			json.name("max").value(max);
+			json.endObject();
+			out.println();
+		}
+
+		public void addDropped(long dropped, long totalDropped) {
+			json.beginObject();
+			json.name("type").value("jmxconsole.dropped");
+			json.name("timestamp").value(System.currentTimeMillis());
+			json.name("dropped").value(dropped);
+			json.name("total_dropped").value(totalDropped);
+			json.endObject();
+			out.println();
+		}
+
+		public void setSummary(long received, long dropped) {
+			new JsonWriter(summary).beginObject()
+				.name("type").value("jmxconsole.summary")
+				.name("received").value(received)
+				.name("dropped").value(dropped)
+				.endObject();
+		}
+
+		public String asString() {
+			return summary.toString();
+		}
+
+	}
+
+}
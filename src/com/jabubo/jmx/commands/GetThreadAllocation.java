@@ -0,0 +1,323 @@
+package com.jabubo.jmx.commands;
+
+import java.io.IOException;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServerConnection;
+
+import org.hitchhackers.tools.jmx.util.AlignedScheduler;
+import org.hitchhackers.tools.jmx.util.JsonWriter;
+import org.hitchhackers.tools.jmx.util.parser.Param;
+import org.hitchhackers.tools.jmx.util.parser.ParameterParser;
+import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
+
+/**
+ * This command samples the number of bytes allocated by each thread and prints the allocation
+ * rates per thread and per group of threads (e.g. all threads of a pool).
+ * 
+ * @author butzi
+ */
+public class GetThreadAllocation extends CommandBase {
+
+	private static final long DEFAULT_INTERVAL = 5;
+	private static final int DEFAULT_TOP_COUNT = 10;
+
+	// seconds between two samples, number of samples to print (0 = forever) and number of threads/groups to print
+	private long interval = DEFAULT_INTERVAL;
+	private long count = 0;
+	private int topCount = DEFAULT_TOP_COUNT;
+	
+	// the first group of this pattern is the name of the group a thread belongs to
+	private Pattern groupPattern = Pattern.compile("(.*?)[-_#\\s]*\\d*");
+	
+	public GetThreadAllocation() {
+		super();
+		addFormatter(CommandBase.OutputType.TEXT, TextFormatter.class);
+		addFormatter(CommandBase.OutputType.JSON, JsonFormatter.class);
+	}
+	
+	@Override
+	public String getUsageHeader() {
+		return 
+			"This tool samples the bytes allocated by each thread every 'interval' seconds and prints the threads and " +
+			"thread groups that allocate the most bytes per second. Threads are grouped by their name without trailing " +
+			"numbers (i.e. all threads of a pool end up in one group) unless you pass your own 'group_pattern'.<br/><br/>" +
+			"Each sample takes one JMX call plus one for the names of threads that have not been seen before. " +
+			"The target VM needs to offer com.sun.management.ThreadMXBean.<br/><br/>" +
+			"Examples:<br/>" +
+			"thread_alloc [...] interval=10 top=20<br/>" +
+			"thread_alloc [...] group_pattern=(http-[^-]+)-.* output_type=JSON";
+	}
+
+	@Override
+	protected void initParams(ParameterParser parser) {
+		parser.addParam(
+			new Param("interval")
+				.setDescription("seconds between two samples (defaults to " + DEFAULT_INTERVAL + ")")
+				.setShortName("i")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+		parser.addParam(
+			new Param("count")
+				.setDescription("number of samples to print (defaults to sampling until the process is stopped)")
+				.setShortName("n")
+				.setValidationPattern(Pattern.compile("\\d+"))
+		);
+		parser.addParam(
+			new Param("top")
+				.setDescription("number of threads and groups to print per sample (defaults to " + DEFAULT_TOP_COUNT + ")")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+		parser.addParam(
+			new Param("group_pattern")
+				.setDescription("regular expression for thread names - the first group is used as name of the thread group")
+		);
+	}
+
+	@Override
+	public void processParams(ParsedCommandLine commandLine) {
+		if (commandLine.hasOption("interval")) {
+			interval = Long.parseLong(commandLine.getOptionValue("interval"));
+		}
+		if (commandLine.hasOption("count")) {
+			count = Long.parseLong(commandLine.getOptionValue("count"));
+		}
+		if (commandLine.hasOption("top")) {
+			topCount = Integer.parseInt(commandLine.getOptionValue("top"));
+		}
+		if (commandLine.hasOption("group_pattern")) {
+			groupPattern = Pattern.compile(commandLine.getOptionValue("group_pattern"));
+			if (groupPattern.matcher("").groupCount() < 1) {
+				throw new IllegalArgumentException("group_pattern needs to contain a group, e.g. (pool-\\d+)-.*");
+			}
+		}
+	}
+
+	@Override
+	public String run() throws Exception {
+		AllocationSampler sampler = new AllocationSampler(getConnection());
+		// the first tick only records the baseline, so we need one more
+		new AlignedScheduler(interval * 1000).run(sampler, (count > 0) ? count + 1 : 0);
+		return "";
+	}
+	
+	String getGroupName(String threadName) {
+		Matcher matcher = groupPattern.matcher(threadName);
+		if (matcher.matches() && matcher.group(1) != null && matcher.group(1).length() > 0) {
+			return matcher.group(1);
+		}
+		return threadName;
+	}
+	
+	class AllocationSampler implements AlignedScheduler.Task {
+		
+		private final RemoteThreadMXBean threadMXBean;
+		
+		// thread names only need to be fetched once per thread
+		private Map<Long, String> threadNames = new HashMap<Long, String>();
+		
+		private Map<Long, Long> previousAllocatedBytes = null;
+		private long previousSampleTime;
+
+		AllocationSampler(MBeanServerConnection connection) {
+			super();
+			threadMXBean = new RemoteThreadMXBean(connection);
+		}
+
+		public void run(long tickTime, long skippedTicks) throws Exception {
+			long[] threadIDs = threadMXBean.getAllThreadIds();
+			long[] allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadIDs);
+			long sampleTime = System.nanoTime();
+			
+			Map<Long, Long> currentAllocatedBytes = new HashMap<Long, Long>();
+			List<Long> unknownThreadIDs = new ArrayList<Long>();
+			for (int i = 0; i < threadIDs.length; i++) {
+				if (allocatedBytes[i] >= 0) {
+					currentAllocatedBytes.put(threadIDs[i], allocatedBytes[i]);
+					if (!threadNames.containsKey(threadIDs[i])) {
+						unknownThreadIDs.add(threadIDs[i]);
+					}
+				}
+			}
+			updateThreadNames(unknownThreadIDs, currentAllocatedBytes);
+			
+			if (previousAllocatedBytes != null) {
+				printRates(tickTime, currentAllocatedBytes, (sampleTime - previousSampleTime) / 1000000000.0);
+			}
+			previousAllocatedBytes = currentAllocatedBytes;
+			previousSampleTime = sampleTime;
+		}
+
+		private void updateThreadNames(List<Long> unknownThreadIDs, Map<Long, Long> currentAllocatedBytes) throws Exception {
+			// forget threads that have died
+			threadNames.keySet().retainAll(currentAllocatedBytes.keySet());
+			if (unknownThreadIDs.isEmpty()) {
+				return;
+			}
+			
+			long[] threadIDs = new long[unknownThreadIDs.size()];
+			for (int i = 0; i < threadIDs.length; i++) {
+				threadIDs[i] = unknownThreadIDs.get(i);
+			}
+			ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(threadIDs, 0);
+			for (int i = 0; i < threadIDs.length; i++) {
+				threadNames.put(threadIDs[i], (threadInfos[i] == null) ? "Thread#" + threadIDs[i] : threadInfos[i].getThreadName());
+			}
+		}
+
+		private void printRates(long tickTime, Map<Long, Long> currentAllocatedBytes, double elapsedSeconds) throws Exception {
+			final Map<Long, Double> rateByThread = new HashMap<Long, Double>();
+			final Map<String, double[]> rateByGroup = new HashMap<String, double[]>();
+			for (Map.Entry<Long, Long> entry : currentAllocatedBytes.entrySet()) {
+				// threads started in between count from 0
+				Long previous = previousAllocatedBytes.get(entry.getKey());
+				double rate = (entry.getValue() - ((previous == null) ? 0 : previous)) / elapsedSeconds;
+				rateByThread.put(entry.getKey(), rate);
+				
+				String groupName = getGroupName(threadNames.get(entry.getKey()));
+				double[] groupRate = rateByGroup.get(groupName);
+				if (groupRate == null) {
+					groupRate = new double[2];
+					rateByGroup.put(groupName, groupRate);
+				}
+				groupRate[0] += rate;
+				groupRate[1]++;
+			}
+			
+			List<Long> threadIDs = new ArrayList<Long>(rateByThread.keySet());
+			Collections.sort(threadIDs, new Comparator<Long>() {
+				public int compare(Long o1, Long o2) {
+					return rateByThread.get(o2).compareTo(rateByThread.get(o1));
+				}
+			});
+			List<String> groupNames = new ArrayList<String>(rateByGroup.keySet());
+			Collections.sort(groupNames, new Comparator<String>() {
+				public int compare(String o1, String o2) {
+					return Double.compare(rateByGroup.get(o2)[0], rateByGroup.get(o1)[0]);
+				}
+			});
+			
+			Formatter formatter = (Formatter) getFormatter();
+			formatter.setSample(tickTime, elapsedSeconds);
+			for (Long threadID : threadIDs.subList(0, Math.min(topCount, threadIDs.size()))) {
+				formatter.addThread(threadID, threadNames.get(threadID), rateByThread.get(threadID));
+			}
+			for (String groupName : groupNames.subList(0, Math.min(topCount, groupNames.size()))) {
+				double[] groupRate = rateByGroup.get(groupName);
+				formatter.addGroup(groupName, (int) groupRate[1], groupRate[0]);
+			}
+			
+			getOut().println(formatter.asString());
+			getOut().flush();
+			if (getOut().checkError()) {
+				throw new IOException("could not write sample - the output has been closed");
+			}
+		}
+		
+	}
+	
+	interface Formatter extends OutputFormatter {
+		void setSample(long timestamp, double elapsedSeconds);
+		void addThread(long threadID, String threadName, double bytesPerSecond);
+		void addGroup(String groupName, int threadCount, double bytesPerSecond);
+	}
+	
+	static class TextFormatter implements Formatter {
+		
+		private final StringBuilder sb = new StringBuilder();
+		private boolean groupsStarted = false;
+
+		public void setSample(long timestamp, double elapsedSeconds) {
+			sb.append(String.format("=== %s - allocation rates over the last %.1fs%n", new Date(timestamp), elapsedSeconds));
+			sb.append(String.format("%-60s %15s%n", "THREAD", "ALLOCATED/S"));
+		}
+
+		public void addThread(long threadID, String threadName, double bytesPerSecond) {
+			sb.append(String.format("%-60s %15s%n", "Thread#" + threadID + " \"" + threadName + "\"", formatBytes(bytesPerSecond)));
+		}
+
+		public void addGroup(String groupName, int threadCount, double bytesPerSecond) {
+			if (!groupsStarted) {
+				groupsStarted = true;
+				sb.append(String.format("%n%-52s %7s %15s%n", "THREAD GROUP", "THREADS", "ALLOCATED/S"));
+			}
+			sb.append(String.format("%-52s %7d %15s%n", groupName, threadCount, formatBytes(bytesPerSecond)));
+		}
+		
+		private static String formatBytes(double bytes) {
+			if (bytes >= 1024 * 1024 * 1024) {
+				return String.format("%.1f GB", bytes / (1024 * 1024 * 1024));
+			} else if (bytes >= 1024 * 1024) {
+				return String.format("%.1f MB", bytes / (1024 * 1024));
+			} else if (bytes >= 1024) {
+				return String.format("%.1f KB", bytes / 1024);
+			}
+			return String.format("%.0f B", bytes);
+		}
+
+		public String asString() {
+			return sb.toString();
+		}
+		
+	}
+	
+	/**
+	 * prints each sample as one line
+	 */
+	static class JsonFormatter implements Formatter {
+		
+		private final StringBuilder sb = new StringBuilder();
+		private final JsonWriter json = new JsonWriter(sb);
+		private boolean groupsStarted = false;
+
+		public void setSample(long timestamp, double elapsedSeconds) {
+			json.beginObject();
+			json.name("timestamp").value(timestamp);
+			json.name("elapsed_seconds").value(elapsedSeconds);
+			json.name("threads").beginArray();
+		}
+
+		public void addThread(long threadID, String threadName, double bytesPerSecond) {
+			json.beginObject();
+			json.name("id").value(threadID);
+			json.name("name").value(threadName);
+			json.name("bytes_per_second").value((long) bytesPerSecond);
+			json.endObject();
+		}
+
+		public void addGroup(String groupName, int threadCount, double bytesPerSecond) {
+			startGroups();
+			json.beginObject();
+			json.name("name").value(groupName);
+			json.name("threads").value(threadCount);
+			json.name("bytes_per_second").value((long) bytesPerSecond);
+			json.endObject();
+		}
+		
+		private void startGroups() {
+			if (!groupsStarted) {
+				groupsStarted = true;
+				json.endArray();
+				json.name("groups").beginArray();
+			}
+		}
+
+		public String asString() {
+			startGroups();
+			json.endArray();
+			json.endObject();
+			return sb.toString();
+		}
+		
+	}
+	
+}
@@ -1,18 +1,31 @@
 package com.jabubo.jmx.commands;
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.LockInfo;
+import java.lang.management.MonitorInfo;
 import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanException;
 import javax.management.MBeanServerConnection;
-import javax.management.MalformedObjectNameException;
-import javax.management.ObjectName;
 import javax.management.ReflectionException;
-import javax.management.openmbean.CompositeDataSupport;
 
+import org.hitchhackers.tools.jmx.util.AlignedScheduler;
+import org.hitchhackers.tools.jmx.util.JsonWriter;
 import org.hitchhackers.tools.jmx.util.parser.Param;
 import org.hitchhackers.tools.jmx.util.parser.ParameterParser;
 import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
@@ -24,13 +37,32 @@ import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
  */
 public class GetThreadInfo extends CommandBase {
 
+	// the params are initialized before the fields, so their descriptions need constants
+	private static final int DEFAULT_STACK_DEPTH = 100;
+	private static final long DEFAULT_INTERVAL = 5;
+
 	private boolean queryCPUInfo = false;
-	private ObjectName threadingObject;
+
+	// maximum number of stack frames queried per thread and whether threads with identical stacks are grouped
+	private int stackDepth = DEFAULT_STACK_DEPTH;
+	private boolean groupStacks = false;
+
+	// settings for the "top" mode: number of threads to show (0 = mode is off), seconds between
+	// two snapshots and number of refreshes (0 = forever)
+	private int topCount = 0;
+	private long interval = DEFAULT_INTERVAL;
+	private long count = 0;
+
+	// analyze locks (deadlocks, blocking chains, contention) over a window of 'interval' seconds
+	private boolean lockAnalysis = false;
 	
-	public GetThreadInfo() throws MalformedObjectNameException, NullPointerException {
+	// maximum number of entries in each list of the lock analysis
+	private static final int MAX_REPORTED_ENTRIES = 10;
+	
+	public GetThreadInfo() {
 		super();
-		
-		threadingObject = ObjectName.getInstance("java.lang:type=Threading");		
+		addFormatter(CommandBase.OutputType.TEXT, TextFormatter.class);
+		addFormatter(CommandBase.OutputType.JSON, JsonFormatter.class);
 	}
 	
 	@Override
@@ -38,8 +70,18 @@ public class GetThreadInfo extends CommandBase {
 		return 
 			"This tool retrieves thread information (current stacktrace, waits/blocks) via JMX and prints them.\n" +
 			"If you turn on the 'cpu_info' option, each thread's CPU consumption is queried and displayed in nanoseconds.\n" +
-			"NOTE: Querying the CPU consumption takes two more separate JMX calls for each listed thread - this might slow down\n" +
-			"your query if the application you connect against has got many threads.";
+			"All threads are queried with a constant number of JMX calls. Only querying the CPU consumption from VMs that do not\n" +
+			"offer com.sun.management.ThreadMXBean takes two more separate JMX calls for each listed thread.\n\n" +
+			"With 'output_type=JSON', each thread (or each stack group) is printed as one JSON object per line while the\n" +
+			"dump is written, so even large dumps can be processed line by line.\n\n" +
+			"With 'group', each distinct stack trace is printed only once together with the threads sharing it, largest\n" +
+			"groups first. Use 'depth' to limit the number of stack frames queried per thread.\n\n" +
+			"With 'top=<n>', the CPU and user time of all threads is sampled every 'interval' seconds and the n threads that\n" +
+			"consumed the most CPU time in between are printed with their CPU percentage and current stack, e.g.\n" +
+			"  thread_info [...] top=5 interval=2\n\n" +
+			"With 'locks', the threads are sampled every second for 'interval' seconds. The report shows deadlocks, the longest\n" +
+			"chains of threads blocking each other, the most contended locks and the block/wait counts during the window, e.g.\n" +
+			"  thread_info [...] locks interval=10";
 	}
 	
 	@Override
@@ -50,72 +92,678 @@ public class GetThreadInfo extends CommandBase {
 				.setShortName("c")
 				.setHasNoValue(true)
 		);
+
+		parser.addParam(
+			new Param("depth")
+				.setDescription("maximum number of stack frames per thread (defaults to " + DEFAULT_STACK_DEPTH + ")")
+				.setValidationPattern(Pattern.compile("\\d+"))
+		);
+
+		parser.addParam(
+			new Param("group")
+				.setDescription("print each distinct stack trace once with all threads sharing it")
+				.setShortName("g")
+				.setHasNoValue(true)
+		);
+
+		parser.addParam(
+			new Param("top")
+				.setDescription("continuously show the <top> threads that consume the most CPU")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+
+		parser.addParam(
+			new Param("interval")
+				.setDescription("seconds between two CPU snapshots in top mode, length of the sampling window for lock analysis (defaults to " + DEFAULT_INTERVAL + ")")
+				.setShortName("i")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+
+		parser.addParam(
+			new Param("locks")
+				.setDescription("analyze deadlocks, blocking chains and lock contention")
+				.setShortName("l")
+				.setHasNoValue(true)
+		);
+
+		parser.addParam(
+			new Param("count")
+				.setDescription("number of refreshes in top mode (defaults to refreshing until the process is stopped)")
+				.setShortName("n")
+				.setValidationPattern(Pattern.compile("\\d+"))
+		);
 	}
 
 	@Override
 	public void processParams(ParsedCommandLine commandLine) {
 		queryCPUInfo = commandLine.hasOption("cpu_info");
+		groupStacks = commandLine.hasOption("group");
+		if (commandLine.hasOption("depth")) {
+			stackDepth = Integer.parseInt(commandLine.getOptionValue("depth"));
+		}
+		if (commandLine.hasOption("top")) {
+			topCount = Integer.parseInt(commandLine.getOptionValue("top"));
+		}
+		if (commandLine.hasOption("interval")) {
+			interval = Long.parseLong(commandLine.getOptionValue("interval"));
+		}
+		if (commandLine.hasOption("count")) {
+			count = Long.parseLong(commandLine.getOptionValue("count"));
+		}
+		lockAnalysis = commandLine.hasOption("locks");
+		if (lockAnalysis && topCount > 0) {
+			throw new IllegalArgumentException("please use either 'top' or 'locks'");
+		}
+		if ((lockAnalysis || topCount > 0) && getOutputType() != CommandBase.OutputType.TEXT) {
+			throw new IllegalArgumentException("'top' and 'locks' only support text output");
+		}
 	}
 
 	@Override
 	public String run() throws Exception {
-		JMXRetriever retriever = new JMXRetriever();
-		String result = retriever.getThreadInformation(getConnection());
-		return result;
+		if (topCount > 0) {
+			new TopRetriever().run(getConnection());
+			return "";
+		}
+		
+		if (lockAnalysis) {
+			return new LockAnalysisRetriever().run(getConnection());
+		}
+		
+		Formatter formatter = (Formatter) getFormatter();
+		new JMXRetriever().getThreadInformation(getConnection(), formatter);
+		getOut().flush();
+		if (getOut().checkError()) {
+			throw new IOException("could not write thread information - the output has been closed");
+		}
+		return formatter.asString();
 	}
 
 	class JMXRetriever {	
 		
-		public String getThreadInformation(MBeanServerConnection theConnection)
+		public void getThreadInformation(MBeanServerConnection theConnection, Formatter formatter)
 				throws MBeanException, AttributeNotFoundException,
 				InstanceNotFoundException, ReflectionException, IOException {
-			StringBuffer theResult = new StringBuffer();
-			// retrieve all thread IDs
-			// TODO this should be easier by calling dumpThreads
-			long[] threadIDs = (long[]) theConnection.getAttribute(threadingObject, "AllThreadIds");
+			RemoteThreadMXBean threadMXBean = new RemoteThreadMXBean(theConnection);
 	
+			// retrieve all thread IDs and the details of all threads in one call each
+			long[] threadIDs = threadMXBean.getAllThreadIds();
 			Arrays.sort(threadIDs);
+			ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(threadIDs, stackDepth);
 			
-			for (long threadID : threadIDs) {
-				// separate JMX call for obtaining thread detail information
-				CompositeDataSupport result = (CompositeDataSupport) theConnection.invoke(
-						threadingObject, 
-						"getThreadInfo", 
-						new Object[] { threadID, 100 }, 
-						new String[] { "long", "int" } );
-				
+			long[] cpuTimes = null;
+			long[] userTimes = null;
+			if (queryCPUInfo) {
+				cpuTimes = threadMXBean.getThreadCpuTime(threadIDs);
+				userTimes = threadMXBean.getThreadUserTime(threadIDs);
+			}
+			
+			formatter.start(getOut(), queryCPUInfo);
+			if (groupStacks) {
+				addGroupedThreadInformation(threadInfos, cpuTimes, userTimes, formatter);
+				return;
+			}
+			
+			for (int i = 0; i < threadIDs.length; i++) {
 				// it's possible that the thread does not exist anymore at this moment
-				if (result != null) {	
-					ThreadInfo threadInfo = ThreadInfo.from(result);
-	
-					// assemble the output for printing
-					StringBuilder sb = new StringBuilder();
-					printThreadInfo(theConnection, threadInfo, sb);
-					if (queryCPUInfo) {
-						getAndPrintThreadCPUInfo(theConnection, threadingObject, threadID, sb);
+				if (threadInfos[i] != null) {	
+					formatter.addThread(threadInfos[i], queryCPUInfo ? cpuTimes[i] : -1, queryCPUInfo ? userTimes[i] : -1);
+				}
+			}
+		}
+		
+		/**
+		 * adds each distinct stack once, along with all threads that share it (largest groups first)
+		 */
+		private void addGroupedThreadInformation(ThreadInfo[] threadInfos, long[] cpuTimes, long[] userTimes, Formatter formatter) {
+			// equal stack trace elements are interned, so comparing stacks mostly compares references
+			Map<StackTraceElement, StackTraceElement> internedElements = new HashMap<StackTraceElement, StackTraceElement>();
+			Map<StackTraceKey, List<Integer>> threadIndexesByStack = new HashMap<StackTraceKey, List<Integer>>();
+			
+			for (int i = 0; i < threadInfos.length; i++) {
+				if (threadInfos[i] == null) {
+					continue;
+				}
+				StackTraceElement[] stackTrace = threadInfos[i].getStackTrace();
+				for (int j = 0; j < stackTrace.length; j++) {
+					StackTraceElement interned = internedElements.get(stackTrace[j]);
+					if (interned == null) {
+						internedElements.put(stackTrace[j], stackTrace[j]);
+					} else {
+						stackTrace[j] = interned;
+					}
+				}
+				
+				StackTraceKey key = new StackTraceKey(stackTrace);
+				List<Integer> threadIndexes = threadIndexesByStack.get(key);
+				if (threadIndexes == null) {
+					threadIndexes = new ArrayList<Integer>();
+					threadIndexesByStack.put(key, threadIndexes);
+				}
+				threadIndexes.add(i);
+			}
+			
+			List<Map.Entry<StackTraceKey, List<Integer>>> groups = 
+				new ArrayList<Map.Entry<StackTraceKey, List<Integer>>>(threadIndexesByStack.entrySet());
+			Collections.sort(groups, new Comparator<Map.Entry<StackTraceKey, List<Integer>>>() {
+				public int compare(Map.Entry<StackTraceKey, List<Integer>> o1, Map.Entry<StackTraceKey, List<Integer>> o2) {
+					return o2.getValue().size() - o1.getValue().size();
+				}
+			});
+			
+			for (Map.Entry<StackTraceKey, List<Integer>> group : groups) {
+				List<Integer> threadIndexes = group.getValue();
+				ThreadInfo[] groupInfos = new ThreadInfo[threadIndexes.size()];
+				long[] groupCPUTimes = new long[threadIndexes.size()];
+				long[] groupUserTimes = new long[threadIndexes.size()];
+				for (int i = 0; i < groupInfos.length; i++) {
+					int threadIndex = threadIndexes.get(i);
+					groupInfos[i] = threadInfos[threadIndex];
+					groupCPUTimes[i] = queryCPUInfo ? cpuTimes[threadIndex] : -1;
+					groupUserTimes[i] = queryCPUInfo ? userTimes[threadIndex] : -1;
+				}
+				formatter.addStackGroup(group.getKey().elements, groupInfos, groupCPUTimes, groupUserTimes);
+			}
+		}
+	}
+
+	/**
+	 * a complete stack trace as map key; the hash code is computed once only
+	 */
+	static final class StackTraceKey {
+		
+		final StackTraceElement[] elements;
+		private final int hashCode;
+		
+		StackTraceKey(StackTraceElement[] elements) {
+			this.elements = elements;
+			this.hashCode = Arrays.hashCode(elements);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return (obj instanceof StackTraceKey) && Arrays.equals(elements, ((StackTraceKey) obj).elements);
+		}
+		
+	}
+
+	/**
+	 * samples the CPU times of all threads and prints the hottest ones after each sample
+	 */
+	class TopRetriever implements AlignedScheduler.Task {
+		
+		private RemoteThreadMXBean threadMXBean;
+		
+		// CPU and user times of the previous snapshot by thread ID
+		private Map<Long, long[]> previousTimes = null;
+		private long previousSampleTime;
+		
+		public void run(MBeanServerConnection theConnection) throws Exception {
+			threadMXBean = new RemoteThreadMXBean(theConnection);
+			
+			// the first tick only records the baseline, so we need one more
+			new AlignedScheduler(interval * 1000).run(this, (count > 0) ? count + 1 : 0);
+		}
+
+		public void run(long tickTime, long skippedTicks) throws Exception {
+			long[] threadIDs = threadMXBean.getAllThreadIds();
+			long[] cpuTimes = threadMXBean.getThreadCpuTime(threadIDs);
+			long[] userTimes = threadMXBean.getThreadUserTime(threadIDs);
+			long sampleTime = System.nanoTime();
+			
+			Map<Long, long[]> times = new HashMap<Long, long[]>();
+			for (int i = 0; i < threadIDs.length; i++) {
+				// -1 means the thread is not alive anymore or CPU time measurement is disabled
+				if (cpuTimes[i] >= 0) {
+					times.put(threadIDs[i], new long[] { cpuTimes[i], userTimes[i] });
+				}
+			}
+			
+			if (previousTimes != null) {
+				printTopThreads(tickTime, times, sampleTime - previousSampleTime);
+			}
+			previousTimes = times;
+			previousSampleTime = sampleTime;
+		}
+
+		private void printTopThreads(long tickTime, Map<Long, long[]> times, long elapsedNanos) throws Exception {
+			// CPU and user time consumed since the last snapshot; threads started in between count from 0
+			final Map<Long, long[]> deltas = new HashMap<Long, long[]>();
+			for (Map.Entry<Long, long[]> entry : times.entrySet()) {
+				long[] previous = previousTimes.get(entry.getKey());
+				long[] current = entry.getValue();
+				if (previous == null) {
+					deltas.put(entry.getKey(), current);
+				} else {
+					deltas.put(entry.getKey(), new long[] { current[0] - previous[0], current[1] - previous[1] });
+				}
+			}
+			
+			List<Long> threadIDs = new ArrayList<Long>(deltas.keySet());
+			Collections.sort(threadIDs, new Comparator<Long>() {
+				public int compare(Long o1, Long o2) {
+					long cpu1 = deltas.get(o1)[0];
+					long cpu2 = deltas.get(o2)[0];
+					return (cpu1 < cpu2) ? 1 : ((cpu1 == cpu2) ? 0 : -1);
+				}
+			});
+			if (threadIDs.size() > topCount) {
+				threadIDs = threadIDs.subList(0, topCount);
+			}
+			
+			long[] topThreadIDs = new long[threadIDs.size()];
+			for (int i = 0; i < topThreadIDs.length; i++) {
+				topThreadIDs[i] = threadIDs.get(i);
+			}
+			ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(topThreadIDs, stackDepth);
+			
+			StringBuilder sb = new StringBuilder();
+			sb.append("=== ");
+			sb.append(new Date(tickTime));
+			sb.append(" - top ");
+			sb.append(topThreadIDs.length);
+			sb.append(" of ");
+			sb.append(times.size());
+			sb.append(" threads by CPU usage over the last ");
+			sb.append(elapsedNanos / 1000000);
+			sb.append("ms\n\n");
+			for (int i = 0; i < topThreadIDs.length; i++) {
+				if (threadInfos[i] == null) {
+					continue;
+				}
+				long[] delta = deltas.get(topThreadIDs[i]);
+				TextFormatter.printThreadInfo(threadInfos[i], sb);
+				sb.append("CPU(User/Total): ");
+				sb.append(String.format("%.1f%%/%.1f%%", 
+						100.0 * delta[1] / elapsedNanos, 
+						100.0 * delta[0] / elapsedNanos));
+				sb.append("\n");
+				TextFormatter.printStackTrace(threadInfos[i].getStackTrace(), sb);
+				sb.append("\n");
+			}
+			
+			getOut().print(sb.toString());
+			getOut().flush();
+			if (getOut().checkError()) {
+				throw new IOException("could not write thread information - the output has been closed");
+			}
+		}
+		
+	}
+
+	/**
+	 * samples all threads including their locks and builds the wait-for graph locally
+	 */
+	class LockAnalysisRetriever implements AlignedScheduler.Task {
+		
+		private RemoteThreadMXBean threadMXBean;
+		
+		private Map<Long, ThreadInfo> firstSnapshot = null;
+		private Map<Long, ThreadInfo> lastSnapshot = null;
+		private int snapshotCount = 0;
+		private long firstTickTime;
+		private long lastTickTime;
+		
+		// the monitors and synchronizers held by the deadlocked threads and the heads of the blocking chains
+		private Map<Long, ThreadInfo> lockDetails = new HashMap<Long, ThreadInfo>();
+		
+		// per lock: number of snapshots in which threads waited for it, sum and maximum of waiting threads
+		private final Map<String, long[]> contentionByLock = new HashMap<String, long[]>();
+		
+		public String run(MBeanServerConnection theConnection) throws Exception {
+			threadMXBean = new RemoteThreadMXBean(theConnection);
+			new AlignedScheduler(1000).run(this, interval + 1);
+			long[] deadlockedThreadIDs = threadMXBean.findDeadlockedThreads();
+			List<List<Long>> chains = findBlockingChains();
+			fetchLockDetails(deadlockedThreadIDs, chains);
+			
+			StringBuilder sb = new StringBuilder();
+			sb.append("=== lock analysis over ");
+			// ticks may have been skipped if the target is slow
+			sb.append(String.format("%.1f", (lastTickTime - firstTickTime) / 1000.0));
+			sb.append("s (");
+			sb.append(snapshotCount);
+			sb.append(" snapshots)\n\n");
+			printDeadlocks(deadlockedThreadIDs, sb);
+			printBlockingChains(chains, sb);
+			printContendedLocks(sb);
+			printBlockedWaitedDeltas(sb);
+			return sb.toString();
+		}
+
+		public void run(long tickTime, long skippedTicks) throws Exception {
+			// lock name, owner and counts only - neither stacks nor held locks, which would make every
+			// snapshot considerably more expensive for the target VM (they are fetched once at the end)
+			ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds(), 0);
+			
+			Map<Long, ThreadInfo> snapshot = new HashMap<Long, ThreadInfo>();
+			Map<String, Integer> waitersByLock = new HashMap<String, Integer>();
+			for (ThreadInfo threadInfo : threadInfos) {
+				if (threadInfo == null) {
+					continue;
+				}
+				snapshot.put(threadInfo.getThreadId(), threadInfo);
+				if (threadInfo.getLockOwnerId() != -1 && threadInfo.getLockName() != null) {
+					Integer waiters = waitersByLock.get(threadInfo.getLockName());
+					waitersByLock.put(threadInfo.getLockName(), (waiters == null) ? 1 : waiters + 1);
+				}
+			}
+			
+			for (Map.Entry<String, Integer> entry : waitersByLock.entrySet()) {
+				long[] contention = contentionByLock.get(entry.getKey());
+				if (contention == null) {
+					contention = new long[3];
+					contentionByLock.put(entry.getKey(), contention);
+				}
+				contention[0]++;
+				contention[1] += entry.getValue();
+				contention[2] = Math.max(contention[2], entry.getValue());
+			}
+			
+			if (firstSnapshot == null) {
+				firstSnapshot = snapshot;
+				firstTickTime = tickTime;
+			}
+			lastSnapshot = snapshot;
+			lastTickTime = tickTime;
+			snapshotCount++;
+		}
+		
+		/**
+		 * fetches the monitors and synchronizers held by the deadlocked threads and the heads of the
+		 * reported chains with a single call
+		 */
+		private void fetchLockDetails(long[] deadlockedThreadIDs, List<List<Long>> chains) throws Exception {
+			Set<Long> threadIDs = new LinkedHashSet<Long>();
+			for (long threadID : deadlockedThreadIDs) {
+				threadIDs.add(threadID);
+			}
+			for (List<Long> chain : chains.subList(0, Math.min(chains.size(), MAX_REPORTED_ENTRIES))) {
+				threadIDs.add(chain.get(chain.size() - 1));
+			}
+			if (threadIDs.isEmpty()) {
+				return;
+			}
+			long[] ids = new long[threadIDs.size()];
+			int i = 0;
+			for (Long threadID : threadIDs) {
+				ids[i++] = threadID;
+			}
+			for (ThreadInfo threadInfo : threadMXBean.getThreadInfo(ids, true, true)) {
+				if (threadInfo != null) {
+					lockDetails.put(threadInfo.getThreadId(), threadInfo);
+				}
+			}
+		}
+		
+		/**
+		 * appends one line per monitor (with the frame it has been locked in) and synchronizer the thread holds
+		 */
+		private void appendHeldLocks(long threadID, String indent, StringBuilder sb) {
+			ThreadInfo threadInfo = lockDetails.get(threadID);
+			if (threadInfo == null) {
+				return;
+			}
+			for (MonitorInfo monitorInfo : threadInfo.getLockedMonitors()) {
+				sb.append(indent);
+				sb.append("holds ");
+				sb.append(monitorInfo);
+				if (monitorInfo.getLockedStackFrame() != null) {
+					sb.append(" locked in ");
+					sb.append(monitorInfo.getLockedStackFrame());
+				}
+				sb.append("\n");
+			}
+			for (LockInfo lockInfo : threadInfo.getLockedSynchronizers()) {
+				sb.append(indent);
+				sb.append("holds ");
+				sb.append(lockInfo);
+				sb.append("\n");
+			}
+		}
+
+		private void printDeadlocks(long[] deadlockedThreadIDs, StringBuilder sb) {
+			sb.append("Deadlocks:\n");
+			if (deadlockedThreadIDs.length == 0) {
+				sb.append("  none found\n\n");
+				return;
+			}
+			
+			// split the deadlocked threads into cycles by following the wait-for edges
+			Set<Long> printed = new HashSet<Long>();
+			int cycleNumber = 0;
+			for (long threadID : deadlockedThreadIDs) {
+				if (printed.contains(threadID)) {
+					continue;
+				}
+				List<Long> path = followWaitForEdges(threadID);
+				Long last = path.get(path.size() - 1);
+				ThreadInfo lastInfo = lastSnapshot.get(last);
+				int cycleStart = (lastInfo == null) ? -1 : path.indexOf(lastInfo.getLockOwnerId());
+				
+				sb.append("  deadlock #");
+				sb.append(++cycleNumber);
+				sb.append(":\n");
+				for (int i = Math.max(cycleStart, 0); i < path.size(); i++) {
+					printed.add(path.get(i));
+					ThreadInfo threadInfo = lastSnapshot.get(path.get(i));
+					sb.append("    ");
+					if (threadInfo == null) {
+						sb.append("Thread#");
+						sb.append(path.get(i));
+						sb.append(" (not alive anymore)\n");
+						continue;
+					}
+					appendThreadName(threadInfo.getThreadId(), threadInfo.getThreadName(), sb);
+					sb.append(" waits for ");
+					sb.append(threadInfo.getLockName());
+					sb.append(" held by ");
+					appendThreadName(threadInfo.getLockOwnerId(), threadInfo.getLockOwnerName(), sb);
+					sb.append("\n");
+					appendHeldLocks(threadInfo.getThreadId(), "      ", sb);
+				}
+			}
+			sb.append("\n");
+		}
+
+		/**
+		 * follows the chain of lock owners starting at the passed thread until a thread is not waiting 
+		 * for a lock or a thread is reached a second time
+		 */
+		private List<Long> followWaitForEdges(long threadID) {
+			Set<Long> path = new LinkedHashSet<Long>();
+			Long current = threadID;
+			while (current != null && path.add(current)) {
+				ThreadInfo threadInfo = lastSnapshot.get(current);
+				current = (threadInfo == null || threadInfo.getLockOwnerId() == -1) ? null : threadInfo.getLockOwnerId();
+			}
+			return new ArrayList<Long>(path);
+		}
+
+		private List<List<Long>> findBlockingChains() {
+			// chains start at threads that wait for a lock, but nobody waits for
+			Set<Long> lockOwners = new HashSet<Long>();
+			for (ThreadInfo threadInfo : lastSnapshot.values()) {
+				if (threadInfo.getLockOwnerId() != -1) {
+					lockOwners.add(threadInfo.getLockOwnerId());
+				}
+			}
+			
+			List<List<Long>> chains = new ArrayList<List<Long>>();
+			for (ThreadInfo threadInfo : lastSnapshot.values()) {
+				if (threadInfo.getLockOwnerId() != -1 && !lockOwners.contains(threadInfo.getThreadId())) {
+					chains.add(followWaitForEdges(threadInfo.getThreadId()));
+				}
+			}
+			Collections.sort(chains, new Comparator<List<Long>>() {
+				public int compare(List<Long> o1, List<Long> o2) {
+					return o2.size() - o1.size();
+				}
+			});
+			return chains;
+		}
+
+		private void printBlockingChains(List<List<Long>> chains, StringBuilder sb) {
+			sb.append("Longest blocking chains:\n");
+			if (chains.isEmpty()) {
+				sb.append("  none found\n");
+			}
+			for (List<Long> chain : chains.subList(0, Math.min(chains.size(), MAX_REPORTED_ENTRIES))) {
+				sb.append("  ");
+				for (int i = 0; i < chain.size(); i++) {
+					ThreadInfo threadInfo = lastSnapshot.get(chain.get(i));
+					if (i > 0) {
+						sb.append(" -> ");
+					}
+					appendThreadName(chain.get(i), (threadInfo == null) ? null : threadInfo.getThreadName(), sb);
+					if (threadInfo != null && threadInfo.getLockOwnerId() != -1) {
+						sb.append(" [");
+						sb.append(threadInfo.getLockName());
+						sb.append("]");
 					}
-					printStackTrace(threadInfo.getStackTrace(), sb);
-					
-					theResult.append(sb.toString());
-					theResult.append("\n");
 				}
+				sb.append("\n");
+				// the head of the chain is what all the others are waiting for
+				appendHeldLocks(chain.get(chain.size() - 1), "    ", sb);
+			}
+			sb.append("\n");
+		}
+
+		private void printContendedLocks(StringBuilder sb) {
+			List<Map.Entry<String, long[]>> locks = new ArrayList<Map.Entry<String, long[]>>(contentionByLock.entrySet());
+			Collections.sort(locks, new Comparator<Map.Entry<String, long[]>>() {
+				public int compare(Map.Entry<String, long[]> o1, Map.Entry<String, long[]> o2) {
+					return Long.valueOf(o2.getValue()[1]).compareTo(o1.getValue()[1]);
+				}
+			});
+			
+			sb.append("Most contended locks:\n");
+			if (locks.isEmpty()) {
+				sb.append("  none found\n");
 			}
-			return theResult.toString();
+			for (Map.Entry<String, long[]> lock : locks.subList(0, Math.min(locks.size(), MAX_REPORTED_ENTRIES))) {
+				long[] contention = lock.getValue();
+				sb.append("  ");
+				sb.append(lock.getKey());
+				sb.append(String.format(" : %.1f waiting threads on average (max %d), contended in %d of %d snapshots\n", 
+						(double) contention[1] / snapshotCount, contention[2], contention[0], snapshotCount));
+			}
+			sb.append("\n");
+		}
+
+		private void printBlockedWaitedDeltas(StringBuilder sb) {
+			final Map<Long, long[]> deltas = new HashMap<Long, long[]>();
+			for (ThreadInfo threadInfo : lastSnapshot.values()) {
+				ThreadInfo first = firstSnapshot.get(threadInfo.getThreadId());
+				long blocked = threadInfo.getBlockedCount() - ((first == null) ? 0 : first.getBlockedCount());
+				long waited = threadInfo.getWaitedCount() - ((first == null) ? 0 : first.getWaitedCount());
+				if (blocked > 0 || waited > 0) {
+					deltas.put(threadInfo.getThreadId(), new long[] { blocked, waited });
+				}
+			}
+			
+			List<Long> threadIDs = new ArrayList<Long>(deltas.keySet());
+			Collections.sort(threadIDs, new Comparator<Long>() {
+				public int compare(Long o1, Long o2) {
+					long[] d1 = deltas.get(o1);
+					long[] d2 = deltas.get(o2);
+					int result = Long.valueOf(d2[0]).compareTo(d1[0]);
+					return (result != 0) ? result : Long.valueOf(d2[1]).compareTo(d1[1]);
+				}
+			});
+			
+			sb.append("Blocked/waiting during the window:\n");
+			if (threadIDs.isEmpty()) {
+				sb.append("  none found\n");
+			}
+			for (Long threadID : threadIDs.subList(0, Math.min(threadIDs.size(), MAX_REPORTED_ENTRIES))) {
+				sb.append("  ");
+				appendThreadName(threadID, lastSnapshot.get(threadID).getThreadName(), sb);
+				sb.append(" : +");
+				sb.append(deltas.get(threadID)[0]);
+				sb.append("/+");
+				sb.append(deltas.get(threadID)[1]);
+				sb.append("\n");
+			}
+		}
+
+		private void appendThreadName(long threadID, String threadName, StringBuilder sb) {
+			sb.append("Thread#");
+			sb.append(threadID);
+			if (threadName != null) {
+				sb.append(" \"");
+				sb.append(threadName);
+				sb.append("\"");
+			}
+		}
+		
+	}
+	
+	/**
+	 * threads are written to the output as they are added, so a large dump is never kept as a whole
+	 */
+	interface Formatter extends OutputFormatter {
+		void start(PrintStream out, boolean withCPUInfo);
+		void addThread(ThreadInfo threadInfo, long cpuTime, long userTime);
+		void addStackGroup(StackTraceElement[] stackTrace, ThreadInfo[] threadInfos, long[] cpuTimes, long[] userTimes);
+	}
+	
+	static class TextFormatter implements Formatter {
+		
+		private PrintStream out;
+		private boolean withCPUInfo;
+
+		public void start(PrintStream out, boolean withCPUInfo) {
+			this.out = out;
+			this.withCPUInfo = withCPUInfo;
+		}
+
+		public void addThread(ThreadInfo threadInfo, long cpuTime, long userTime) {
+			StringBuilder sb = new StringBuilder();
+			printThreadInfo(threadInfo, sb);
+			if (withCPUInfo) {
+				printThreadCPUInfo(cpuTime, userTime, sb);
+			}
+			printStackTrace(threadInfo.getStackTrace(), sb);
+			sb.append("\n");
+			out.print(sb.toString());
+		}
+
+		public void addStackGroup(StackTraceElement[] stackTrace, ThreadInfo[] threadInfos, long[] cpuTimes, long[] userTimes) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("=== ");
+			sb.append(threadInfos.length);
+			sb.append((threadInfos.length == 1) ? " thread" : " threads");
+			sb.append(" with this stack:\n");
+			for (int i = 0; i < threadInfos.length; i++) {
+				sb.append("Thread#");
+				sb.append(threadInfos[i].getThreadId());
+				sb.append(" \"");
+				sb.append(threadInfos[i].getThreadName());
+				sb.append("\" ");
+				sb.append(threadInfos[i].getThreadState());
+				if (withCPUInfo) {
+					sb.append(" ");
+					printThreadCPUInfo(cpuTimes[i], userTimes[i], sb);
+				} else {
+					sb.append("\n");
+				}
+			}
+			printStackTrace(stackTrace, sb);
+			sb.append("\n");
+			out.print(sb.toString());
+		}
+
+		public String asString() {
+			return "";
 		}
 	
-		private void getAndPrintThreadCPUInfo(MBeanServerConnection theConnection, ObjectName threadingObject, long threadID, StringBuilder sb) throws InstanceNotFoundException, MBeanException, ReflectionException, IOException {
-			Long cpuTime = (Long) theConnection.invoke(
-					threadingObject, 
-					"getThreadCpuTime", 
-					new Object[] { threadID }, 
-					new String[] { "long" }
-			);
-			Long userTime = (Long) theConnection.invoke(
-					threadingObject,
-					"getThreadUserTime",
-					new Object[] { threadID },
-					new String[] { "long" }
-			);
+		static void printThreadCPUInfo(long cpuTime, long userTime, StringBuilder sb) {
 			sb.append("CPU(User/Total): ");
 			sb.append(userTime);
 			sb.append("/");
@@ -123,7 +771,7 @@ public class GetThreadInfo extends CommandBase {
 			sb.append("\n");
 		}
 	
-		private void printThreadInfo(MBeanServerConnection theConnection, ThreadInfo threadInfo, StringBuilder sb) {
+		static void printThreadInfo(ThreadInfo threadInfo, StringBuilder sb) {
 			sb.append("Thread");
 			sb.append("#");
 			sb.append(threadInfo.getThreadId());
@@ -138,23 +786,11 @@ public class GetThreadInfo extends CommandBase {
 					sb.append("  (owned by: Thread#");
 					sb.append(threadInfo.getLockOwnerId());
 									
-					// get the name of the thread that is blocking
-					try {
-						CompositeDataSupport result = (CompositeDataSupport) theConnection.invoke(
-								threadingObject, 
-								"getThreadInfo", 
-								new Object[] { threadInfo.getLockOwnerId(), 100 }, 
-								new String[] { "long", "int" } );
-						
-						// it's possible that the thread does not exist anymore at this moment
-						if (result != null) {	
-							ThreadInfo blockingThread = ThreadInfo.from(result);
-							sb.append(" \"");
-							sb.append(blockingThread.getThreadName());
-							sb.append("\"");
-						}
-					} catch (Exception e) {
-						System.err.println("could not obtain information about blocking thread with ID " + threadInfo.getLockOwnerId());
+					// the name of the thread that is blocking is part of the same snapshot
+					if (threadInfo.getLockOwnerName() != null) {
+						sb.append(" \"");
+						sb.append(threadInfo.getLockOwnerName());
+						sb.append("\"");
 					} 
 					sb.append(")");
 				}
@@ -168,7 +804,7 @@ public class GetThreadInfo extends CommandBase {
 			sb.append("\n");
 		}
 		
-		private void printStackTrace(StackTraceElement[] stackTraceElements, StringBuilder sb) {
+		static void printStackTrace(StackTraceElement[] stackTraceElements, StringBuilder sb) {
 			for (StackTraceElement stackTraceElement : stackTraceElements) {
 				sb.append("  ");
 				sb.append(stackTraceElement.getClassName());
@@ -185,6 +821,87 @@ public class GetThreadInfo extends CommandBase {
 				sb.append(")\n");
 			}
 		}
+		
+	}
+	
+	/**
+	 * prints one JSON object per thread (or per stack group) and line
+	 */
+	static class JsonFormatter implements Formatter {
+		
+		private PrintStream out;
+		private JsonWriter json;
+		private boolean withCPUInfo;
+
+		public void start(PrintStream out, boolean withCPUInfo) {
+			this.out = out;
+			this.json = new JsonWriter(out);
+			this.withCPUInfo = withCPUInfo;
+		}
+
+		public void addThread(ThreadInfo threadInfo, long cpuTime, long userTime) {
+			json.beginObject();
+			writeThread(threadInfo, cpuTime, userTime);
+			writeStackTrace(threadInfo.getStackTrace());
+			json.endObject();
+			out.println();
+		}
+
+		public void addStackGroup(StackTraceElement[] stackTrace, ThreadInfo[] threadInfos, long[] cpuTimes, long[] userTimes) {
+			json.beginObject();
+			json.name("thread_count").value(threadInfos.length);
+			json.name("threads").beginArray();
+			for (int i = 0; i < threadInfos.length; i++) {
+				json.beginObject();
+				writeThread(threadInfos[i], cpuTimes[i], userTimes[i]);
+				json.endObject();
+			}
+			json.endArray();
+			writeStackTrace(stackTrace);
+			json.endObject();
+			out.println();
+		}
+		
+		private void writeThread(ThreadInfo threadInfo, long cpuTime, long userTime) {
+			json.name("id").value(threadInfo.getThreadId());
+			json.name("name").value(threadInfo.getThreadName());
+			json.name("state").value(threadInfo.getThreadState().name());
+			if (threadInfo.getLockName() != null && ! "".equals(threadInfo.getLockName())) {
+				json.name("lock_name").value(threadInfo.getLockName());
+				if (threadInfo.getLockOwnerId() != -1) {
+					json.name("lock_owner_id").value(threadInfo.getLockOwnerId());
+					json.name("lock_owner_name").value(threadInfo.getLockOwnerName());
+				}
+			}
+			json.name("blocked_count").value(threadInfo.getBlockedCount());
+			json.name("waited_count").value(threadInfo.getWaitedCount());
+			if (withCPUInfo) {
+				json.name("cpu_time").value(cpuTime);
+				json.name("user_time").value(userTime);
+			}
+		}
+		
+		private void writeStackTrace(StackTraceElement[] stackTraceElements) {
+			json.name("stack").beginArray();
+			for (StackTraceElement stackTraceElement : stackTraceElements) {
+				json.beginObject();
+				json.name("class").value(stackTraceElement.getClassName());
+				json.name("method").value(stackTraceElement.getMethodName());
+				if (stackTraceElement.isNativeMethod()) {
+					json.name("native").value(true);
+				} else {
+					json.name("file").value(stackTraceElement.getFileName());
+					json.name("line").value(stackTraceElement.getLineNumber());
+				}
+				json.endObject();
+			}
+			json.endArray();
+		}
+
+		public String asString() {
+			return "";
+		}
+		
 	}
 	
 }
\ No newline at end of file
@@ -10,6 +10,7 @@ import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 
 import org.hitchhackers.tools.jmx.commands.dto.OperationObject;
+import org.hitchhackers.tools.jmx.util.JsonWriter;
 import org.hitchhackers.tools.jmx.util.TypeConversionHelper;
 import org.hitchhackers.tools.jmx.util.parser.Param;
 import org.hitchhackers.tools.jmx.util.parser.ParameterParser;
@@ -25,7 +26,11 @@ public class InvokeOperation extends CommandBase {
 	private Collection<OperationObject> operationNames = new ArrayList<OperationObject>();
 	private Collection<String> params = new ArrayList<String>();
 	
-	// TODO add JSON formatter here
+	public InvokeOperation() {
+		super();
+		addFormatter(CommandBase.OutputType.TEXT, TextFormatter.class);
+		addFormatter(CommandBase.OutputType.JSON, JsonFormatter.class);
+	}
 	
 	@Override
 	public String getUsageHeader() {
@@ -85,18 +90,16 @@ public class InvokeOperation extends CommandBase {
 
 	@Override
 	public String run() throws Exception {
-		String resultString = "";
+		Formatter formatter = (Formatter) getFormatter();
 		for (OperationObject operationObject : operationNames) {
 //			try {
 				// let's see if we have this operation
-				MBeanInfo beanInfo = getConnection().getMBeanInfo(operationObject.getObjectName());
-				MBeanOperationInfo[] operations = beanInfo.getOperations();
-				MBeanOperationInfo myOperationInfo = null;
-				for (MBeanOperationInfo beanOperationInfo : operations) {
-					if (beanOperationInfo.getName().equals(operationObject.getOperationName())) {
-						myOperationInfo = beanOperationInfo;
-						break;
-					}
+				MBeanOperationInfo myOperationInfo = findOperation(
+						getMBeanInfo(operationObject.getObjectName(), false), operationObject.getOperationName());
+				if (myOperationInfo == null) {
+					// the cached MBeanInfo might be outdated
+					myOperationInfo = findOperation(
+							getMBeanInfo(operationObject.getObjectName(), true), operationObject.getOperationName());
 				}
 				
 				if (myOperationInfo == null)
@@ -118,7 +121,7 @@ public class InvokeOperation extends CommandBase {
 						paramTypes[idx] = paramInfo.getType();
 						idx++;
 					} catch (IllegalArgumentException e) {
-						System.err.println("[error] could not convert value '" + paramsArray[idx] + "' into a valid value object for parameter '" + paramInfo.getName() + "'; sorry.");
+						throw new IllegalArgumentException("could not convert value '" + paramsArray[idx] + "' into a valid value object for parameter '" + paramInfo.getName() + "'");
 					}
 				}
 				
@@ -128,17 +131,76 @@ public class InvokeOperation extends CommandBase {
 						convertedParams,
 						paramTypes
 				);
-				System.out.println("[ok] method '" + operationObject.getOperationName() + "' has been invoked successfully.");
-				if (result != null) {
-					resultString = result.toString();
-				}
+				formatter.addResult(operationObject.getObjectName(), myOperationInfo, result);
 			// TODO make sure the other operations do not catch throwables either!
 //			} catch (Throwable t) {
 //				System.err.println("[error] There occurred an error while invoking '" + operationObject.getOperationName() + "' on '" + operationObject.getObjectName() + "'");
 //				t.printStackTrace(System.err);
 //			}
 		}
-		return resultString;
+		return formatter.asString();
+	}
+	
+	private MBeanOperationInfo findOperation(MBeanInfo beanInfo, String operationName) {
+		for (MBeanOperationInfo beanOperationInfo : beanInfo.getOperations()) {
+			if (beanOperationInfo.getName().equals(operationName)) {
+				return beanOperationInfo;
+			}
+		}
+		return null;
+	}
+	
+	interface Formatter extends OutputFormatter {
+		void addResult(ObjectName objectName, MBeanOperationInfo operationInfo, Object result);
+	}
+	
+	static class TextFormatter implements Formatter {
+		
+		private final StringBuilder sb = new StringBuilder();
+
+		public void addResult(ObjectName objectName, MBeanOperationInfo operationInfo, Object result) {
+			if (sb.length() > 0) {
+				sb.append("\n");
+			}
+			sb.append("[ok] method '");
+			sb.append(operationInfo.getName());
+			sb.append("' has been invoked successfully.");
+			if (result != null) {
+				sb.append("\n");
+				sb.append(result);
+			}
+		}
+
+		public String asString() {
+			return sb.toString();
+		}
+		
+	}
+	
+	/**
+	 * writes one object per invocation; results are written as JSON values (see {@link JsonWriter#value(Object)})
+	 */
+	static class JsonFormatter implements Formatter {
+		
+		private final StringBuilder sb = new StringBuilder();
+		private final JsonWriter json = new JsonWriter(sb);
+
+		public void addResult(ObjectName objectName, MBeanOperationInfo operationInfo, Object result) {
+			if (sb.length() > 0) {
+				sb.append("\n");
+			}
+			json.beginObject();
+			json.name("object_name").value(objectName.getCanonicalName());
+			json.name("operation_name").value(operationInfo.getName());
+			json.name("return_type").value(operationInfo.getReturnType());
+			json.name("result").value(result);
+			json.endObject();
+		}
+
+		public String asString() {
+			return sb.toString();
+		}
+		
 	}
 	
 }
@@ -2,6 +2,7 @@ package com.jabubo.jmx.commands;
 
 import javax.management.Attribute;
 import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
 
 import org.apache.log4j.Logger;
 import org.hitchhackers.tools.jmx.util.TypeConversionHelper;
@@ -52,13 +53,10 @@ public class ModifyAttribute extends AttributeCommandBase {
 	public String run() throws Exception {
 		LOGGER.info("setting '" + fullName + "' to new value '" + newValue + "'");
 		
-		MBeanAttributeInfo[] attributes = getConnection().getMBeanInfo(objectName).getAttributes();
-		MBeanAttributeInfo attributeFound = null;
-		for (MBeanAttributeInfo beanAttributeInfo : attributes) {
-			if (beanAttributeInfo.getName().equals(attributeName)) {
-				attributeFound = beanAttributeInfo;
-				break;
-			}
+		MBeanAttributeInfo attributeFound = findAttribute(getMBeanInfo(objectName, false));
+		if (attributeFound == null) {
+			// the cached MBeanInfo might be outdated
+			attributeFound = findAttribute(getMBeanInfo(objectName, true));
 		}
 		
 		if (attributeFound != null) {
@@ -79,6 +77,15 @@ public class ModifyAttribute extends AttributeCommandBase {
 		return "";
 	}
 	
+	private MBeanAttributeInfo findAttribute(MBeanInfo beanInfo) {
+		for (MBeanAttributeInfo beanAttributeInfo : beanInfo.getAttributes()) {
+			if (beanAttributeInfo.getName().equals(attributeName)) {
+				return beanAttributeInfo;
+			}
+		}
+		return null;
+	}
+	
 	
 	
 }
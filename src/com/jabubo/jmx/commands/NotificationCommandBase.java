@@ -0,0 +1,287 @@
+package com.jabubo.jmx.commands;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationBroadcaster;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+
+import org.apache.log4j.Logger;
+import org.hitchhackers.tools.jmx.util.parser.Param;
+import org.hitchhackers.tools.jmx.util.parser.ParameterParser;
+import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
+
+/**
+ * base class for commands that listen for the notifications of MBeans
+ *
+ * Notifications are delivered by the JMX client's notification thread; they are put into a bounded
+ * queue that is drained by the command. If the output can't keep up, notifications are dropped
+ * (and counted) instead of stalling the delivery of further notifications. Notifications that the
+ * target could not deliver to the client (reported as {@link JMXConnectionNotification#NOTIFS_LOST})
+ * are counted as dropped as well.
+ *
+ * @author butzi
+ */
+abstract public class NotificationCommandBase extends CommandBase {
+
+	private static final Logger LOGGER = Logger.getLogger(NotificationCommandBase.class);
+
+	private static final int DEFAULT_BUFFER_SIZE = 10000;
+
+	// the main loop wakes up at least this often to check for new MBeans and the end of the duration
+	private static final long POLL_MILLIS = 1000;
+
+	// the MBeans to listen to and the prefixes of the notification types to receive (all if empty)
+	protected final List<ObjectName> patterns = new ArrayList<ObjectName>();
+	protected final List<String> types = new ArrayList<String>();
+
+	// seconds to listen and number of notifications to receive (0 = until the process is stopped)
+	private long duration = 0;
+	private long count = 0;
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+	private BlockingQueue<Notification> notifications;
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	private final Set<ObjectName> subscribedNames = new HashSet<ObjectName>();
+
+	@Override
+	protected void initParams(ParameterParser parser) {
+		parser.addParam(
+			new Param("duration")
+				.setDescription("seconds to listen (defaults to listening until the process is stopped)")
+				.setValidationPattern(Pattern.compile("\\d+"))
+		);
+		parser.addParam(
+			new Param("count")
+				.setDescription("number of notifications to print (defaults to printing until the process is stopped)")
+				.setShortName("n")
+				.setValidationPattern(Pattern.compile("\\d+"))
+		);
+		parser.addParam(
+			new Param("buffer")
+				.setDescription("maximum number of notifications that are queued for printing (defaults to " + DEFAULT_BUFFER_SIZE + ")")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+	}
+
+	@Override
+	public void processParams(ParsedCommandLine commandLine) {
+		if (commandLine.hasOption("duration")) {
+			duration = Long.parseLong(commandLine.getOptionValue("duration"));
+		}
+		if (commandLine.hasOption("count")) {
+			count = Long.parseLong(commandLine.getOptionValue("count"));
+		}
+		if (commandLine.hasOption("buffer")) {
+			bufferSize = Integer.parseInt(commandLine.getOptionValue("buffer"));
+		}
+	}
+
+	@Override
+	public String run() throws Exception {
+		final MBeanServerConnection connection = getConnection();
+		notifications = new ArrayBlockingQueue<Notification>(bufferSize);
+
+		NotificationListener listener = new NotificationListener() {
+			public void handleNotification(Notification notification, Object handback) {
+				// never block the notification thread of the JMX client
+				if (!notifications.offer(notification)) {
+					droppedCount.incrementAndGet();
+				}
+			}
+		};
+
+		// MBeans are (un)registered by the main loop, as the notification thread must not call the target
+		final BlockingQueue<MBeanServerNotification> registrations = new LinkedBlockingQueue<MBeanServerNotification>();
+		NotificationListener registrationListener = new NotificationListener() {
+			public void handleNotification(Notification notification, Object handback) {
+				if (notification instanceof MBeanServerNotification && matches(((MBeanServerNotification) notification).getMBeanName())) {
+					registrations.add((MBeanServerNotification) notification);
+				}
+			}
+		};
+		MBeanServerNotificationFilter registrationFilter = new MBeanServerNotificationFilter();
+		registrationFilter.enableAllObjectNames();
+
+		// the target's notification buffer may overflow before the client fetches the notifications;
+		// the connector reports how many got lost (for all listeners of the connection)
+		final JMXConnector connector = getConnector();
+		NotificationListener lostListener = new NotificationListener() {
+			public void handleNotification(Notification notification, Object handback) {
+				Object lost = notification.getUserData();
+				droppedCount.addAndGet((lost instanceof Long) ? ((Long) lost).longValue() : 1);
+			}
+		};
+		NotificationFilterSupport lostFilter = new NotificationFilterSupport();
+		lostFilter.enableType(JMXConnectionNotification.NOTIFS_LOST);
+
+		NotificationFilterSupport filter = null;
+		if (!types.isEmpty()) {
+			filter = new NotificationFilterSupport();
+			for (String type : types) {
+				filter.enableType(type);
+			}
+		}
+
+		start();
+		long received = 0;
+		if (connector != null) {
+			connector.addConnectionNotificationListener(lostListener, lostFilter, null);
+		}
+		try {
+			// listen for new MBeans first, so none is missed between the query and the subscription
+			connection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, registrationListener, registrationFilter, null);
+			for (ObjectName pattern : patterns) {
+				for (ObjectName objectName : connection.queryNames(pattern, null)) {
+					subscribe(connection, objectName, listener, filter);
+				}
+			}
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("listening to " + subscribedNames.size() + " MBeans");
+			}
+			subscribed();
+
+			long end = (duration > 0) ? System.currentTimeMillis() + duration * 1000 : Long.MAX_VALUE;
+			long reportedDrops = 0;
+			while (count == 0 || received < count) {
+				long remaining = end - System.currentTimeMillis();
+				if (remaining <= 0) {
+					break;
+				}
+
+				MBeanServerNotification registration;
+				while ((registration = registrations.poll()) != null) {
+					if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(registration.getType())) {
+						subscribe(connection, registration.getMBeanName(), listener, filter);
+					} else {
+						subscribedNames.remove(registration.getMBeanName());
+					}
+				}
+
+				Notification notification = notifications.poll(Math.min(remaining, POLL_MILLIS), TimeUnit.MILLISECONDS);
+				long dropped = droppedCount.get();
+				if (dropped > reportedDrops) {
+					notificationsDropped(dropped - reportedDrops, dropped);
+					reportedDrops = dropped;
+				}
+				if (notification != null) {
+					received++;
+					notificationReceived(notification);
+				}
+				tick(System.currentTimeMillis());
+
+				// flush once the queue has been drained, not after each of a burst of notifications
+				if (notifications.isEmpty()) {
+					getOut().flush();
+					if (getOut().checkError()) {
+						throw new IOException("could not write notification - the output has been closed");
+					}
+				}
+			}
+		} finally {
+			removeListener(connection, MBeanServerDelegate.DELEGATE_NAME, registrationListener);
+			for (ObjectName objectName : subscribedNames) {
+				removeListener(connection, objectName, listener);
+			}
+			if (connector != null) {
+				try {
+					connector.removeConnectionNotificationListener(lostListener);
+				} catch (ListenerNotFoundException e) {
+					// nothing to remove then
+				}
+			}
+			stopped();
+		}
+
+		return finish(received, droppedCount.get(), subscribedNames.size());
+	}
+
+	/**
+	 * called before the listeners are added
+	 */
+	protected abstract void start() throws Exception;
+
+	/**
+	 * called once the listeners have been added, before waiting for notifications
+	 */
+	protected void subscribed() throws Exception {
+	}
+
+	protected abstract void notificationReceived(Notification notification) throws Exception;
+
+	/**
+	 * called before the next notification if notifications have been dropped since the last call
+	 */
+	protected abstract void notificationsDropped(long dropped, long totalDropped) throws Exception;
+
+	/**
+	 * called after each notification and at least once per second while listening
+	 */
+	protected void tick(long now) throws Exception {
+	}
+
+	/**
+	 * called once the listeners have been removed - also if listening has been aborted by an error
+	 */
+	protected void stopped() {
+	}
+
+	/**
+	 * called once listening has ended, returns the output of the command
+	 */
+	protected abstract String finish(long received, long dropped, int mbeanCount) throws Exception;
+
+	boolean matches(ObjectName objectName) {
+		for (ObjectName pattern : patterns) {
+			if (pattern.apply(objectName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void subscribe(MBeanServerConnection connection, ObjectName objectName, NotificationListener listener, NotificationFilterSupport filter) throws IOException {
+		if (subscribedNames.contains(objectName)) {
+			return;
+		}
+		try {
+			if (!connection.isInstanceOf(objectName, NotificationBroadcaster.class.getName())) {
+				return;
+			}
+			connection.addNotificationListener(objectName, listener, filter, null);
+			subscribedNames.add(objectName);
+		} catch (InstanceNotFoundException e) {
+			// has been unregistered in the meantime
+		}
+	}
+
+	private static void removeListener(MBeanServerConnection connection, ObjectName objectName, NotificationListener listener) {
+		try {
+			connection.removeNotificationListener(objectName, listener);
+		} catch (Exception e) {
+			LOGGER.debug("could not remove listener from '" + objectName + "' : " + e.getMessage());
+		}
+	}
+
+}
@@ -0,0 +1,302 @@
+package com.jabubo.jmx.commands;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.hitchhackers.tools.jmx.util.AlignedScheduler;
+import org.hitchhackers.tools.jmx.util.FlameGraphWriter;
+import org.hitchhackers.tools.jmx.util.parser.Param;
+import org.hitchhackers.tools.jmx.util.parser.ParameterParser;
+import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
+
+/**
+ * Sampling profiler that works on the remote <code>java.lang:type=Threading</code> MBean only, i.e.
+ * it does not need an agent in the target VM.
+ * 
+ * The stacks of all threads are dumped at a fixed rate, identical stacks are aggregated and the 
+ * result is printed in the "collapsed stack" format used by flame graph tools. 
+ * 
+ * @author butzi
+ */
+public class ProfileThreads extends CommandBase {
+
+	private static final Logger LOGGER = Logger.getLogger(ProfileThreads.class);
+	
+	private static final int DEFAULT_RATE = 5;
+	private static final int DEFAULT_DURATION = 30;
+	
+	// samples per second and profiling duration in seconds
+	private int rate = DEFAULT_RATE;
+	private int duration = DEFAULT_DURATION;
+	
+	private Pattern threadNamePattern = null;
+	private boolean allStates = false;
+	private boolean perThread = false;
+	private File svgFile = null;
+
+	@Override
+	public String getUsageHeader() {
+		return 
+			"This tool samples the stack traces of all threads via JMX for a while and prints how often each stack has been seen " +
+			"in the collapsed stack format (one line per stack, frames separated by semicolons, followed by the number of samples). " +
+			"This format can be fed into flame graph tools; with <i>svg</i> a flame graph is written directly.<br/><br/>" +
+			"By default, only threads in state RUNNABLE are sampled. Each sample takes one JMX call.<br/><br/>" +
+			"Examples:<br/>" +
+			"profile [...] rate=10 duration=60 thread=http-.* svg=/tmp/profile.svg";
+	}
+
+	@Override
+	protected void initParams(ParameterParser parser) {
+		parser.addParam(
+			new Param("rate")
+				.setDescription("number of samples per second, must divide 1000 (defaults to " + DEFAULT_RATE + ")")
+				.setShortName("r")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+		parser.addParam(
+			new Param("duration")
+				.setDescription("number of seconds to profile (defaults to " + DEFAULT_DURATION + ")")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+		parser.addParam(
+			new Param("thread")
+				.setDescription("regular expression - only threads with a matching name are sampled")
+		);
+		parser.addParam(
+			new Param("all_states")
+				.setDescription("sample threads in all states, not only RUNNABLE ones")
+				.setHasNoValue(true)
+		);
+		parser.addParam(
+			new Param("per_thread")
+				.setDescription("use the thread name as the root frame of each stack")
+				.setHasNoValue(true)
+		);
+		parser.addParam(
+			new Param("svg")
+				.setDescription("file to which an SVG flame graph should be written")
+		);
+	}
+
+	@Override
+	public void processParams(ParsedCommandLine commandLine) {
+		if (commandLine.hasOption("rate")) {
+			rate = Integer.parseInt(commandLine.getOptionValue("rate"));
+			// the samples are scheduled at whole milliseconds
+			if (1000 % rate != 0) {
+				throw new IllegalArgumentException("rate must divide 1000 (e.g. 1, 2, 4, 5, 10, 20, 25, 50, 100), but is " + rate);
+			}
+		}
+		if (commandLine.hasOption("duration")) {
+			duration = Integer.parseInt(commandLine.getOptionValue("duration"));
+		}
+		if (commandLine.hasOption("thread")) {
+			threadNamePattern = Pattern.compile(commandLine.getOptionValue("thread"));
+		}
+		allStates = commandLine.hasOption("all_states");
+		perThread = commandLine.hasOption("per_thread");
+		if (commandLine.hasOption("svg")) {
+			svgFile = new File(commandLine.getOptionValue("svg"));
+		}
+	}
+
+	@Override
+	public String run() throws Exception {
+		final RemoteThreadMXBean threadMXBean = new RemoteThreadMXBean(getConnection());
+		final StackAggregator aggregator = new StackAggregator();
+		
+		AlignedScheduler scheduler = new AlignedScheduler(1000 / rate);
+		// skipped ticks count as well, so a slow target doesn't stretch the duration
+		scheduler.runTicks(new AlignedScheduler.Task() {
+			public void run(long tickTime, long skippedTicks) throws Exception {
+				aggregator.snapshotCount++;
+				ThreadInfo[] threadInfos = threadMXBean.dumpAllThreads(false, false);
+				for (ThreadInfo threadInfo : threadInfos) {
+					if (threadInfo == null) {
+						continue;
+					}
+					if (!allStates && threadInfo.getThreadState() != Thread.State.RUNNABLE) {
+						continue;
+					}
+					if (threadNamePattern != null && !threadNamePattern.matcher(threadInfo.getThreadName()).matches()) {
+						continue;
+					}
+					StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+					if (stackTrace.length == 0) {
+						// threads without Java frames (e.g. "Signal Dispatcher") would only add to the root
+						continue;
+					}
+					aggregator.addSample(perThread ? threadInfo.getThreadName() : null, stackTrace);
+				}
+			}
+		}, (long) rate * duration);
+
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("aggregated " + aggregator.getSampleCount() + " thread samples into " + aggregator.getStackCount() 
+					+ " stacks; skipped " + scheduler.getSkippedTicks() + " ticks");
+		}
+		
+		if (scheduler.getSkippedTicks() > 0) {
+			LOGGER.warn("the target could not keep up - took " + aggregator.snapshotCount + " of " + (long) rate * duration
+					+ " snapshots (" + String.format("%.1f", (double) aggregator.snapshotCount / duration) + "/s)");
+		}
+		
+		if (svgFile != null) {
+			writeFlameGraph(aggregator);
+		}
+		
+		return aggregator.toCollapsedStacks();
+	}
+
+	private void writeFlameGraph(StackAggregator aggregator) throws IOException {
+		FlameGraphWriter flameGraph = new FlameGraphWriter(
+				"JMX thread samples (" + aggregator.snapshotCount + " snapshots in " + duration + "s, " + aggregator.getSampleCount() + " samples)");
+		for (Map.Entry<StackKey, long[]> entry : aggregator.counts.entrySet()) {
+			flameGraph.addStack(aggregator.getFrameNames(entry.getKey()), entry.getValue()[0]);
+		}
+		
+		Writer writer = new OutputStreamWriter(new FileOutputStream(svgFile), "UTF-8");
+		try {
+			flameGraph.write(writer);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * counts identical stacks; frames are interned, so each stack is stored as an array of frame IDs
+	 */
+	static class StackAggregator {
+		
+		// all distinct frame names and the ID of each name
+		private final List<String> frameNames = new ArrayList<String>();
+		private final Map<String, Integer> frameIDsByName = new HashMap<String, Integer>();
+		// stack trace elements differ by line number, but are mapped to the same frame
+		private final Map<StackTraceElement, Integer> frameIDsByElement = new HashMap<StackTraceElement, Integer>();
+		
+		final Map<StackKey, long[]> counts = new HashMap<StackKey, long[]>();
+		private long sampleCount = 0;
+		// number of thread dumps the samples have been taken from
+		long snapshotCount = 0;
+
+		/**
+		 * @param rootFrame an optional frame that is put below all others (e.g. the thread name)
+		 * @param stackTrace the stack as returned by the VM, i.e. the innermost frame first
+		 */
+		void addSample(String rootFrame, StackTraceElement[] stackTrace) {
+			int offset = (rootFrame == null) ? 0 : 1;
+			int[] frameIDs = new int[stackTrace.length + offset];
+			if (rootFrame != null) {
+				frameIDs[0] = internFrameName(rootFrame.replace(';', '_'));
+			}
+			for (int i = 0; i < stackTrace.length; i++) {
+				frameIDs[offset + i] = internFrame(stackTrace[stackTrace.length - 1 - i]);
+			}
+			
+			StackKey key = new StackKey(frameIDs);
+			long[] count = counts.get(key);
+			if (count == null) {
+				count = new long[1];
+				counts.put(key, count);
+			}
+			count[0]++;
+			sampleCount++;
+		}
+
+		private int internFrame(StackTraceElement element) {
+			Integer frameID = frameIDsByElement.get(element);
+			if (frameID == null) {
+				frameID = internFrameName(element.getClassName() + "." + element.getMethodName());
+				frameIDsByElement.put(element, frameID);
+			}
+			return frameID;
+		}
+
+		private int internFrameName(String name) {
+			Integer frameID = frameIDsByName.get(name);
+			if (frameID == null) {
+				frameID = frameNames.size();
+				frameNames.add(name);
+				frameIDsByName.put(name, frameID);
+			}
+			return frameID;
+		}
+
+		String[] getFrameNames(StackKey key) {
+			String[] result = new String[key.frameIDs.length];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = frameNames.get(key.frameIDs[i]);
+			}
+			return result;
+		}
+
+		long getSampleCount() {
+			return sampleCount;
+		}
+
+		int getStackCount() {
+			return counts.size();
+		}
+
+		String toCollapsedStacks() {
+			List<String> lines = new ArrayList<String>(counts.size());
+			StringBuilder sb = new StringBuilder();
+			for (Map.Entry<StackKey, long[]> entry : counts.entrySet()) {
+				sb.setLength(0);
+				for (int frameID : entry.getKey().frameIDs) {
+					if (sb.length() > 0) {
+						sb.append(';');
+					}
+					sb.append(frameNames.get(frameID));
+				}
+				sb.append(' ');
+				sb.append(entry.getValue()[0]);
+				lines.add(sb.toString());
+			}
+			Collections.sort(lines);
+			
+			sb.setLength(0);
+			for (String line : lines) {
+				sb.append(line);
+				sb.append('\n');
+			}
+			return sb.toString();
+		}
+		
+	}
+	
+	static final class StackKey {
+		
+		final int[] frameIDs;
+		private final int hashCode;
+
+		StackKey(int[] frameIDs) {
+			this.frameIDs = frameIDs;
+			this.hashCode = Arrays.hashCode(frameIDs);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return (obj instanceof StackKey) && Arrays.equals(frameIDs, ((StackKey) obj).frameIDs);
+		}
+		
+	}
+	
+}
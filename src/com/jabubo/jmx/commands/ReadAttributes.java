@@ -1,19 +1,41 @@
 package com.jabubo.jmx.commands;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
-import javax.management.AttributeNotFoundException;
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.InstanceNotFoundException;
-import javax.management.MBeanException;
+import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
 import javax.management.openmbean.CompositeData;
 
-import net.sf.json.JSONObject;
-
 import org.apache.log4j.Logger;
+import org.hitchhackers.tools.jmx.commands.dto.ObjectNameAttributeName;
+import org.hitchhackers.tools.jmx.util.AlignedScheduler;
+import org.hitchhackers.tools.jmx.util.CborWriter;
+import org.hitchhackers.tools.jmx.util.JsonWriter;
+import org.hitchhackers.tools.jmx.util.SampleFile;
+import org.hitchhackers.tools.jmx.util.SampleStore;
+import org.hitchhackers.tools.jmx.util.parser.Param;
+import org.hitchhackers.tools.jmx.util.parser.ParameterParser;
+import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
 
 /**
  * Extraordinarily primitive command line client for querying JMX values via RMI.
@@ -30,51 +52,639 @@ public class ReadAttributes extends AttributeCommandBase {
 
 	Logger LOGGER = Logger.getLogger(ReadAttributes.class);
 	
+	// all attributes that should be read, in the order they have been specified
+	private List<ObjectNameAttributeName> attributes = new ArrayList<ObjectNameAttributeName>();
+
+	// number of MBeans that are queried in parallel over the shared connection
+	private int threads = 1;
+	private ExecutorService executor = null;
+
+	private static final int DEFAULT_FILE_THREADS = 4;
+	private static final long DEFAULT_SYNC_INTERVAL = 60;
+
+	// sampling interval in seconds (0 = read once) and number of samples to take (0 = forever)
+	private long interval = 0;
+	private long count = 0;
+
+	// number of samples per numeric attribute kept in interval mode (0 = none)
+	private int history = 0;
+
+	// directory the numeric values are recorded to in interval mode and seconds between two syncs
+	private File recordDirectory = null;
+	private long syncInterval = DEFAULT_SYNC_INTERVAL;
+
 	public ReadAttributes() {
 		super();
 		addFormatter(CommandBase.OutputType.TEXT, TextFormatter.class);
 		addFormatter(CommandBase.OutputType.JSON, JsonFormatter.class);
+		addFormatter(CommandBase.OutputType.BINARY, BinaryFormatter.class);
 	}
 	
 	@Override
 	public String getUsageHeader() {
-		// TODO update documentation
 		return "This command retrieves the specified attribute from the target VM. The attribute should be specified as " +
-				"object_name/attribute_name[/sub_attribute_name], e.g. java.lang:type=Memory/HeapMemoryUsage/used.";
+				"object_name/attribute_name[/sub_attribute_name], e.g. java.lang:type=Memory/HeapMemoryUsage/used.<br/><br/>" +
+				"Multiple attributes can be read at once by passing <i>attribute</i> several times; attributes of the same " +
+				"MBean are fetched with a single JMX call. Errors on single attributes are reported without failing the whole read.<br/><br/>" +
+				"Large attribute lists can be read from a file (one attribute per line, lines starting with # are ignored) " +
+				"with <i>attribute_file</i>; duplicates are removed and up to <i>threads</i> MBeans are queried in parallel.<br/><br/>" +
+				"If <i>interval</i> is given, the attributes are read continuously over the same connection at ticks aligned " +
+				"to the wall clock; each sample is printed as one line. Ticks that are missed because the target is slow are skipped.<br/><br/>" +
+				"<i>output_type=BINARY</i> writes the same structure as JSON encoded as CBOR (numbers stay binary), each sample " +
+				"as one CBOR data item without line breaks.<br/><br/>" +
+				"With <i>history</i>, the latest samples of each numeric attribute are kept in memory while sampling; once " +
+				"<i>count</i> samples have been taken, the number of samples, minimum, maximum, average and latest value " +
+				"of each attribute are printed.<br/><br/>" +
+				"With <i>record</i>, the numeric values are appended to compressed segment files in the given directory " +
+				"(a few bytes per value, less than one for values that rarely change) that are synced to disk every " +
+				"<i>sync_interval</i> seconds (values that don't fill a compressed chunk yet go to a tail file that is replaced at " +
+				"each sync, so frequent syncs don't make the recording larger); the <i>history</i> command reads them back.<br/><br/>" +
+				"Examples:<br/>" +
+				"get_attribute [...] attribute=java.lang:type=Memory/HeapMemoryUsage/used attribute=java.lang:type=Threading/ThreadCount<br/>" +
+				"get_attribute [...] attribute_file=/etc/jmx/attributes.txt threads=8<br/>" +
+				"get_attribute [...] attribute_file=/etc/jmx/attributes.txt interval=10 output_type=JSON<br/>" +
+				"get_attribute [...] attribute=java.lang:type=Threading/ThreadCount interval=10 count=360 history=360<br/>" +
+				"get_attribute [...] attribute_file=/etc/jmx/attributes.txt interval=10 record=/var/lib/jmx/broker1";
 	}
 
 	@Override
-	public String run() throws AttributeNotFoundException, InstanceNotFoundException, MBeanException, ReflectionException, IOException, InstantiationException, IllegalAccessException {
+	protected void initParams(ParameterParser parser) {
+		super.initParams(parser);
+
+		// single attributes may be replaced by a list of 'attribute' params
+		parser.getParamByName("object_name").setRequired(false);
+		parser.getParamByName("attribute_name").setRequired(false);
+
+		parser.addParam(
+			new Param("attribute")
+				.setDescription("an attribute that should be queried, specified as object_name/attribute_name[/composite_key] (may be passed multiple times)")
+				.setShortName("a")
+				.setMultiParam(true)
+		);
+
+		parser.addParam(
+			new Param("attribute_file")
+				.setDescription("a file containing the attributes that should be queried (one object_name/attribute_name[/composite_key] per line)")
+				.setShortName("f")
+		);
+
+		parser.addParam(
+			new Param("threads")
+				.setDescription("number of MBeans that are queried in parallel (defaults to " + DEFAULT_FILE_THREADS + " if an attribute file is used, 1 otherwise)")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+
+		parser.addParam(
+			new Param("interval")
+				.setDescription("read the attributes every <interval> seconds instead of only once")
+				.setShortName("i")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+
+		parser.addParam(
+			new Param("count")
+				.setDescription("number of samples to take in interval mode (defaults to sampling until the process is stopped)")
+				.setShortName("n")
+				.setValidationPattern(Pattern.compile("\\d+"))
+		);
+
+		parser.addParam(
+			new Param("history")
+				.setDescription("number of samples per numeric attribute kept in interval mode to print statistics over at the end")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+
+		parser.addParam(
+			new Param("record")
+				.setDescription("directory the numeric values are recorded to in interval mode")
+		);
+
+		parser.addParam(
+			new Param("sync_interval")
+				.setDescription("seconds after which recorded values are synced to disk (defaults to " + DEFAULT_SYNC_INTERVAL + ")")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+	}
+
+	@Override
+	public void processParams(ParsedCommandLine commandLine) {
+		if (commandLine.hasOption("object_name")) {
+			super.processParams(commandLine);
+			if (attributeName == null) {
+				throw new IllegalArgumentException("please specify the attribute_name along with the object_name");
+			}
+
+			ObjectNameAttributeName attribute = new ObjectNameAttributeName(objectName, attributeName);
+			attribute.setCompositePath(compositeKey);
+			attributes.add(attribute);
+		}
+
+		if (commandLine.hasOption("attribute")) {
+			for (String attribute : commandLine.getOptionValues("attribute")) {
+				attributes.add(new ObjectNameAttributeName(attribute));
+			}
+		}
+
+		if (commandLine.hasOption("attribute_file")) {
+			File attributeFile = new File(commandLine.getOptionValue("attribute_file"));
+			try {
+				attributes.addAll(ObjectNameAttributeName.readObjectAttributeNamesFromFile(attributeFile));
+			} catch (IOException e) {
+				throw new IllegalArgumentException("could not read attribute file '" + attributeFile + "' : " + e.getMessage());
+			}
+			threads = DEFAULT_FILE_THREADS;
+		}
+
+		if (commandLine.hasOption("threads")) {
+			threads = Integer.parseInt(commandLine.getOptionValue("threads"));
+		}
+
+		if (commandLine.hasOption("interval")) {
+			interval = Long.parseLong(commandLine.getOptionValue("interval"));
+		}
+
+		if (commandLine.hasOption("count")) {
+			count = Long.parseLong(commandLine.getOptionValue("count"));
+		}
+
+		if (commandLine.hasOption("history")) {
+			if (interval == 0) {
+				throw new IllegalArgumentException("history can only be kept in interval mode");
+			}
+			history = Integer.parseInt(commandLine.getOptionValue("history"));
+		}
+
+		if (commandLine.hasOption("record")) {
+			if (interval == 0) {
+				throw new IllegalArgumentException("values can only be recorded in interval mode");
+			}
+			recordDirectory = new File(commandLine.getOptionValue("record"));
+		}
+
+		if (commandLine.hasOption("sync_interval")) {
+			syncInterval = Long.parseLong(commandLine.getOptionValue("sync_interval"));
+		}
+
+		if (attributes.isEmpty()) {
+			throw new IllegalArgumentException("please specify either object_name and attribute_name, at least one attribute or an attribute_file");
+		}
+
+		// every attribute needs to be read only once
+		attributes = new ArrayList<ObjectNameAttributeName>(new LinkedHashSet<ObjectNameAttributeName>(attributes));
+	}
+
+	@Override
+	public String run() throws Exception {
+		// in interval mode, the same threads query the MBeans for all samples
+		int mbeanCount = groupByObjectName(attributes).size();
+		if (threads > 1 && mbeanCount > 1) {
+			executor = Executors.newFixedThreadPool(Math.min(threads, mbeanCount));
+		}
+		try {
+			if (interval > 0) {
+				runInterval();
+				return "";
+			}
+			return runOnce();
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	private String runOnce() throws Exception {
 		Formatter formatter = (Formatter) getFormatter();
 		
-		// get the attribute specified
+		if (attributes.size() == 1) {
+			// a single attribute is read directly, errors are passed to the caller
+			ObjectNameAttributeName attribute = attributes.get(0);
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("querying attribute '" + attribute + "'");
+			}
+			Object attributeValue = getConnection().getAttribute(
+				attribute.getObjectName(), attribute.getAttributeName()
+			);
+
+			// extract the sub-value of a CompositeData structure if necessary
+			if (attribute.getCompositePath() != null) {
+				CompositeData compositeData = (CompositeData) attributeValue;
+				attributeValue = compositeData.get(attribute.getCompositePath());
+			}
+
+			addAttributeValue(formatter, attribute, attributeValue);
+		} else {
+			readAttributes(getConnection(), groupByObjectName(attributes), formatter, executor);
+		}
+		
+		return print(formatter);
+	}
+	
+	/**
+	 * samples the attributes, keeping and recording their values if requested, and prints the statistics
+	 * over the values kept at the end
+	 */
+	private void runInterval() throws Exception {
+		final Map<ObjectName, List<ObjectNameAttributeName>> attributesByObjectName = groupByObjectName(attributes);
+		final MBeanServerConnection connection = getConnection();
+		final SampleStore sampleStore = (history > 0) ? new SampleStore(history) : null;
+		final SampleFile.Writer recorder = (recordDirectory != null) ? new SampleFile.Writer(recordDirectory, syncInterval * 1000) : null;
+
+		// the recorded values that have not been synced yet would be lost if the process is stopped
+		Thread closeHook = null;
+		if (recorder != null) {
+			closeHook = new Thread("close recording") {
+				@Override
+				public void run() {
+					try {
+						recorder.close();
+					} catch (IOException e) {
+						LOGGER.warn("could not close the recording : " + e.getMessage());
+					}
+				}
+			};
+			Runtime.getRuntime().addShutdownHook(closeHook);
+		}
+
+		try {
+			runInterval(connection, attributesByObjectName, sampleStore, recorder);
+		} finally {
+			if (recorder != null) {
+				recorder.close();
+				try {
+					Runtime.getRuntime().removeShutdownHook(closeHook);
+				} catch (IllegalStateException e) {
+					// the VM is shutting down already
+				}
+				if (LOGGER.isInfoEnabled()) {
+					LOGGER.info("recorded " + recorder.getSamplesWritten() + " samples to '" + recordDirectory + "' ("
+						+ recorder.getBytesWritten() + " bytes)");
+				}
+			}
+		}
+
+		if (sampleStore != null) {
+			printStatistics(sampleStore);
+		}
+	}
+
+	/**
+	 * re-reads all attributes over the same connection and prints one line per sample until <code>count</code>
+	 * samples have been taken
+	 */
+	private void runInterval(final MBeanServerConnection connection, final Map<ObjectName, List<ObjectNameAttributeName>> attributesByObjectName,
+			final SampleStore sampleStore, final SampleFile.Writer recorder) throws Exception {
+		AlignedScheduler scheduler = new AlignedScheduler(interval * 1000);
+		scheduler.run(new AlignedScheduler.Task() {
+			private long lastSkippedTicks = 0;
+
+			public void run(long tickTime, long skippedTicks) throws Exception {
+				if (skippedTicks > lastSkippedTicks) {
+					LOGGER.warn("target is too slow - skipped " + (skippedTicks - lastSkippedTicks) + " sample(s)");
+					lastSkippedTicks = skippedTicks;
+				}
+
+				Formatter formatter = (Formatter) getFormatter();
+				formatter.setSample(tickTime, skippedTicks);
+				if (sampleStore != null || recorder != null) {
+					StoringFormatter storingFormatter = new StoringFormatter(formatter, sampleStore, recorder, tickTime);
+					readAttributes(connection, attributesByObjectName, storingFormatter, executor);
+					if (storingFormatter.getRecordingError() != null) {
+						throw storingFormatter.getRecordingError();
+					}
+				} else {
+					readAttributes(connection, attributesByObjectName, formatter, executor);
+				}
+
+				String line = print(formatter);
+				if (getOutputType() != CommandBase.OutputType.BINARY) {
+					getOut().println(line);
+				}
+				getOut().flush();
+				if (getOut().checkError()) {
+					throw new IOException("could not write sample - the output has been closed");
+				}
+			}
+		}, count);
+	}
+
+	/**
+	 * prints the statistics over the samples kept of each numeric attribute
+	 */
+	private void printStatistics(SampleStore sampleStore) throws Exception {
+		StatisticsFormatter formatter = (StatisticsFormatter) getFormatter();
+		for (ObjectNameAttributeName attribute : attributes) {
+			int series = sampleStore.getSeriesId(attribute.toString());
+			if (series < 0 || sampleStore.size(series) == 0) {
+				continue;
+			}
+			Statistics statistics = new Statistics();
+			sampleStore.range(series, Long.MIN_VALUE, Long.MAX_VALUE, statistics);
+			formatter.addAttributeStatistics(attribute.getObjectName(), attribute.getAttributeName(), attribute.getCompositePath(),
+					attribute.toString(), statistics.count, statistics.min, statistics.max, statistics.sum / statistics.count,
+					sampleStore.getLatestValue(series));
+		}
+		String result = print(formatter);
+		if (getOutputType() != CommandBase.OutputType.BINARY) {
+			getOut().println(result);
+		}
+		getOut().flush();
+	}
+
+	private static class Statistics implements SampleStore.Visitor {
+		int count = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		double sum = 0;
+
+		public void sample(long timestamp, double value) {
+			count++;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			sum += value;
+		}
+	}
+
+	/**
+	 * groups the passed attributes by the MBean they belong to (keeping the order in which they have been specified)
+	 */
+	static Map<ObjectName, List<ObjectNameAttributeName>> groupByObjectName(List<ObjectNameAttributeName> attributes) {
+		Map<ObjectName, List<ObjectNameAttributeName>> result = new LinkedHashMap<ObjectName, List<ObjectNameAttributeName>>();
+		for (ObjectNameAttributeName attribute : attributes) {
+			List<ObjectNameAttributeName> attributesOfObject = result.get(attribute.getObjectName());
+			if (attributesOfObject == null) {
+				attributesOfObject = new ArrayList<ObjectNameAttributeName>();
+				result.put(attribute.getObjectName(), attributesOfObject);
+			}
+			attributesOfObject.add(attribute);
+		}
+		return result;
+	}
+
+	/**
+	 * reads all attributes with one getAttributes() call per MBean and passes values and errors to the formatter
+	 */
+	void readAttributes(MBeanServerConnection connection, Map<ObjectName, List<ObjectNameAttributeName>> attributesByObjectName, Formatter formatter) throws IOException {
+		for (Map.Entry<ObjectName, List<ObjectNameAttributeName>> entry : attributesByObjectName.entrySet()) {
+			readAttributesOfObject(connection, entry.getKey(), entry.getValue(), formatter);
+		}
+	}
+
+	/**
+	 * same as {@link #readAttributes(MBeanServerConnection, Map, Formatter)}, but queries the MBeans in parallel
+	 * using the passed executor (if any); the results are passed to the formatter in the original order
+	 */
+	void readAttributes(final MBeanServerConnection connection, Map<ObjectName, List<ObjectNameAttributeName>> attributesByObjectName, Formatter formatter, ExecutorService executor) throws IOException, InterruptedException {
+		if (executor == null || attributesByObjectName.size() <= 1) {
+			readAttributes(connection, attributesByObjectName, formatter);
+			return;
+		}
+
+		List<Future<CollectingFormatter>> results = new ArrayList<Future<CollectingFormatter>>();
+		try {
+			for (final Map.Entry<ObjectName, List<ObjectNameAttributeName>> entry : attributesByObjectName.entrySet()) {
+				results.add(executor.submit(new Callable<CollectingFormatter>() {
+					public CollectingFormatter call() throws Exception {
+						CollectingFormatter collectingFormatter = new CollectingFormatter();
+						readAttributesOfObject(connection, entry.getKey(), entry.getValue(), collectingFormatter);
+						return collectingFormatter;
+					}
+				}));
+			}
+
+			for (Future<CollectingFormatter> result : results) {
+				try {
+					result.get().replay(formatter);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					}
+					throw new IllegalStateException("could not read attributes", e.getCause());
+				}
+			}
+		} finally {
+			// the executor is shared by all reads of the run - only the queries of this read are stopped if it fails
+			for (Future<CollectingFormatter> result : results) {
+				result.cancel(true);
+			}
+		}
+	}
+
+	void readAttributesOfObject(MBeanServerConnection connection, ObjectName objectName, List<ObjectNameAttributeName> attributesOfObject, Formatter formatter) throws IOException {
+		// several composite keys might refer to the same attribute - we need to fetch it once only
+		Set<String> attributeNames = new LinkedHashSet<String>();
+		for (ObjectNameAttributeName attribute : attributesOfObject) {
+			attributeNames.add(attribute.getAttributeName());
+		}
+
 		if (LOGGER.isDebugEnabled()) {
-			LOGGER.debug("querying attribute '" + fullName + "'");
+			LOGGER.debug("querying attributes " + attributeNames + " of '" + objectName + "'");
 		}
-		Object attributeValue = getConnection().getAttribute(
-			objectName, attributeName
-		);
-				
-		// extract the sub-value of a CompositeData structure if necessary
-		if (compositeKey != null) {
-			CompositeData compositeData = (CompositeData) attributeValue;
-			attributeValue = compositeData.get(compositeKey);
+
+		AttributeList attributeList;
+		try {
+			attributeList = connection.getAttributes(objectName, attributeNames.toArray(new String[attributeNames.size()]));
+		} catch (InstanceNotFoundException e) {
+			addErrors(formatter, attributesOfObject, "MBean not found");
+			return;
+		} catch (ReflectionException e) {
+			addErrors(formatter, attributesOfObject, "could not read attributes : " + e.getMessage());
+			return;
 		}
 
-		formatter.addAttributeValue(objectName, attributeName, compositeKey, fullName, attributeValue);
-		
-		return formatter.asString();
+		// getAttributes() silently leaves out all attributes that could not be read
+		Map<String, Object> valuesByName = new HashMap<String, Object>();
+		for (Object element : attributeList) {
+			Attribute attribute = (Attribute) element;
+			valuesByName.put(attribute.getName(), attribute.getValue());
+		}
+
+		for (ObjectNameAttributeName attribute : attributesOfObject) {
+			if (! valuesByName.containsKey(attribute.getAttributeName())) {
+				formatter.addAttributeError(objectName, attribute.getAttributeName(), attribute.getCompositePath(),
+						attribute.toString(), "attribute not found or not readable");
+				continue;
+			}
+
+			Object attributeValue = valuesByName.get(attribute.getAttributeName());
+			if (attribute.getCompositePath() != null) {
+				if (! (attributeValue instanceof CompositeData)) {
+					formatter.addAttributeError(objectName, attribute.getAttributeName(), attribute.getCompositePath(),
+							attribute.toString(), "attribute is not a composite value");
+					continue;
+				}
+				CompositeData compositeData = (CompositeData) attributeValue;
+				if (! compositeData.containsKey(attribute.getCompositePath())) {
+					formatter.addAttributeError(objectName, attribute.getAttributeName(), attribute.getCompositePath(),
+							attribute.toString(), "composite key not found");
+					continue;
+				}
+				attributeValue = compositeData.get(attribute.getCompositePath());
+			}
+
+			addAttributeValue(formatter, attribute, attributeValue);
+		}
 	}
-	
+
+	private void addAttributeValue(Formatter formatter, ObjectNameAttributeName attribute, Object value) {
+		formatter.addAttributeValue(attribute.getObjectName(), attribute.getAttributeName(),
+				attribute.getCompositePath(), attribute.toString(), value);
+	}
+
+	private void addErrors(Formatter formatter, List<ObjectNameAttributeName> attributes, String message) {
+		for (ObjectNameAttributeName attribute : attributes) {
+			formatter.addAttributeError(attribute.getObjectName(), attribute.getAttributeName(),
+					attribute.getCompositePath(), attribute.toString(), message);
+		}
+	}
+
 	interface Formatter extends OutputFormatter {
+		/**
+		 * called before any values are added if the attributes are sampled in interval mode - the formatter
+		 * should print the sample as one line then
+		 */
+		void setSample(long timestamp, long skippedTicks);
 		void addAttributeValue(ObjectName objectName, String attributeName, String compositeKey, String fullName, Object value);
+		void addAttributeError(ObjectName objectName, String attributeName, String compositeKey, String fullName, String message);
+	}
+
+	/**
+	 * implemented by the formatters that print the statistics once sampling has ended
+	 */
+	interface StatisticsFormatter extends OutputFormatter {
+		/**
+		 * called for each attribute whose history has been kept
+		 */
+		void addAttributeStatistics(ObjectName objectName, String attributeName, String compositeKey, String fullName,
+				int samples, double min, double max, double average, double latest);
+	}
+
+	/**
+	 * appends the numeric values of a sample to the history and/or the recording of their attribute and
+	 * passes all values and errors on to the real formatter
+	 *
+	 * Like a PrintStream, it does not throw IOExceptions if recording fails - use {@link #getRecordingError()}.
+	 */
+	static class StoringFormatter implements Formatter {
+
+		private final Formatter formatter;
+		private final SampleStore sampleStore;
+		private final SampleFile.Writer recorder;
+		private final long timestamp;
+
+		private IOException recordingError = null;
+
+		StoringFormatter(Formatter formatter, SampleStore sampleStore, SampleFile.Writer recorder, long timestamp) {
+			this.formatter = formatter;
+			this.sampleStore = sampleStore;
+			this.recorder = recorder;
+			this.timestamp = timestamp;
+		}
+
+		/**
+		 * returns the first error that occurred while recording the values or null
+		 */
+		public IOException getRecordingError() {
+			return recordingError;
+		}
+
+		public void setSample(long timestamp, long skippedTicks) {
+			formatter.setSample(timestamp, skippedTicks);
+		}
+
+		public void addAttributeValue(ObjectName objectName, String attributeName, String compositeKey, String fullName, Object value) {
+			if (value instanceof Number) {
+				double doubleValue = ((Number) value).doubleValue();
+				if (sampleStore != null) {
+					sampleStore.append(sampleStore.addSeries(fullName), timestamp, doubleValue);
+				}
+				if (recorder != null && recordingError == null) {
+					try {
+						recorder.append(fullName, timestamp, doubleValue);
+					} catch (IOException e) {
+						recordingError = e;
+					}
+				}
+			}
+			formatter.addAttributeValue(objectName, attributeName, compositeKey, fullName, value);
+		}
+
+		public void addAttributeError(ObjectName objectName, String attributeName, String compositeKey, String fullName, String message) {
+			formatter.addAttributeError(objectName, attributeName, compositeKey, fullName, message);
+		}
+
+		public String asString() {
+			return formatter.asString();
+		}
+
 	}
 	
-	static class TextFormatter implements Formatter {
+	/**
+	 * keeps values and errors of one MBean until they can be passed to the real formatter
+	 */
+	static class CollectingFormatter implements Formatter {
+
+		private final List<CollectedValue> values = new ArrayList<CollectedValue>();
+
+		public void addAttributeValue(ObjectName objectName, String attributeName, String compositeKey, String fullName, Object value) {
+			values.add(new CollectedValue(objectName, attributeName, compositeKey, fullName, value, null));
+		}
+
+		public void addAttributeError(ObjectName objectName, String attributeName, String compositeKey, String fullName, String message) {
+			values.add(new CollectedValue(objectName, attributeName, compositeKey, fullName, null, message));
+		}
+
+		public void setSample(long timestamp, long skippedTicks) {
+		}
+
+		public void replay(Formatter formatter) {
+			for (CollectedValue value : values) {
+				if (value.errorMessage != null) {
+					formatter.addAttributeError(value.objectName, value.attributeName, value.compositeKey, value.fullName, value.errorMessage);
+				} else {
+					formatter.addAttributeValue(value.objectName, value.attributeName, value.compositeKey, value.fullName, value.value);
+				}
+			}
+		}
+
+		public String asString() {
+			return "";
+		}
+
+		private static class CollectedValue {
+			final ObjectName objectName;
+			final String attributeName;
+			final String compositeKey;
+			final String fullName;
+			final Object value;
+			final String errorMessage;
+
+			CollectedValue(ObjectName objectName, String attributeName, String compositeKey, String fullName, Object value, String errorMessage) {
+				this.objectName = objectName;
+				this.attributeName = attributeName;
+				this.compositeKey = compositeKey;
+				this.fullName = fullName;
+				this.value = value;
+				this.errorMessage = errorMessage;
+			}
+		}
+
+	}
+
+	static class TextFormatter implements Formatter, StatisticsFormatter {
 
 		private final StringBuilder sb = new StringBuilder();
-		
+
+		// separates the values; in interval mode everything goes into one line
+		private String separator = "\n";
+
+		public void setSample(long timestamp, long skippedTicks) {
+			separator = "\t";
+			sb.append(timestamp);
+		}
+
 		public void addAttributeValue(ObjectName objectName, String attributeName, String compositeKey, String fullName, Object value) {
+			startLine();
 			// TODO do we really want to output the attribute name here?
 			sb.append(fullName);
 			sb.append(" : ");
@@ -90,33 +700,201 @@ public class ReadAttributes extends AttributeCommandBase {
 			}
 		}
 
+		public void addAttributeError(ObjectName objectName, String attributeName, String compositeKey, String fullName, String message) {
+			startLine();
+			sb.append(fullName);
+			sb.append(" : [error] ");
+			sb.append(message);
+		}
+
+		public void addAttributeStatistics(ObjectName objectName, String attributeName, String compositeKey, String fullName,
+				int samples, double min, double max, double average, double latest) {
+			startLine();
+			sb.append(fullName);
+			sb.append(" : ");
+			sb.append(samples);
+			sb.append(" samples, min ");
+			appendNumber(min, sb);
+			sb.append(", max ");
+			appendNumber(max, sb);
+			sb.append(", avg ");
+			appendNumber(average, sb);
+			sb.append(", latest ");
+			appendNumber(latest, sb);
+		}
+
+		/**
+		 * appends integral values (e.g. counters and sizes) without fraction and exponent
+		 */
+		static void appendNumber(double value, StringBuilder sb) {
+			if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+				sb.append((long) value);
+			} else {
+				sb.append(value);
+			}
+		}
+
+		private void startLine() {
+			if (sb.length() > 0) {
+				sb.append(separator);
+			}
+		}
+
 		public String asString() {
 			return sb.toString();
 		}
 		
 	}
 	
-	static class JsonFormatter implements Formatter {
+	/**
+	 * returns a single object if only one attribute has been read, otherwise an object holding
+	 * the list of all values in "values"; samples always hold the list along with their timestamp
+	 */
+	static class JsonFormatter implements Formatter, StatisticsFormatter {
+
+		// the entries are written as they are added; whether they need to be wrapped is decided at the end
+		private final StringBuilder entries = new StringBuilder();
+		private final JsonWriter json = new JsonWriter(entries);
+		private int entryCount = 0;
+
+		private long timestamp;
+		private long skippedTicks;
+		private boolean isSample = false;
 
-		private final Map<String, Object> data = new HashMap<String, Object>();
+		public void setSample(long timestamp, long skippedTicks) {
+			this.timestamp = timestamp;
+			this.skippedTicks = skippedTicks;
+			isSample = true;
+		}
 		
 		public void addAttributeValue(ObjectName objectName, String attributeName, String compositeKey, String fullName, Object value) {
-			// TODO if the value is composite, we can build a composite structure in JSON as well
-			data.put("object_name", objectName.toString());
-			data.put("attribute_name", attributeName);
-			data.put("composite_key", compositeKey);
-			if (value instanceof String[]) {
-				String[] values = (String[]) value;
-				data.put("value", values);
-			} else {
-				data.put("value", value.toString());
+			// composite and tabular values, arrays and numbers are written as such
+			startEntry(objectName, attributeName, compositeKey);
+			json.name("value").value(value);
+			json.endObject();
+		}
+
+		public void addAttributeError(ObjectName objectName, String attributeName, String compositeKey, String fullName, String message) {
+			startEntry(objectName, attributeName, compositeKey);
+			json.name("error").value(message);
+			json.endObject();
+		}
+
+		public void addAttributeStatistics(ObjectName objectName, String attributeName, String compositeKey, String fullName,
+				int samples, double min, double max, double average, double latest) {
+			startEntry(objectName, attributeName, compositeKey);
+			json.name("samples").value(samples);
+			json.name("min").value(min);
+			json.name("max").value(max);
+			json.name("average").value(average);
+			json.name("latest").value(latest);
+			json.endObject();
+		}
+
+		private void startEntry(ObjectName objectName, String attributeName, String compositeKey) {
+			if (entryCount++ > 0) {
+				entries.append(',');
 			}
+			json.beginObject();
+			json.name("object_name").value(objectName.toString());
+			json.name("attribute_name").value(attributeName);
+			json.name("composite_key").value(compositeKey);
 		}
 
 		public String asString() {
-			return JSONObject.fromObject(data).toString();
+			if (!isSample && entryCount == 1) {
+				return entries.toString();
+			}
+			StringBuilder sb = new StringBuilder(entries.length() + 64);
+			JsonWriter result = new JsonWriter(sb);
+			result.beginObject();
+			if (isSample) {
+				result.name("timestamp").value(timestamp);
+				result.name("skipped_ticks").value(skippedTicks);
+			}
+			result.name("values").rawValue("[" + entries + "]");
+			result.endObject();
+			return sb.toString();
 		}
 		
 	}
 	
+	/**
+	 * writes the same structure as the {@link JsonFormatter} as CBOR; each sample is one data item
+	 * of a CBOR sequence
+	 */
+	static class BinaryFormatter implements BinaryOutputFormatter, Formatter, StatisticsFormatter {
+
+		private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		private final CborWriter cbor = new CborWriter(entries);
+		private int entryCount = 0;
+
+		private long timestamp;
+		private long skippedTicks;
+		private boolean isSample = false;
+
+		public void setSample(long timestamp, long skippedTicks) {
+			this.timestamp = timestamp;
+			this.skippedTicks = skippedTicks;
+			isSample = true;
+		}
+
+		public void addAttributeValue(ObjectName objectName, String attributeName, String compositeKey, String fullName, Object value) {
+			startEntry(objectName, attributeName, compositeKey);
+			cbor.name("value").value(value);
+			cbor.endObject();
+		}
+
+		public void addAttributeError(ObjectName objectName, String attributeName, String compositeKey, String fullName, String message) {
+			startEntry(objectName, attributeName, compositeKey);
+			cbor.name("error").value(message);
+			cbor.endObject();
+		}
+
+		public void addAttributeStatistics(ObjectName objectName, String attributeName, String compositeKey, String fullName,
+				int samples, double min, double max, double average, double latest) {
+			startEntry(objectName, attributeName, compositeKey);
+			cbor.name("samples").value(samples);
+			cbor.name("min").value(min);
+			cbor.name("max").value(max);
+			cbor.name("average").value(average);
+			cbor.name("latest").value(latest);
+			cbor.endObject();
+		}
+
+		private void startEntry(ObjectName objectName, String attributeName, String compositeKey) {
+			entryCount++;
+			cbor.beginObject();
+			cbor.name("object_name").value(objectName.toString());
+			cbor.name("attribute_name").value(attributeName);
+			cbor.name("composite_key").value(compositeKey);
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			if (!isSample && entryCount == 1) {
+				entries.writeTo(out);
+				return;
+			}
+			CborWriter result = new CborWriter(out);
+			result.beginObject();
+			if (isSample) {
+				result.name("timestamp").value(timestamp);
+				result.name("skipped_ticks").value(skippedTicks);
+			}
+			// the number of entries is known by now, so the array gets a definite length
+			result.name("values").beginArray(entryCount);
+			entries.writeTo(out);
+			result.endObject();
+			if (result.checkError()) {
+				throw new IOException("could not write the values");
+			}
+		}
+
+		public String asString() {
+			// binary output is written by writeTo()
+			return "";
+		}
+
+	}
+
 }
@@ -0,0 +1,230 @@
+package com.jabubo.jmx.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.hitchhackers.tools.jmx.util.JsonWriter;
+import org.hitchhackers.tools.jmx.util.SampleFile;
+import org.hitchhackers.tools.jmx.util.parser.Param;
+import org.hitchhackers.tools.jmx.util.parser.ParameterParser;
+import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
+
+/**
+ * command that prints the values recorded by <i>get_attribute</i> with <i>record</i>
+ *
+ * @author butzi
+ */
+public class ReadHistory extends CommandBase {
+
+	private File directory;
+	private final List<String> patterns = new ArrayList<String>();
+	private long from = Long.MIN_VALUE;
+	private long to = Long.MAX_VALUE;
+
+	public ReadHistory() {
+		super();
+		addFormatter(CommandBase.OutputType.TEXT, TextFormatter.class);
+		addFormatter(CommandBase.OutputType.JSON, JsonFormatter.class);
+	}
+
+	@Override
+	public String getUsageHeader() {
+		return
+			"This command prints the attribute values that have been recorded to <i>directory</i> by " +
+			"<i>get_attribute [...] interval=... record=directory</i>, one line per value, optionally restricted to " +
+			"the attributes matching <i>attribute</i> and to a time range. The range is given either as <i>from</i> " +
+			"and/or <i>to</i> (milliseconds since 1970, <i>to</i> is exclusive) or as the <i>last</i> seconds. " +
+			"Recorded chunks outside the range are skipped without being decompressed.<br/><br/>" +
+			"No connection is needed, the values are read from disk. The summary reports the size of the recording " +
+			"per value read.<br/><br/>" +
+			"Examples:<br/>" +
+			"history /var/lib/jmx/broker1 last=3600<br/>" +
+			"history directory=/var/lib/jmx/broker1 attribute=java.lang:type=Memory/* from=1700000000000 output_type=JSON";
+	}
+
+	@Override
+	protected boolean needsConnection() {
+		return false;
+	}
+
+	@Override
+	protected void initParams(ParameterParser parser) {
+		parser.addParam(
+			new Param("directory")
+				.setDescription("the directory the values have been recorded to")
+				.setMightBeUnnamed(true)
+				.setRequired(true)
+		);
+		parser.addParam(
+			new Param("attribute")
+				.setDescription("name (pattern) of the attributes to print, as object_name/attribute_name[/composite_key] (defaults to all)")
+				.setShortName("a")
+				.setMultiParam(true)
+		);
+		parser.addParam(
+			new Param("from")
+				.setDescription("print the values recorded at or after this time (milliseconds since 1970)")
+				.setValidationPattern(Pattern.compile("\\d+"))
+		);
+		parser.addParam(
+			new Param("to")
+				.setDescription("print the values recorded before this time (milliseconds since 1970)")
+				.setValidationPattern(Pattern.compile("\\d+"))
+		);
+		parser.addParam(
+			new Param("last")
+				.setDescription("print the values recorded within the last <last> seconds")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+	}
+
+	@Override
+	public void processParams(ParsedCommandLine commandLine) {
+		directory = new File(commandLine.getOptionValue("directory"));
+		if (!directory.isDirectory()) {
+			throw new IllegalArgumentException("'" + directory + "' is not a directory");
+		}
+		if (commandLine.hasOption("attribute")) {
+			for (String pattern : commandLine.getOptionValues("attribute")) {
+				patterns.add(pattern);
+			}
+		}
+		if (commandLine.hasOption("last")) {
+			if (commandLine.hasOption("from") || commandLine.hasOption("to")) {
+				throw new IllegalArgumentException("either last or from/to may be given");
+			}
+			from = System.currentTimeMillis() - Long.parseLong(commandLine.getOptionValue("last")) * 1000;
+		}
+		if (commandLine.hasOption("from")) {
+			from = Long.parseLong(commandLine.getOptionValue("from"));
+		}
+		if (commandLine.hasOption("to")) {
+			to = Long.parseLong(commandLine.getOptionValue("to"));
+		}
+	}
+
+	@Override
+	public String run() throws Exception {
+		final Formatter formatter = (Formatter) getFormatter();
+		formatter.start(getOut());
+
+		final Set<String> series = new HashSet<String>();
+		SampleFile.Reader reader = new SampleFile.Reader(directory);
+		long count = reader.scan(patterns, from, to, new SampleFile.Visitor() {
+			public void sample(String name, long timestamp, double value) {
+				series.add(name);
+				formatter.addValue(name, timestamp, value);
+			}
+		});
+
+		getOut().flush();
+		if (getOut().checkError()) {
+			throw new IOException("could not write the values - the output has been closed");
+		}
+		formatter.setSummary(count, series.size(), reader.getSegmentCount(), reader.getChunkBytes(), reader.getChunkSamples());
+		return formatter.asString();
+	}
+
+	/**
+	 * values are written to the output as they are added
+	 */
+	interface Formatter extends OutputFormatter {
+		void start(PrintStream out);
+		void addValue(String name, long timestamp, double value);
+		/**
+		 * @param chunkBytes size of the recorded chunks the values have been read from
+		 * @param chunkSamples number of values in these chunks
+		 */
+		void setSummary(long values, int seriesCount, int segmentCount, long chunkBytes, long chunkSamples);
+	}
+
+	static class TextFormatter implements Formatter {
+
+		private PrintStream out;
+		private final StringBuilder sb = new StringBuilder();
+
+		public void start(PrintStream out) {
+			this.out = out;
+		}
+
+		public void addValue(String name, long timestamp, double value) {
+			// the same layout as get_attribute in interval mode
+			sb.setLength(0);
+			sb.append(timestamp);
+			sb.append("\t");
+			sb.append(name);
+			sb.append(" : ");
+			ReadAttributes.TextFormatter.appendNumber(value, sb);
+			out.println(sb);
+		}
+
+		public void setSummary(long values, int seriesCount, int segmentCount, long chunkBytes, long chunkSamples) {
+			sb.setLength(0);
+			sb.append("read ");
+			sb.append(values);
+			sb.append(" values of ");
+			sb.append(seriesCount);
+			sb.append(" attributes from ");
+			sb.append(segmentCount);
+			sb.append(" segments");
+			if (chunkSamples > 0) {
+				sb.append(" (");
+				sb.append(String.format("%.2f", (double) chunkBytes / chunkSamples));
+				sb.append(" bytes per value)");
+			}
+		}
+
+		public String asString() {
+			return sb.toString();
+		}
+
+	}
+
+	/**
+	 * prints one JSON object per value and the summary (of type <code>jmxconsole.summary</code>) as last line
+	 */
+	static class JsonFormatter implements Formatter {
+
+		private PrintStream out;
+		private JsonWriter json;
+
+		private final StringBuilder summary = new StringBuilder();
+
+		public void start(PrintStream out) {
+			this.out = out;
+			json = new JsonWriter(out);
+		}
+
+		public void addValue(String name, long timestamp, double value) {
+			json.beginObject();
+			json.name("timestamp").value(timestamp);
+			json.name("attribute").value(name);
+			json.name("value").value(value);
+			json.endObject();
+			out.println();
+		}
+
+		public void setSummary(long values, int seriesCount, int segmentCount, long chunkBytes, long chunkSamples) {
+			new JsonWriter(summary).beginObject()
+				.name("type").value("jmxconsole.summary")
+				.name("values").value(values)
+				.name("attributes").value(seriesCount)
+				.name("segments").value(segmentCount)
+				.name("chunk_bytes").value(chunkBytes)
+				.name("chunk_values").value(chunkSamples)
+				.endObject();
+		}
+
+		public String asString() {
+			return summary.toString();
+		}
+
+	}
+
+}
@@ -0,0 +1,163 @@
+package com.jabubo.jmx.commands;
+
+import java.io.IOException;
+import java.lang.management.ThreadInfo;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bulk access to the remote <code>java.lang:type=Threading</code> MBean.
+ * 
+ * All methods fetch the information for many threads with a single JMX call. The array variants of 
+ * the CPU time methods are only offered by <code>com.sun.management.ThreadMXBean</code>; if the 
+ * target VM does not support them, we fall back to one call per thread.
+ * 
+ * @author butzi
+ */
+class RemoteThreadMXBean {
+
+	private static final Logger LOGGER = Logger.getLogger(RemoteThreadMXBean.class);
+	
+	private final MBeanServerConnection connection;
+	private final ObjectName threadingObject;
+	
+	RemoteThreadMXBean(MBeanServerConnection connection) {
+		super();
+		this.connection = connection;
+		try {
+			this.threadingObject = ObjectName.getInstance("java.lang:type=Threading");
+		} catch (MalformedObjectNameException e) {
+			throw new IllegalStateException("BUG: invalid object name for the Threading MBean", e);
+		}
+	}
+
+	public ObjectName getThreadingObject() {
+		return threadingObject;
+	}
+
+	public long[] getAllThreadIds() throws IOException, InstanceNotFoundException, ReflectionException, AttributeNotFoundException, MBeanException {
+		return (long[]) connection.getAttribute(threadingObject, "AllThreadIds");
+	}
+
+	/**
+	 * returns the information about all passed threads; entries are null for threads that do not exist anymore
+	 */
+	public ThreadInfo[] getThreadInfo(long[] threadIDs, int maxDepth) throws IOException, InstanceNotFoundException, MBeanException, ReflectionException {
+		CompositeData[] result = (CompositeData[]) connection.invoke(
+				threadingObject, 
+				"getThreadInfo", 
+				new Object[] { threadIDs, maxDepth }, 
+				new String[] { long[].class.getName(), "int" } );
+		return toThreadInfos(result);
+	}
+
+	/**
+	 * returns the information about the passed threads including their complete stack traces and the
+	 * monitors and/or ownable synchronizers they hold; entries are null for threads that do not exist anymore
+	 */
+	public ThreadInfo[] getThreadInfo(long[] threadIDs, boolean lockedMonitors, boolean lockedSynchronizers) throws IOException, InstanceNotFoundException, MBeanException, ReflectionException {
+		CompositeData[] result = (CompositeData[]) connection.invoke(
+				threadingObject, 
+				"getThreadInfo", 
+				new Object[] { threadIDs, lockedMonitors, lockedSynchronizers }, 
+				new String[] { long[].class.getName(), "boolean", "boolean" } );
+		return toThreadInfos(result);
+	}
+
+	/**
+	 * returns the information about all live threads including their complete stack traces
+	 */
+	public ThreadInfo[] dumpAllThreads(boolean lockedMonitors, boolean lockedSynchronizers) throws IOException, InstanceNotFoundException, MBeanException, ReflectionException {
+		CompositeData[] result = (CompositeData[]) connection.invoke(
+				threadingObject, 
+				"dumpAllThreads", 
+				new Object[] { lockedMonitors, lockedSynchronizers }, 
+				new String[] { "boolean", "boolean" } );
+		return toThreadInfos(result);
+	}
+
+	/**
+	 * returns the IDs of all threads that are deadlocked on monitors or ownable synchronizers 
+	 * (an empty array if there are none)
+	 */
+	public long[] findDeadlockedThreads() throws IOException, InstanceNotFoundException, MBeanException {
+		long[] result;
+		try {
+			result = (long[]) connection.invoke(threadingObject, "findDeadlockedThreads", new Object[0], new String[0]);
+		} catch (ReflectionException e) {
+			LOGGER.debug("target VM does not support findDeadlockedThreads(), looking for monitor deadlocks only");
+			try {
+				result = (long[]) connection.invoke(threadingObject, "findMonitorDeadlockedThreads", new Object[0], new String[0]);
+			} catch (ReflectionException e2) {
+				throw new IllegalStateException("target VM does not support deadlock detection", e2);
+			}
+		}
+		return (result == null) ? new long[0] : result;
+	}
+
+	public long[] getThreadCpuTime(long[] threadIDs) throws IOException, InstanceNotFoundException, MBeanException {
+		return getPerThreadValues("getThreadCpuTime", threadIDs);
+	}
+
+	public long[] getThreadUserTime(long[] threadIDs) throws IOException, InstanceNotFoundException, MBeanException {
+		return getPerThreadValues("getThreadUserTime", threadIDs);
+	}
+
+	/**
+	 * returns the number of bytes allocated by each thread so far (-1 for threads that are not alive anymore)
+	 */
+	public long[] getThreadAllocatedBytes(long[] threadIDs) throws IOException, InstanceNotFoundException, MBeanException {
+		return getPerThreadValues("getThreadAllocatedBytes", threadIDs);
+	}
+
+	/**
+	 * calls the array variant of the passed operation, or the single thread variant for each thread
+	 * if the target VM does not offer the array variant
+	 */
+	private long[] getPerThreadValues(String operationName, long[] threadIDs) throws IOException, InstanceNotFoundException, MBeanException {
+		try {
+			return (long[]) connection.invoke(
+					threadingObject,
+					operationName,
+					new Object[] { threadIDs },
+					new String[] { long[].class.getName() } );
+		} catch (ReflectionException e) {
+			LOGGER.debug("target VM does not support " + operationName + "(long[]), querying threads one by one");
+		}
+		
+		long[] result = new long[threadIDs.length];
+		for (int i = 0; i < threadIDs.length; i++) {
+			try {
+				result[i] = (Long) connection.invoke(
+						threadingObject,
+						operationName,
+						new Object[] { threadIDs[i] },
+						new String[] { "long" } );
+			} catch (ReflectionException e) {
+				throw new IllegalStateException("target VM does not support " + operationName, e);
+			}
+		}
+		return result;
+	}
+	
+	private static ThreadInfo[] toThreadInfos(CompositeData[] compositeData) {
+		ThreadInfo[] result = new ThreadInfo[compositeData.length];
+		for (int i = 0; i < compositeData.length; i++) {
+			// it's possible that the thread does not exist anymore at this moment
+			if (compositeData[i] != null) {
+				result[i] = ThreadInfo.from(compositeData[i]);
+			}
+		}
+		return result;
+	}
+	
+}
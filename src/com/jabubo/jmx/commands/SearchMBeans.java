@@ -0,0 +1,333 @@
+package com.jabubo.jmx.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import javax.management.InstanceNotFoundException;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.log4j.Logger;
+import org.hitchhackers.tools.jmx.connection.MBeanCatalog;
+import org.hitchhackers.tools.jmx.util.JsonWriter;
+import org.hitchhackers.tools.jmx.util.MBeanIndex;
+import org.hitchhackers.tools.jmx.util.SnapshotFile;
+import org.hitchhackers.tools.jmx.util.parser.Param;
+import org.hitchhackers.tools.jmx.util.parser.ParameterParser;
+import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
+
+/**
+ * command that searches MBean names, attributes and operations, either of a live VM or of a snapshot
+ *
+ * @author butzi
+ */
+public class SearchMBeans extends CommandBase {
+
+	private static final Logger LOGGER = Logger.getLogger(SearchMBeans.class);
+
+	private static final int DEFAULT_THREADS = 8;
+	private static final int DEFAULT_LIMIT = 1000;
+
+	private String query;
+	private MBeanIndex.Mode mode;
+	private MBeanIndex.Field[] fields = MBeanIndex.Field.values();
+	private File snapshotFile = null;
+	private int threads = DEFAULT_THREADS;
+	private int limit = DEFAULT_LIMIT;
+
+	public SearchMBeans() {
+		super();
+		addFormatter(CommandBase.OutputType.TEXT, TextFormatter.class);
+		addFormatter(CommandBase.OutputType.JSON, JsonFormatter.class);
+	}
+
+	@Override
+	public String getUsageHeader() {
+		return
+			"This command searches the domains, key properties, attribute and operation names and types of all MBeans " +
+			"and prints the MBeans that match along with the matching terms ([D]omain, [K]ey, [V]alue, [A]ttribute, " +
+			"[O]peration, [T]ype). Matching is case-insensitive.<br/><br/>" +
+			"The <i>mode</i> defaults to <i>wildcard</i> if the search term contains * or ?, and to <i>substring</i> " +
+			"otherwise; <i>fuzzy</i> finds terms within a small edit distance (e.g. typos).<br/><br/>" +
+			"The index is built from a <i>snapshot</i> file or from the MBeanInfos of a live VM (which are fetched " +
+			"with up to <i>threads</i> parallel requests). The daemon and the servlet keep the names and types of the " +
+			"attributes and operations of each MBean until it is unregistered, so further searches over the same " +
+			"connection only fetch the MBeanInfos of new MBeans.<br/><br/>" +
+			"Examples:<br/>" +
+			"search [...] *Latency* field=attribute<br/>" +
+			"search snapshot=/tmp/broker1.jmx.gz requests mode=prefix<br/>" +
+			"search [...] HeapMemoryUsag mode=fuzzy output_type=JSON";
+	}
+
+	@Override
+	protected boolean needsConnection() {
+		return snapshotFile == null;
+	}
+
+	@Override
+	protected void initParams(ParameterParser parser) {
+		// not needed when searching a snapshot
+		parser.getParamByName("host").setRequired(false);
+		parser.getParamByName("port").setRequired(false);
+
+		parser.addParam(
+			new Param("term")
+				.setDescription("the term to search for")
+				.setMightBeUnnamed(true)
+				.setRequired(true)
+		);
+		parser.addParam(
+			new Param("mode")
+				.setDescription("how the term is matched (one of prefix, substring, wildcard or fuzzy)")
+				.setShortName("m")
+				.setValidationPattern(Pattern.compile("(?i)prefix|substring|wildcard|fuzzy"))
+		);
+		parser.addParam(
+			new Param("field")
+				.setDescription("the fields to search (domain, key, value, attribute, operation or type; defaults to all of them)")
+				.setMultiParam(true)
+				.setValidationPattern(Pattern.compile("(?i)domain|key|value|attribute|operation|type"))
+		);
+		parser.addParam(
+			new Param("snapshot")
+				.setDescription("search the given snapshot file instead of a live VM")
+				.setShortName("f")
+		);
+		parser.addParam(
+			new Param("threads")
+				.setDescription("number of MBeanInfos that are fetched in parallel from a live VM (defaults to " + DEFAULT_THREADS + ")")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+		parser.addParam(
+			new Param("limit")
+				.setDescription("maximum number of MBeans to print (defaults to " + DEFAULT_LIMIT + ")")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+	}
+
+	@Override
+	public void processParams(ParsedCommandLine commandLine) {
+		query = commandLine.getOptionValue("term");
+		if (commandLine.hasOption("mode")) {
+			mode = MBeanIndex.Mode.valueOf(commandLine.getOptionValue("mode").toUpperCase());
+		} else {
+			mode = (query.indexOf('*') >= 0 || query.indexOf('?') >= 0) ? MBeanIndex.Mode.WILDCARD : MBeanIndex.Mode.SUBSTRING;
+		}
+		if (commandLine.hasOption("field")) {
+			String[] fieldNames = commandLine.getOptionValues("field");
+			fields = new MBeanIndex.Field[fieldNames.length];
+			for (int i = 0; i < fieldNames.length; i++) {
+				fields[i] = MBeanIndex.Field.valueOf(fieldNames[i].toUpperCase());
+			}
+		}
+		if (commandLine.hasOption("snapshot")) {
+			snapshotFile = new File(commandLine.getOptionValue("snapshot"));
+		}
+		if (commandLine.hasOption("threads")) {
+			threads = Integer.parseInt(commandLine.getOptionValue("threads"));
+		}
+		if (commandLine.hasOption("limit")) {
+			limit = Integer.parseInt(commandLine.getOptionValue("limit"));
+		}
+	}
+
+	@Override
+	public String run() throws Exception {
+		long start = System.currentTimeMillis();
+		MBeanIndex index = (snapshotFile != null) ? buildIndex(snapshotFile) : buildIndex(MBeanCatalog.getCatalog(getConnection(), getConnector()));
+		long searchStart = System.currentTimeMillis();
+		SortedMap<Integer, List<MBeanIndex.Match>> result = index.search(query, mode, fields);
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("built index of " + index.getMBeanCount() + " MBeans (" + index.getTermCount() + " terms) in " +
+				(searchStart - start) + "ms, searched it in " + (System.currentTimeMillis() - searchStart) + "ms");
+		}
+
+		Formatter formatter = (Formatter) getFormatter();
+		int count = 0;
+		for (Map.Entry<Integer, List<MBeanIndex.Match>> entry : result.entrySet()) {
+			if (count++ == limit) {
+				break;
+			}
+			formatter.addMBean(index.getName(entry.getKey()), entry.getValue());
+		}
+		formatter.setTotal(result.size(), index.getMBeanCount());
+		return formatter.asString();
+	}
+
+	MBeanIndex buildIndex(File file) throws IOException {
+		MBeanIndex.Builder builder = new MBeanIndex.Builder();
+		SnapshotFile.Reader reader = new SnapshotFile.Reader(file);
+		try {
+			JSONObject mbean;
+			while ((mbean = reader.next()) != null) {
+				builder.addMBean(mbean.getString("name"));
+				if (mbean.has("attributes")) {
+					JSONArray attributes = mbean.getJSONArray("attributes");
+					for (int i = 0; i < attributes.size(); i++) {
+						JSONObject attribute = attributes.getJSONObject(i);
+						builder.addAttribute(attribute.getString("name"), attribute.getString("type"));
+					}
+				}
+				if (mbean.has("operations")) {
+					JSONArray operations = mbean.getJSONArray("operations");
+					for (int i = 0; i < operations.size(); i++) {
+						JSONObject operation = operations.getJSONObject(i);
+						JSONArray params = operation.getJSONArray("params");
+						String[] parameterTypes = new String[params.size()];
+						for (int j = 0; j < parameterTypes.length; j++) {
+							parameterTypes[j] = params.getJSONObject(j).getString("type");
+						}
+						builder.addOperation(operation.getString("name"), operation.getString("return_type"), parameterTypes);
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return builder.build();
+	}
+
+	MBeanIndex buildIndex(final MBeanCatalog catalog) throws IOException, InterruptedException {
+		List<MBeanCatalog.Entry> entries = catalog.query(null);
+
+		// the catalog keeps the metadata of its MBeans until they are unregistered, so only the MBeans
+		// registered since the last search over this connection have their MBeanInfos fetched
+		List<Future<MBeanCatalog.Metadata>> metadata = new ArrayList<Future<MBeanCatalog.Metadata>>(entries.size());
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (final MBeanCatalog.Entry entry : entries) {
+				if (entry.getMetadata() != null) {
+					metadata.add(null);
+					continue;
+				}
+				metadata.add(executor.submit(new Callable<MBeanCatalog.Metadata>() {
+					public MBeanCatalog.Metadata call() throws Exception {
+						try {
+							return catalog.getMetadata(entry);
+						} catch (InstanceNotFoundException e) {
+							// has been unregistered in the meantime
+							return null;
+						}
+					}
+				}));
+			}
+
+			MBeanIndex.Builder builder = new MBeanIndex.Builder();
+			for (int i = 0; i < entries.size(); i++) {
+				MBeanCatalog.Metadata entryMetadata;
+				try {
+					entryMetadata = (metadata.get(i) == null) ? entries.get(i).getMetadata() : metadata.get(i).get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					}
+					LOGGER.debug("could not read MBeanInfo of '" + entries.get(i).getCanonicalName() + "' : " + e.getCause());
+					entryMetadata = null;
+				}
+
+				builder.addMBean(entries.get(i).getCanonicalName());
+				if (entryMetadata != null) {
+					for (int j = 0; j < entryMetadata.getAttributeCount(); j++) {
+						builder.addAttribute(entryMetadata.getAttributeName(j), entryMetadata.getAttributeType(j));
+					}
+					for (int j = 0; j < entryMetadata.getOperationCount(); j++) {
+						builder.addOperation(entryMetadata.getOperationName(j), entryMetadata.getOperationReturnType(j),
+							entryMetadata.getOperationParameterTypes(j));
+					}
+				}
+			}
+			return builder.build();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	interface Formatter extends OutputFormatter {
+		void addMBean(String objectName, List<MBeanIndex.Match> matches);
+		void setTotal(int matchingMBeans, int indexedMBeans);
+	}
+
+	static class TextFormatter implements Formatter {
+
+		private final StringBuilder sb = new StringBuilder();
+		private int printed = 0;
+
+		public void addMBean(String objectName, List<MBeanIndex.Match> matches) {
+			printed++;
+			sb.append(objectName);
+			sb.append("\n");
+			for (MBeanIndex.Match match : matches) {
+				sb.append("  [").append(match.getField().getTag()).append("] ");
+				sb.append(match.getTerm());
+				sb.append("\n");
+			}
+		}
+
+		public void setTotal(int matchingMBeans, int indexedMBeans) {
+			sb.append(matchingMBeans + " of " + indexedMBeans + " MBeans match");
+			if (printed < matchingMBeans) {
+				sb.append(" (" + printed + " printed)");
+			}
+		}
+
+		public String asString() {
+			return sb.toString();
+		}
+
+	}
+
+	static class JsonFormatter implements Formatter {
+
+		private final StringBuilder sb = new StringBuilder();
+		private final JsonWriter json = new JsonWriter(sb);
+		private boolean started = false;
+		
+		private void start() {
+			if (!started) {
+				started = true;
+				json.beginObject();
+				json.name("mbeans").beginArray();
+			}
+		}
+
+		public void addMBean(String objectName, List<MBeanIndex.Match> matches) {
+			start();
+			json.beginObject();
+			json.name("name").value(objectName);
+			json.name("matches").beginArray();
+			for (MBeanIndex.Match match : matches) {
+				json.beginObject();
+				json.name("field").value(match.getField().name().toLowerCase());
+				json.name("term").value(match.getTerm());
+				json.endObject();
+			}
+			json.endArray();
+			json.endObject();
+		}
+
+		public void setTotal(int matchingMBeans, int indexedMBeans) {
+			start();
+			json.endArray();
+			json.name("total").value(matchingMBeans);
+			json.name("indexed").value(indexedMBeans);
+			json.endObject();
+		}
+
+		public String asString() {
+			return sb.toString();
+		}
+
+	}
+
+}
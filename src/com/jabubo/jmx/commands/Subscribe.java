@@ -0,0 +1,242 @@
+package com.jabubo.jmx.commands;
+
+import java.io.PrintStream;
+
+import javax.management.AttributeChangeNotification;
+import javax.management.MBeanServerNotification;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.hitchhackers.tools.jmx.util.JsonWriter;
+import org.hitchhackers.tools.jmx.util.parser.Param;
+import org.hitchhackers.tools.jmx.util.parser.ParameterParser;
+import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
+
+/**
+ * command that listens for the notifications of MBeans and prints them as they arrive
+ *
+ * @author butzi
+ */
+public class Subscribe extends NotificationCommandBase {
+
+	private Formatter formatter;
+
+	public Subscribe() {
+		super();
+		addFormatter(CommandBase.OutputType.TEXT, TextFormatter.class);
+		addFormatter(CommandBase.OutputType.JSON, JsonFormatter.class);
+	}
+
+	@Override
+	public String getUsageHeader() {
+		return
+			"This command listens for the notifications of all MBeans matching the given <i>pattern</i>s (e.g. GC " +
+			"notifications, memory threshold crossings, attribute changes) and prints each notification as it arrives - " +
+			"one line per notification, with <i>output_type=JSON</i> one JSON object per line. MBeans matching a pattern " +
+			"that are registered later on are subscribed as well.<br/><br/>" +
+			"Notifications are buffered in a queue of up to <i>buffer</i> entries. If they arrive faster than they can be " +
+			"printed, further notifications are dropped and the number of dropped notifications is printed (as type " +
+			"<i>jmxconsole.dropped</i>) before the next one.<br/><br/>" +
+			"Examples:<br/>" +
+			"subscribe [...] java.lang:type=GarbageCollector,*<br/>" +
+			"subscribe [...] java.lang:type=Memory* type=java.management.memory duration=3600 output_type=JSON<br/>" +
+			"subscribe [...] *:* type=jmx.attribute.change count=10";
+	}
+
+	@Override
+	protected void initParams(ParameterParser parser) {
+		parser.addParam(
+			new Param("pattern")
+				.setDescription("name (pattern) of the MBeans to listen to")
+				.setMightBeUnnamed(true)
+				.setMultiParam(true)
+				.setRequired(true)
+		);
+		parser.addParam(
+			new Param("type")
+				.setDescription("only print notifications whose type starts with this prefix")
+				.setMultiParam(true)
+		);
+		super.initParams(parser);
+	}
+
+	@Override
+	public void processParams(ParsedCommandLine commandLine) {
+		super.processParams(commandLine);
+		for (String pattern : commandLine.getOptionValues("pattern")) {
+			try {
+				patterns.add(ObjectName.getInstance(pattern));
+			} catch (MalformedObjectNameException e) {
+				throw new IllegalArgumentException("invalid object name pattern '" + pattern + "' : " + e.getMessage());
+			}
+		}
+		if (commandLine.hasOption("type")) {
+			for (String type : commandLine.getOptionValues("type")) {
+				types.add(type);
+			}
+		}
+	}
+
+	@Override
+	protected void start() throws Exception {
+		formatter = (Formatter) getFormatter();
+		formatter.start(getOut());
+	}
+
+	@Override
+	protected void notificationReceived(Notification notification) {
+		formatter.addNotification(notification);
+	}
+
+	@Override
+	protected void notificationsDropped(long dropped, long totalDropped) {
+		formatter.addDropped(dropped, totalDropped);
+	}
+
+	@Override
+	protected String finish(long received, long dropped, int mbeanCount) {
+		formatter.setSummary(received, dropped, mbeanCount);
+		return formatter.asString();
+	}
+
+	/**
+	 * notifications are written to the output as they are added
+	 */
+	interface Formatter extends OutputFormatter {
+		void start(PrintStream out);
+		void addNotification(Notification notification);
+		void addDropped(long dropped, long totalDropped);
+		void setSummary(long received, long dropped, int mbeanCount);
+	}
+
+	static class TextFormatter implements Formatter {
+
+		private PrintStream out;
+		private final StringBuilder summary = new StringBuilder();
+
+		public void start(PrintStream out) {
+			this.out = out;
+		}
+
+		public void addNotification(Notification notification) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(notification.getTimeStamp());
+			sb.append(" ");
+			sb.append(notification.getSource());
+			sb.append(" ");
+			sb.append(notification.getType());
+			sb.append(" #");
+			sb.append(notification.getSequenceNumber());
+			if (notification.getMessage() != null && notification.getMessage().length() > 0) {
+				sb.append(" : ");
+				sb.append(notification.getMessage());
+			}
+			if (notification instanceof AttributeChangeNotification) {
+				AttributeChangeNotification change = (AttributeChangeNotification) notification;
+				sb.append(" [");
+				sb.append(change.getAttributeName());
+				sb.append(" : ");
+				sb.append(change.getOldValue());
+				sb.append(" -> ");
+				sb.append(change.getNewValue());
+				sb.append("]");
+			} else if (notification instanceof MBeanServerNotification) {
+				sb.append(" [");
+				sb.append(((MBeanServerNotification) notification).getMBeanName());
+				sb.append("]");
+			} else if (notification.getUserData() != null && !(notification.getUserData() instanceof CompositeData)
+					&& !(notification.getUserData() instanceof TabularData)) {
+				// open type data is too large for a single line, it's part of the JSON output only
+				sb.append(" ");
+				sb.append(notification.getUserData());
+			}
+			out.println(sb.toString());
+		}
+
+		public void addDropped(long dropped, long totalDropped) {
+			out.println("[warning] dropped " + dropped + " notifications (" + totalDropped + " in total)");
+		}
+
+		public void setSummary(long received, long dropped, int mbeanCount) {
+			summary.append("received ");
+			summary.append(received);
+			summary.append(" notifications from ");
+			summary.append(mbeanCount);
+			summary.append(" MBeans (");
+			summary.append(dropped);
+			summary.append(" dropped)");
+		}
+
+		public String asString() {
+			return summary.toString();
+		}
+
+	}
+
+	/**
+	 * prints one JSON object per notification; dropped notifications and the summary are printed
+	 * as objects of the types <code>jmxconsole.dropped</code> and <code>jmxconsole.summary</code>
+	 */
+	static class JsonFormatter implements Formatter {
+
+		private PrintStream out;
+		private JsonWriter json;
+
+		private final StringBuilder summary = new StringBuilder();
+
+		public void start(PrintStream out) {
+			this.out = out;
+			json = new JsonWriter(out);
+		}
+
+		public void addNotification(Notification notification) {
+			json.beginObject();
+			json.name("type").value(notification.getType());
+			json.name("timestamp").value(notification.getTimeStamp());
+			json.name("source").value(String.valueOf(notification.getSource()));
+			json.name("sequence").value(notification.getSequenceNumber());
+			json.name("message").value(notification.getMessage());
+			if (notification instanceof AttributeChangeNotification) {
+				AttributeChangeNotification change = (AttributeChangeNotification) notification;
+				json.name("attribute_name").value(change.getAttributeName());
+				json.name("attribute_type").value(change.getAttributeType());
+				json.name("old_value").value(change.getOldValue());
+				json.name("new_value").value(change.getNewValue());
+			} else if (notification instanceof MBeanServerNotification) {
+				json.name("mbean_name").value(((MBeanServerNotification) notification).getMBeanName().getCanonicalName());
+			}
+			// e.g. the GC and memory notifications pass CompositeData here
+			json.name("user_data").value(notification.getUserData());
+			json.endObject();
+			out.println();
+		}
+
+		public void addDropped(long dropped, long totalDropped) {
+			json.beginObject();
+			json.name("type").value("jmxconsole.dropped");
+			json.name("timestamp").value(System.currentTimeMillis());
+			json.name("dropped").value(dropped);
+			json.name("total_dropped").value(totalDropped);
+			json.endObject();
+			out.println();
+		}
+
+		public void setSummary(long received, long dropped, int mbeanCount) {
+			new JsonWriter(summary).beginObject()
+				.name("type").value("jmxconsole.summary")
+				.name("received").value(received)
+				.name("dropped").value(dropped)
+				.name("mbeans").value(mbeanCount)
+				.endObject();
+		}
+
+		public String asString() {
+			return summary.toString();
+		}
+
+	}
+
+}
@@ -0,0 +1,286 @@
+package com.jabubo.jmx.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.hitchhackers.tools.jmx.util.JsonWriter;
+import org.hitchhackers.tools.jmx.util.SnapshotFile;
+import org.hitchhackers.tools.jmx.util.parser.Param;
+import org.hitchhackers.tools.jmx.util.parser.ParameterParser;
+import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
+
+/**
+ * command that writes the metadata and attribute values of all MBeans of a VM into a snapshot file
+ * (see {@link SnapshotFile} for the format)
+ * 
+ * @author butzi
+ */
+public class TakeSnapshot extends CommandBase {
+	
+	private static final Logger LOGGER = Logger.getLogger(TakeSnapshot.class);
+	
+	private static final int DEFAULT_THREADS = 8;
+	
+	// number of MBeans per thread that may be read ahead of the one that is written next
+	private static final int READ_AHEAD_PER_THREAD = 16;
+	
+	private File file;
+	private ObjectName pattern = null;
+	private int threads = DEFAULT_THREADS;
+	
+	private int errorCount = 0;
+
+	@Override
+	public String getUsageHeader() {
+		return 
+			"This command writes the MBean information and all readable attribute values of the MBeans of a VM " +
+			"into a snapshot <i>file</i>, e.g. for attaching it to an incident ticket or comparing it with a later snapshot.<br/><br/>" +
+			"The file contains one JSON object per line (the MBeans are sorted by their canonical name) and is gzipped " +
+			"if its name ends with .gz. Up to <i>threads</i> MBeans are read in parallel, each of them with a single " +
+			"getAttributes call.<br/><br/>" +
+			"Examples:<br/>" +
+			"snapshot [...] file=/tmp/broker1.jmx.gz<br/>" +
+			"snapshot [...] file=/tmp/gc.jmx pattern=java.lang:type=GarbageCollector,*";
+	}
+
+	@Override
+	protected void initParams(ParameterParser parser) {
+		parser.addParam(
+			new Param("file")
+				.setDescription("the file the snapshot is written to")
+				.setMightBeUnnamed(true)
+				.setRequired(true)
+				.setShortName("f")
+		);
+		parser.addParam(
+			new Param("pattern")
+				.setDescription("object name pattern of the MBeans to include (defaults to all MBeans)")
+				.setShortName("p")
+		);
+		parser.addParam(
+			new Param("threads")
+				.setDescription("number of MBeans that are read in parallel (defaults to " + DEFAULT_THREADS + ")")
+				.setValidationPattern(Pattern.compile("[1-9]\\d*"))
+		);
+	}
+
+	@Override
+	public void processParams(ParsedCommandLine commandLine) {
+		file = new File(commandLine.getOptionValue("file"));
+		if (commandLine.hasOption("pattern")) {
+			try {
+				pattern = ObjectName.getInstance(commandLine.getOptionValue("pattern"));
+			} catch (MalformedObjectNameException e) {
+				throw new IllegalArgumentException("invalid object name pattern '" + commandLine.getOptionValue("pattern") + "' : " + e.getMessage());
+			}
+		}
+		if (commandLine.hasOption("threads")) {
+			threads = Integer.parseInt(commandLine.getOptionValue("threads"));
+		}
+	}
+
+	@Override
+	public String run() throws Exception {
+		long start = System.currentTimeMillis();
+		
+		final MBeanServerConnection connection = getConnection();
+		Set<ObjectName> names = connection.queryNames(pattern, null);
+		ObjectName[] sortedNames = names.toArray(new ObjectName[names.size()]);
+		Arrays.sort(sortedNames, new Comparator<ObjectName>() {
+			public int compare(ObjectName o1, ObjectName o2) {
+				return o1.getCanonicalName().compareTo(o2.getCanonicalName());
+			}
+		});
+		
+		int written = 0;
+		Writer writer = SnapshotFile.openWriter(file);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			StringBuilder header = new StringBuilder();
+			new JsonWriter(header).beginObject()
+				.name(SnapshotFile.HEADER_VERSION).value(SnapshotFile.VERSION)
+				.name(SnapshotFile.HEADER_URL).value(getServiceURL().toString())
+				.name(SnapshotFile.HEADER_TIMESTAMP).value(start)
+				.endObject();
+			writeLine(writer, header.toString());
+			
+			// the MBeans are read in parallel, but written in order - only a limited number of them may be kept in memory
+			LinkedList<Future<String>> pending = new LinkedList<Future<String>>();
+			int next = 0;
+			while (next < sortedNames.length || !pending.isEmpty()) {
+				while (next < sortedNames.length && pending.size() < threads * READ_AHEAD_PER_THREAD) {
+					final ObjectName objectName = sortedNames[next++];
+					pending.add(executor.submit(new Callable<String>() {
+						public String call() throws Exception {
+							return readMBean(connection, objectName);
+						}
+					}));
+				}
+				
+				String line;
+				try {
+					line = pending.removeFirst().get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					}
+					throw new IllegalStateException("could not read MBean", e.getCause());
+				}
+				if (line != null) {
+					writeLine(writer, line);
+					written++;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+			writer.close();
+		}
+		
+		return "wrote " + written + " MBeans (" + errorCount + " errors) to '" + file + "' in " + 
+			(System.currentTimeMillis() - start) + "ms";
+	}
+	
+	private static void writeLine(Writer writer, String line) throws IOException {
+		writer.write(line);
+		writer.write('\n');
+	}
+
+	/**
+	 * returns the snapshot line of the given MBean (or null if the MBean does not exist anymore)
+	 */
+	String readMBean(MBeanServerConnection connection, ObjectName objectName) throws IOException {
+		MBeanInfo beanInfo = null;
+		MBeanAttributeInfo[] attributeInfos = null;
+		Map<String, Object> values = null;
+		String error = null;
+		try {
+			beanInfo = connection.getMBeanInfo(objectName);
+			attributeInfos = beanInfo.getAttributes();
+			Arrays.sort(attributeInfos, new Comparator<MBeanAttributeInfo>() {
+				public int compare(MBeanAttributeInfo o1, MBeanAttributeInfo o2) {
+					return o1.getName().compareTo(o2.getName());
+				}
+			});
+			values = readAttributes(connection, objectName, attributeInfos);
+		} catch (InstanceNotFoundException e) {
+			// has been unregistered in the meantime
+			return null;
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			LOGGER.debug("could not read MBean '" + objectName + "' : " + e.getMessage());
+			countError();
+			error = String.valueOf(e.getMessage());
+		}
+		
+		// everything has been read, so the line can be written in one go
+		StringBuilder line = new StringBuilder(256);
+		JsonWriter json = new JsonWriter(line);
+		json.beginObject();
+		json.name("name").value(objectName.getCanonicalName());
+		if (beanInfo != null) {
+			json.name("class").value(beanInfo.getClassName());
+		}
+		if (error != null) {
+			json.name("error").value(error);
+		} else {
+			writeAttributes(json, attributeInfos, values);
+			writeOperations(json, beanInfo.getOperations());
+		}
+		json.endObject();
+		return line.toString();
+	}
+	
+	/**
+	 * returns the values of the readable attributes; the ones that could not be read are left out
+	 */
+	private Map<String, Object> readAttributes(MBeanServerConnection connection, ObjectName objectName, MBeanAttributeInfo[] attributeInfos) throws Exception {
+		List<String> readableNames = new ArrayList<String>();
+		for (MBeanAttributeInfo attributeInfo : attributeInfos) {
+			if (attributeInfo.isReadable()) {
+				readableNames.add(attributeInfo.getName());
+			}
+		}
+		
+		// getAttributes silently leaves out the attributes that could not be read
+		Map<String, Object> values = new HashMap<String, Object>();
+		if (!readableNames.isEmpty()) {
+			AttributeList attributeList = connection.getAttributes(objectName, readableNames.toArray(new String[readableNames.size()]));
+			for (Object attribute : attributeList) {
+				values.put(((Attribute) attribute).getName(), ((Attribute) attribute).getValue());
+			}
+		}
+		return values;
+	}
+	
+	private void writeAttributes(JsonWriter json, MBeanAttributeInfo[] attributeInfos, Map<String, Object> values) {
+		json.name("attributes").beginArray();
+		for (MBeanAttributeInfo attributeInfo : attributeInfos) {
+			json.beginObject();
+			json.name("name").value(attributeInfo.getName());
+			json.name("type").value(attributeInfo.getType());
+			json.name("writable").value(attributeInfo.isWritable());
+			if (!attributeInfo.isReadable()) {
+				json.name("error").value("not readable");
+			} else if (values.containsKey(attributeInfo.getName())) {
+				json.name("value").value(values.get(attributeInfo.getName()));
+			} else {
+				countError();
+				json.name("error").value("could not be read");
+			}
+			json.endObject();
+		}
+		json.endArray();
+	}
+	
+	private static void writeOperations(JsonWriter json, MBeanOperationInfo[] operationInfos) {
+		json.name("operations").beginArray();
+		for (MBeanOperationInfo operationInfo : operationInfos) {
+			json.beginObject();
+			json.name("name").value(operationInfo.getName());
+			json.name("return_type").value(operationInfo.getReturnType());
+			json.name("params").beginArray();
+			for (MBeanParameterInfo parameterInfo : operationInfo.getSignature()) {
+				json.beginObject();
+				json.name("name").value(parameterInfo.getName());
+				json.name("type").value(parameterInfo.getType());
+				json.endObject();
+			}
+			json.endArray();
+			json.endObject();
+		}
+		json.endArray();
+	}
+	
+	private synchronized void countError() {
+		errorCount++;
+	}
+
+}
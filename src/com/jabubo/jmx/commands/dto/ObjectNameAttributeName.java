@@ -18,7 +18,7 @@ import javax.management.ObjectName;
  * @author butzi
  */
 public class ObjectNameAttributeName {
-	private Pattern objectNameAttributeName = Pattern.compile("(.+?)/(.+?)(?:/(.+))*");
+	private static final Pattern objectNameAttributeName = Pattern.compile("(.+?)/(.+?)(?:/(.+))*");
 
 	ObjectName objectName;
 	String attributeName;
@@ -86,6 +86,26 @@ public class ObjectNameAttributeName {
 		return sb.toString();
 	}
 
+	@Override
+	public int hashCode() {
+		int result = objectName.hashCode();
+		result = 31 * result + ((attributeName == null) ? 0 : attributeName.hashCode());
+		result = 31 * result + ((compositePath == null) ? 0 : compositePath.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof ObjectNameAttributeName))
+			return false;
+		ObjectNameAttributeName other = (ObjectNameAttributeName) obj;
+		return objectName.equals(other.objectName)
+			&& ((attributeName == null) ? other.attributeName == null : attributeName.equals(other.attributeName))
+			&& ((compositePath == null) ? other.compositePath == null : compositePath.equals(other.compositePath));
+	}
+
 	public String getCompositePath() {
 		return compositePath;
 	}
@@ -106,6 +126,11 @@ public class ObjectNameAttributeName {
 
 			String theLine;
 			while ((theLine = reader.readLine()) != null) {
+				// skip empty lines and comments
+				theLine = theLine.trim();
+				if (theLine.length() == 0 || theLine.startsWith("#")) {
+					continue;
+				}
 				ObjectNameAttributeName objectNameAttributeName = new ObjectNameAttributeName(theLine);
 				result.add(objectNameAttributeName);
 			}
@@ -5,6 +5,7 @@ import java.net.MalformedURLException;
 import java.util.HashMap;
 
 import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXServiceURL;
 
 import org.hitchhackers.tools.jmx.util.parser.ParsedCommandLine;
@@ -24,4 +25,9 @@ public interface JMXConnectionFactory {
 	
 	void returnConnection(JMXServiceURL url, MBeanServerConnection mbeanServerConnection);
 
+	/**
+	 * returns the connector a connection handed out by this factory belongs to (null if it is not known)
+	 */
+	JMXConnector getConnector(MBeanServerConnection mbeanServerConnection);
+
 }
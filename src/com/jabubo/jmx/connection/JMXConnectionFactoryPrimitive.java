@@ -22,4 +22,9 @@ public class JMXConnectionFactoryPrimitive extends AbstractJMXConnectionFactory
 	public void returnConnection(JMXServiceURL url, MBeanServerConnection mbeanServerConnection) {
 	}
 
+	public JMXConnector getConnector(MBeanServerConnection mbeanServerConnection) {
+		// the connectors are not kept track of
+		return null;
+	}
+
 }
@@ -0,0 +1,569 @@
+package com.jabubo.jmx.connection;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.relation.MBeanServerNotificationFilter;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+
+import org.apache.log4j.Logger;
+import org.hitchhackers.tools.jmx.util.Wildcard;
+
+/**
+ * Local mirror of the MBeans registered at a target.
+ *
+ * The catalog is populated with a single queryNames() call and is then kept up to date by the
+ * registration and unregistration notifications of the target's MBeanServerDelegate. Entries are
+ * kept sorted by canonical name, so lookups and pattern queries run locally without any round trip.
+ * Domains, keys and values are interned, so the many MBeans that share e.g. <code>type=Partition</code>
+ * share the strings as well. MBeanInfos are not part of the catalog, they are looked up in the
+ * {@link MBeanInfoCache}. What searches need of them (the names and types of attributes and operations)
+ * is kept with the entries by {@link #getMetadata(Entry)}: it is fetched once per registered MBean and
+ * goes away with the unregistration. MBeans with the same attributes and operations share their metadata.
+ *
+ * Notifications get lost if the target's notification buffer overflows before the client fetches them.
+ * If the catalog knows the connector, it listens for its NOTIFS_LOST notifications and then rebuilds
+ * itself in the background via {@link #resync()}.
+ *
+ * @author butzi
+ */
+public class MBeanCatalog implements NotificationListener {
+
+	private static final Logger LOGGER = Logger.getLogger(MBeanCatalog.class);
+
+	// one catalog per (pooled) connection - it goes away with the connection
+	private static final Map<MBeanServerConnection, MBeanCatalog> CATALOGS_BY_CONNECTION =
+		new WeakHashMap<MBeanServerConnection, MBeanCatalog>();
+
+	// strings shared by all catalogs; they are dropped as soon as no entry uses them anymore
+	private static final Map<String, WeakReference<String>> INTERNED_STRINGS =
+		new WeakHashMap<String, WeakReference<String>>();
+
+	// the same for the metadata, most MBeans share it with many others
+	private static final Map<Metadata, WeakReference<Metadata>> SHARED_METADATA =
+		new WeakHashMap<Metadata, WeakReference<Metadata>>();
+
+	// the catalog must not keep its connection alive
+	private final WeakReference<MBeanServerConnection> connection;
+	// reports lost notifications; not known for all connections
+	private final WeakReference<JMXConnector> connector;
+
+	private final NavigableMap<String, Entry> entriesByName = new ConcurrentSkipListMap<String, Entry>();
+
+	// notifications that arrive while the catalog is populated are applied afterwards
+	private List<MBeanServerNotification> pendingNotifications = null;
+
+	// guards the initial population, which must not hold the lock of all catalogs
+	private final Object startLock = new Object();
+	private volatile boolean started = false;
+
+	// resyncs run one after the other; a request while one is running schedules another one
+	private final Object resyncLock = new Object();
+	private final AtomicBoolean resyncRequested = new AtomicBoolean();
+
+	private final AtomicLong registrationCount = new AtomicLong();
+	private final AtomicLong unregistrationCount = new AtomicLong();
+
+	private final NotificationListener lostNotificationsListener = new NotificationListener() {
+		public void handleNotification(Notification notification, Object handback) {
+			LOGGER.warn("lost " + notification.getUserData() + " notifications, re-reading the MBean names");
+			requestResync();
+		}
+	};
+
+	MBeanCatalog(MBeanServerConnection connection, JMXConnector connector) {
+		super();
+		this.connection = new WeakReference<MBeanServerConnection>(connection);
+		this.connector = new WeakReference<JMXConnector>(connector);
+	}
+
+	/**
+	 * returns the catalog of the given connection, it is created and populated on first access;
+	 * the connector of the connection (may be null) is used to detect lost notifications
+	 */
+	public static MBeanCatalog getCatalog(MBeanServerConnection connection, JMXConnector connector) throws IOException {
+		MBeanCatalog catalog;
+		synchronized (CATALOGS_BY_CONNECTION) {
+			catalog = CATALOGS_BY_CONNECTION.get(connection);
+			if (catalog == null) {
+				catalog = new MBeanCatalog(connection, connector);
+				CATALOGS_BY_CONNECTION.put(connection, catalog);
+			}
+		}
+		// populated outside the global lock, so other connections don't wait for this target;
+		// concurrent callers for the same connection wait for the first one
+		catalog.ensureStarted();
+		return catalog;
+	}
+
+	/**
+	 * returns the catalog of the given connection if it has been populated already, null otherwise
+	 */
+	public static MBeanCatalog getExistingCatalog(MBeanServerConnection connection) {
+		MBeanCatalog catalog;
+		synchronized (CATALOGS_BY_CONNECTION) {
+			catalog = CATALOGS_BY_CONNECTION.get(connection);
+		}
+		return (catalog != null && catalog.started) ? catalog : null;
+	}
+
+	private void ensureStarted() throws IOException {
+		synchronized (startLock) {
+			// a failed start is retried by the next caller
+			if (!started) {
+				start();
+				started = true;
+			}
+		}
+	}
+
+	void start() throws IOException {
+		MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+		filter.enableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+		filter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+		filter.enableAllObjectNames();
+		MBeanServerConnection mbeanServerConnection = getConnection();
+		try {
+			// listen first, so we don't miss anything that happens while populating
+			mbeanServerConnection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+		} catch (InstanceNotFoundException e) {
+			throw new IOException("could not listen for MBean registrations : " + e.getMessage());
+		}
+		boolean populated = false;
+		try {
+			resync();
+			populated = true;
+		} finally {
+			if (!populated) {
+				removeListener(mbeanServerConnection);
+			}
+		}
+
+		JMXConnector jmxConnector = connector.get();
+		if (jmxConnector != null) {
+			NotificationFilterSupport lostFilter = new NotificationFilterSupport();
+			lostFilter.enableType(JMXConnectionNotification.NOTIFS_LOST);
+			jmxConnector.addConnectionNotificationListener(lostNotificationsListener, lostFilter, null);
+		}
+	}
+
+	/**
+	 * stops listening for notifications; the catalog won't be updated anymore
+	 */
+	public void stop() {
+		MBeanServerConnection mbeanServerConnection = connection.get();
+		if (mbeanServerConnection == null) {
+			return;
+		}
+		synchronized (CATALOGS_BY_CONNECTION) {
+			CATALOGS_BY_CONNECTION.remove(mbeanServerConnection);
+		}
+		if (started) {
+			removeListener(mbeanServerConnection);
+			JMXConnector jmxConnector = connector.get();
+			if (jmxConnector != null) {
+				try {
+					jmxConnector.removeConnectionNotificationListener(lostNotificationsListener);
+				} catch (ListenerNotFoundException e) {
+					LOGGER.debug("could not remove lost notifications listener : " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void removeListener(MBeanServerConnection mbeanServerConnection) {
+		try {
+			mbeanServerConnection.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+		} catch (Exception e) {
+			LOGGER.debug("could not remove registration listener : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * resyncs in a separate thread - the connector's notification thread must not wait for the query
+	 */
+	private void requestResync() {
+		if (!resyncRequested.compareAndSet(false, true)) {
+			// the scheduled resync hasn't started yet and will see what got lost so far
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				synchronized (resyncLock) {
+					resyncRequested.set(false);
+					try {
+						resync();
+					} catch (IOException e) {
+						LOGGER.warn("could not re-read the MBean names : " + e.getMessage());
+					}
+				}
+			}
+		}, "MBeanCatalog resync");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * re-reads all MBean names from the target
+	 */
+	public void resync() throws IOException {
+		synchronized (resyncLock) {
+			doResync();
+		}
+	}
+
+	private void doResync() throws IOException {
+		synchronized (this) {
+			pendingNotifications = new ArrayList<MBeanServerNotification>();
+		}
+
+		Set<ObjectName> names;
+		try {
+			names = getConnection().queryNames(null, null);
+		} catch (IOException e) {
+			synchronized (this) {
+				pendingNotifications = null;
+			}
+			throw e;
+		}
+
+		synchronized (this) {
+			// keep the entries that are still there
+			Set<String> canonicalNames = new HashSet<String>();
+			for (ObjectName objectName : names) {
+				canonicalNames.add(objectName.getCanonicalName());
+				if (!entriesByName.containsKey(objectName.getCanonicalName())) {
+					add(objectName);
+				}
+			}
+			entriesByName.keySet().retainAll(canonicalNames);
+			for (MBeanServerNotification notification : pendingNotifications) {
+				apply(notification);
+			}
+			pendingNotifications = null;
+		}
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("catalog contains " + entriesByName.size() + " MBeans");
+		}
+	}
+
+	public void handleNotification(Notification notification, Object handback) {
+		if (notification instanceof MBeanServerNotification) {
+			synchronized (this) {
+				if (pendingNotifications != null) {
+					pendingNotifications.add((MBeanServerNotification) notification);
+				} else {
+					apply((MBeanServerNotification) notification);
+				}
+			}
+		}
+	}
+
+	private void apply(MBeanServerNotification notification) {
+		if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+			registrationCount.incrementAndGet();
+			add(notification.getMBeanName());
+		} else {
+			unregistrationCount.incrementAndGet();
+			entriesByName.remove(notification.getMBeanName().getCanonicalName());
+		}
+	}
+
+	private void add(ObjectName objectName) {
+		Entry entry = new Entry(objectName);
+		entriesByName.put(entry.canonicalName, entry);
+	}
+
+	public boolean contains(String canonicalName) {
+		return entriesByName.containsKey(canonicalName);
+	}
+
+	public Entry get(String canonicalName) {
+		return entriesByName.get(canonicalName);
+	}
+
+	public int size() {
+		return entriesByName.size();
+	}
+
+	public long getRegistrationCount() {
+		return registrationCount.get();
+	}
+
+	public long getUnregistrationCount() {
+		return unregistrationCount.get();
+	}
+
+	/**
+	 * returns all entries matching the given pattern (all entries if it is null), sorted by canonical name
+	 */
+	public List<Entry> query(ObjectName pattern) {
+		List<Entry> result = new ArrayList<Entry>();
+		Collection<Entry> candidates = entriesByName.values();
+		if (pattern != null && !pattern.isDomainPattern()) {
+			// canonical names start with the domain followed by ':', so all of them lie in this range
+			String domain = pattern.getDomain();
+			candidates = entriesByName.subMap(domain + ":", domain + ";").values();
+		}
+		for (Entry entry : candidates) {
+			if (pattern == null || entry.matches(pattern)) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * returns the MBeanInfo of the given entry (via the MBeanInfo cache)
+	 */
+	public MBeanInfo getMBeanInfo(Entry entry) throws IOException, InstanceNotFoundException, IntrospectionException, ReflectionException {
+		return MBeanInfoCache.getInstance().getMBeanInfo(getConnection(), entry.getObjectName());
+	}
+
+	/**
+	 * returns the names and types of the entry's attributes and operations; they are read from its
+	 * MBeanInfo on first access and kept until the MBean is unregistered
+	 */
+	public Metadata getMetadata(Entry entry) throws IOException, InstanceNotFoundException, IntrospectionException, ReflectionException {
+		Metadata metadata = entry.metadata;
+		if (metadata == null) {
+			metadata = share(new Metadata(getMBeanInfo(entry)));
+			entry.metadata = metadata;
+		}
+		return metadata;
+	}
+
+	private MBeanServerConnection getConnection() throws IOException {
+		MBeanServerConnection mbeanServerConnection = connection.get();
+		if (mbeanServerConnection == null) {
+			throw new IOException("the connection of this catalog has been closed");
+		}
+		return mbeanServerConnection;
+	}
+
+	static String intern(String string) {
+		synchronized (INTERNED_STRINGS) {
+			WeakReference<String> reference = INTERNED_STRINGS.get(string);
+			String interned = (reference == null) ? null : reference.get();
+			if (interned == null) {
+				INTERNED_STRINGS.put(string, new WeakReference<String>(string));
+				interned = string;
+			}
+			return interned;
+		}
+	}
+
+	static Metadata share(Metadata metadata) {
+		synchronized (SHARED_METADATA) {
+			WeakReference<Metadata> reference = SHARED_METADATA.get(metadata);
+			Metadata shared = (reference == null) ? null : reference.get();
+			if (shared == null) {
+				SHARED_METADATA.put(metadata, new WeakReference<Metadata>(metadata));
+				shared = metadata;
+			}
+			return shared;
+		}
+	}
+
+	/**
+	 * an MBean in the catalog
+	 */
+	public static class Entry {
+
+		private final String canonicalName;
+		private final String domain;
+		// keys and values in canonical (i.e. key) order: key0, value0, key1, value1...
+		private final String[] properties;
+		// read lazily, see getMetadata()
+		private volatile Metadata metadata = null;
+
+		Entry(ObjectName objectName) {
+			canonicalName = objectName.getCanonicalName();
+			domain = intern(objectName.getDomain());
+
+			Hashtable<String, String> keyPropertyList = objectName.getKeyPropertyList();
+			String[] keys = keyPropertyList.keySet().toArray(new String[keyPropertyList.size()]);
+			Arrays.sort(keys);
+			properties = new String[keys.length * 2];
+			for (int i = 0; i < keys.length; i++) {
+				properties[i * 2] = intern(keys[i]);
+				properties[i * 2 + 1] = intern(keyPropertyList.get(keys[i]));
+			}
+		}
+
+		public String getCanonicalName() {
+			return canonicalName;
+		}
+
+		public String getDomain() {
+			return domain;
+		}
+
+		/**
+		 * returns the value of the given key property (or null if the MBean does not have it)
+		 */
+		public String getKeyProperty(String key) {
+			for (int i = 0; i < properties.length; i += 2) {
+				if (properties[i].equals(key)) {
+					return properties[i + 1];
+				}
+			}
+			return null;
+		}
+
+		public int getKeyPropertyCount() {
+			return properties.length / 2;
+		}
+
+		public String getKey(int index) {
+			return properties[index * 2];
+		}
+
+		public String getValue(int index) {
+			return properties[index * 2 + 1];
+		}
+
+		/**
+		 * returns the metadata if it has been read already (see {@link MBeanCatalog#getMetadata(Entry)}), null otherwise
+		 */
+		public Metadata getMetadata() {
+			return metadata;
+		}
+
+		public ObjectName getObjectName() {
+			try {
+				return ObjectName.getInstance(canonicalName);
+			} catch (Exception e) {
+				// it has been a valid name when the entry was created
+				throw new IllegalStateException(e);
+			}
+		}
+
+		boolean matches(ObjectName pattern) {
+			if (pattern.isDomainPattern() ? !Wildcard.matches(pattern.getDomain(), domain) : !pattern.getDomain().equals(domain)) {
+				return false;
+			}
+
+			Hashtable<String, String> patternProperties = pattern.getKeyPropertyList();
+			if (!pattern.isPropertyListPattern() && patternProperties.size() != getKeyPropertyCount()) {
+				return false;
+			}
+			for (Map.Entry<String, String> patternProperty : patternProperties.entrySet()) {
+				String value = getKeyProperty(patternProperty.getKey());
+				if (value == null) {
+					return false;
+				}
+				if (pattern.isPropertyValuePattern(patternProperty.getKey()) ?
+						!Wildcard.matches(patternProperty.getValue(), value) : !patternProperty.getValue().equals(value)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+	}
+
+	/**
+	 * the names and types of the attributes and operations of an MBean
+	 */
+	public static class Metadata {
+
+		// name and type of each attribute
+		private final String[][] attributes;
+		// name, return type and parameter types of each operation
+		private final String[][] operations;
+
+		Metadata(MBeanInfo beanInfo) {
+			MBeanAttributeInfo[] attributeInfos = beanInfo.getAttributes();
+			attributes = new String[attributeInfos.length][];
+			for (int i = 0; i < attributeInfos.length; i++) {
+				attributes[i] = new String[] { intern(attributeInfos[i].getName()), intern(attributeInfos[i].getType()) };
+			}
+
+			MBeanOperationInfo[] operationInfos = beanInfo.getOperations();
+			operations = new String[operationInfos.length][];
+			for (int i = 0; i < operationInfos.length; i++) {
+				MBeanParameterInfo[] signature = operationInfos[i].getSignature();
+				operations[i] = new String[signature.length + 2];
+				operations[i][0] = intern(operationInfos[i].getName());
+				operations[i][1] = intern(operationInfos[i].getReturnType());
+				for (int j = 0; j < signature.length; j++) {
+					operations[i][j + 2] = intern(signature[j].getType());
+				}
+			}
+		}
+
+		public int getAttributeCount() {
+			return attributes.length;
+		}
+
+		public String getAttributeName(int index) {
+			return attributes[index][0];
+		}
+
+		public String getAttributeType(int index) {
+			return attributes[index][1];
+		}
+
+		public int getOperationCount() {
+			return operations.length;
+		}
+
+		public String getOperationName(int index) {
+			return operations[index][0];
+		}
+
+		public String getOperationReturnType(int index) {
+			return operations[index][1];
+		}
+
+		public String[] getOperationParameterTypes(int index) {
+			return Arrays.copyOfRange(operations[index], 2, operations[index].length);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Metadata)) {
+				return false;
+			}
+			Metadata other = (Metadata) obj;
+			return Arrays.deepEquals(attributes, other.attributes) && Arrays.deepEquals(operations, other.operations);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Arrays.deepHashCode(attributes) + Arrays.deepHashCode(operations);
+		}
+
+	}
+
+}
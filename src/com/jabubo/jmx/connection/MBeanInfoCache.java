@@ -0,0 +1,256 @@
+package com.jabubo.jmx.connection;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Cache for the {@link MBeanInfo}s of remote MBeans, so commands that only need to look up an
+ * attribute or operation do not have to fetch the complete metadata on every call.
+ * 
+ * There is one cache per connection (i.e. per target and credentials, as connections are pooled).
+ * Entries expire after a TTL, each cache holds a limited number of entries (least recently used ones
+ * are evicted first) and entries are dropped as soon as the target reports that the MBean has been
+ * (un)registered. The statistics are exposed via JMX.
+ * 
+ * The cache is disabled unless the connections outlive a single command (daemon, servlet): a one-shot
+ * run would pay for the registration listener without ever hitting the cache, so it fetches the
+ * MBeanInfos directly.
+ * 
+ * @author butzi
+ */
+public class MBeanInfoCache implements MBeanInfoCacheMBean {
+	
+	private static final Logger LOGGER = Logger.getLogger(MBeanInfoCache.class);
+
+	public static final String TTL_PROPERTY = "jmxconsole.mbeaninfo.ttl";
+	public static final String SIZE_PROPERTY = "jmxconsole.mbeaninfo.size";
+	
+	private static final MBeanInfoCache INSTANCE = new MBeanInfoCache(
+		Integer.getInteger(TTL_PROPERTY, 300) * 1000L, 
+		Integer.getInteger(SIZE_PROPERTY, 1000)
+	);
+	
+	private final long ttlMillis;
+	private final int maxSize;
+	
+	private volatile boolean enabled = false;
+	
+	// the caches go away with the (pooled) connections they belong to
+	private final Map<MBeanServerConnection, TargetCache> cachesByConnection = 
+		new WeakHashMap<MBeanServerConnection, TargetCache>();
+	
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong invalidationCount = new AtomicLong();
+
+	MBeanInfoCache(long ttlMillis, int maxSize) {
+		super();
+		this.ttlMillis = ttlMillis;
+		this.maxSize = maxSize;
+	}
+	
+	public static MBeanInfoCache getInstance() {
+		return INSTANCE;
+	}
+	
+	/**
+	 * to be enabled by processes that keep their (pooled) connections across commands
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+	
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	static {
+		try {
+			MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+			mbs.registerMBean(INSTANCE, new ObjectName("org.hitchhackers.tools.jmx.connection:type=MBeanInfoCache"));
+		} catch (Exception e) {
+			LOGGER.warn("could not register MBeanInfo cache JMX MBean : ", e);
+		}
+	}
+
+	/**
+	 * returns the (possibly cached) MBeanInfo of the given MBean
+	 */
+	public MBeanInfo getMBeanInfo(MBeanServerConnection connection, ObjectName objectName) 
+			throws IOException, InstanceNotFoundException, IntrospectionException, ReflectionException {
+		if (!enabled) {
+			return connection.getMBeanInfo(objectName);
+		}
+		TargetCache targetCache = getTargetCache(connection);
+		MBeanInfo beanInfo = targetCache.get(objectName);
+		if (beanInfo != null) {
+			hitCount.incrementAndGet();
+			return beanInfo;
+		}
+		
+		missCount.incrementAndGet();
+		beanInfo = connection.getMBeanInfo(objectName);
+		targetCache.put(objectName, beanInfo);
+		return beanInfo;
+	}
+	
+	/**
+	 * drops the cached MBeanInfo of the given MBean (e.g. if it turned out to be outdated)
+	 */
+	public void invalidate(MBeanServerConnection connection, ObjectName objectName) {
+		TargetCache targetCache;
+		synchronized (cachesByConnection) {
+			targetCache = cachesByConnection.get(connection);
+		}
+		if (targetCache != null) {
+			targetCache.remove(objectName);
+		}
+	}
+
+	private TargetCache getTargetCache(MBeanServerConnection connection) throws IOException {
+		synchronized (cachesByConnection) {
+			TargetCache targetCache = cachesByConnection.get(connection);
+			if (targetCache == null) {
+				targetCache = new TargetCache();
+				targetCache.listen(connection);
+				cachesByConnection.put(connection, targetCache);
+			}
+			return targetCache;
+		}
+	}
+	
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public double getHitRate() {
+		long hits = hitCount.get();
+		long lookups = hits + missCount.get();
+		return (lookups == 0) ? 0 : (double) hits / lookups;
+	}
+
+	public long getInvalidationCount() {
+		return invalidationCount.get();
+	}
+
+	public int getSize() {
+		int size = 0;
+		synchronized (cachesByConnection) {
+			for (TargetCache targetCache : cachesByConnection.values()) {
+				size += targetCache.size();
+			}
+		}
+		return size;
+	}
+
+	public void clear() {
+		synchronized (cachesByConnection) {
+			for (TargetCache targetCache : cachesByConnection.values()) {
+				targetCache.clear();
+			}
+		}
+	}
+
+	/**
+	 * the cached MBeanInfos of one connection; must not reference the connection itself, otherwise
+	 * it would never be dropped from the WeakHashMap
+	 */
+	class TargetCache implements NotificationListener {
+		
+		private final Map<ObjectName, CacheEntry> entries = new LinkedHashMap<ObjectName, CacheEntry>(16, 0.75f, true) {
+			
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ObjectName, CacheEntry> eldest) {
+				return size() > maxSize;
+			}
+			
+		};
+		
+		void listen(MBeanServerConnection connection) throws IOException {
+			MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+			filter.enableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+			filter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+			filter.enableAllObjectNames();
+			try {
+				connection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+			} catch (InstanceNotFoundException e) {
+				// every MBeanServer has a delegate, but let's not fail because of it - we still have the TTL
+				LOGGER.warn("could not listen for MBean registrations, cached MBeanInfos will only expire : " + e.getMessage());
+			}
+		}
+
+		public void handleNotification(Notification notification, Object handback) {
+			if (notification instanceof MBeanServerNotification) {
+				remove(((MBeanServerNotification) notification).getMBeanName());
+			}
+		}
+		
+		synchronized MBeanInfo get(ObjectName objectName) {
+			CacheEntry entry = entries.get(objectName);
+			if (entry == null) {
+				return null;
+			}
+			if (System.currentTimeMillis() - entry.created > ttlMillis) {
+				entries.remove(objectName);
+				return null;
+			}
+			return entry.beanInfo;
+		}
+		
+		synchronized void put(ObjectName objectName, MBeanInfo beanInfo) {
+			entries.put(objectName, new CacheEntry(beanInfo));
+		}
+		
+		synchronized void remove(ObjectName objectName) {
+			if (entries.remove(objectName) != null) {
+				invalidationCount.incrementAndGet();
+			}
+		}
+		
+		synchronized int size() {
+			return entries.size();
+		}
+		
+		synchronized void clear() {
+			entries.clear();
+		}
+		
+	}
+	
+	static class CacheEntry {
+		
+		final MBeanInfo beanInfo;
+		final long created = System.currentTimeMillis();
+		
+		CacheEntry(MBeanInfo beanInfo) {
+			this.beanInfo = beanInfo;
+		}
+		
+	}
+
+}
@@ -0,0 +1,22 @@
+package com.jabubo.jmx.connection;
+
+public interface MBeanInfoCacheMBean {
+
+	boolean isEnabled();
+	
+	long getHitCount();
+	
+	long getMissCount();
+	
+	/**
+	 * hits divided by lookups (0 if there have not been any lookups yet)
+	 */
+	double getHitRate();
+	
+	long getInvalidationCount();
+	
+	int getSize();
+	
+	void clear();
+	
+}
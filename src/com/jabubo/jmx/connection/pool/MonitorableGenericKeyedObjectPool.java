@@ -9,12 +9,12 @@ import org.apache.commons.pool.KeyedPoolableObjectFactory;
 import org.apache.commons.pool.impl.GenericKeyedObjectPool;
 import org.apache.log4j.Logger;
 
-public class MonitorableGenericKeyedObjectPool extends GenericKeyedObjectPool
+public class MonitorableGenericKeyedObjectPool<K, V> extends GenericKeyedObjectPool<K, V>
 		implements MonitorableGenericKeyedObjectPoolMBean {
 	
 	Logger LOGGER = Logger.getLogger(MonitorableGenericKeyedObjectPoolMBean.class);
 
-	public MonitorableGenericKeyedObjectPool(KeyedPoolableObjectFactory factory) {
+	public MonitorableGenericKeyedObjectPool(KeyedPoolableObjectFactory<K, V> factory) {
 		super(factory);
 		registerJMX();
 	}
@@ -1,69 +1,250 @@
 package com.jabubo.jmx.connection.pool;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
 import org.apache.commons.pool.BaseKeyedPoolableObjectFactory;
 import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.apache.log4j.Logger;
 import org.hitchhackers.tools.jmx.connection.AbstractJMXConnectionFactory;
 
 /**
  * JMXConnectionFactory that uses Apache's "commons-pool" library for
  * pooling the JMX connection access to the client machines.
- * 
+ *
+ * The pool holds {@link JMXConnector}s keyed by service URL and credentials. Connectors are
+ * validated when they are borrowed, idle ones are evicted by the pool's evictor thread and
+ * closed when they are dropped from the pool.
+ *
  * @author butzi
  */
 public class PoolingConnectionFactory extends AbstractJMXConnectionFactory {
 
-	private GenericKeyedObjectPool genericKeyedObjectPool;
+	private static final Logger LOGGER = Logger.getLogger(PoolingConnectionFactory.class);
+
+	// how often the evictor looks for idle connectors and how long they may stay idle
+	private static final long EVICTION_RUN_INTERVAL_MILLIS = 60 * 1000L;
+	private static final long MIN_EVICTABLE_IDLE_MILLIS = 5 * 60 * 1000L;
+
+	private GenericKeyedObjectPool<ConnectionKey, PooledConnector> genericKeyedObjectPool;
+
+	// remembers which connector (and pool key) a handed-out MBeanServerConnection belongs to
+	private final Map<MBeanServerConnection, PooledConnector> borrowedConnectors =
+		new IdentityHashMap<MBeanServerConnection, PooledConnector>();
 
 	public PoolingConnectionFactory() {
 		super();
-		genericKeyedObjectPool = new MonitorableGenericKeyedObjectPool(new FactoryForNewInstances());
+		genericKeyedObjectPool = new MonitorableGenericKeyedObjectPool<ConnectionKey, PooledConnector>(new FactoryForNewInstances());
 		genericKeyedObjectPool.setWhenExhaustedAction(GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW);
+		genericKeyedObjectPool.setTestOnBorrow(true);
+		genericKeyedObjectPool.setTimeBetweenEvictionRunsMillis(EVICTION_RUN_INTERVAL_MILLIS);
+		genericKeyedObjectPool.setMinEvictableIdleTimeMillis(MIN_EVICTABLE_IDLE_MILLIS);
 	}
 
 	@Override
 	public MBeanServerConnection getConnection(JMXServiceURL url, HashMap<String, String[]> environment)
 			throws IOException {
+		ConnectionKey key = new ConnectionKey(url, environment);
+		PooledConnector pooledConnector;
 		try {
-			JMXConnector connector = JMXConnectorFactory.connect(url, environment);
-			
-			// Retrieve an MBeanServerConnection that represent the MBeanServer the remote
-			// connector server is bound to
-			return connector.getMBeanServerConnection();
+			pooledConnector = genericKeyedObjectPool.borrowObject(key);
+		} catch (IOException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new IOException(e);
 		}
+
+		MBeanServerConnection connection = pooledConnector.getConnection();
+		synchronized (borrowedConnectors) {
+			borrowedConnectors.put(connection, pooledConnector);
+		}
+		return connection;
 	}
 
 	public void returnConnection(JMXServiceURL url, MBeanServerConnection mbeanServerConnection) {
+		PooledConnector pooledConnector;
+		synchronized (borrowedConnectors) {
+			pooledConnector = borrowedConnectors.remove(mbeanServerConnection);
+		}
+		if (pooledConnector == null) {
+			LOGGER.warn("tried to return a connection to '" + url + "' that has not been borrowed from this pool");
+			return;
+		}
+
 		try {
-			genericKeyedObjectPool.returnObject(url, mbeanServerConnection);
+			genericKeyedObjectPool.returnObject(pooledConnector.getKey(), pooledConnector);
 		} catch (Exception e) {
-			e.printStackTrace();
+			LOGGER.warn("could not return connection to '" + url + "' to the pool : ", e);
+		}
+	}
+
+	public JMXConnector getConnector(MBeanServerConnection mbeanServerConnection) {
+		PooledConnector pooledConnector;
+		synchronized (borrowedConnectors) {
+			pooledConnector = borrowedConnectors.get(mbeanServerConnection);
+		}
+		return (pooledConnector == null) ? null : pooledConnector.getConnector();
+	}
+
+	/**
+	 * pool key - connectors may only be shared between callers that use the same URL and credentials
+	 */
+	static class ConnectionKey {
+
+		private final JMXServiceURL url;
+		private final HashMap<String, String[]> environment;
+		private final String[] credentials;
+
+		ConnectionKey(JMXServiceURL url, HashMap<String, String[]> environment) {
+			this.url = url;
+			this.environment = environment;
+			this.credentials = (environment == null) ? null : environment.get(JMXConnector.CREDENTIALS);
+		}
+
+		public JMXServiceURL getUrl() {
+			return url;
+		}
+
+		public HashMap<String, String[]> getEnvironment() {
+			return environment;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof ConnectionKey))
+				return false;
+			ConnectionKey other = (ConnectionKey) obj;
+			return url.equals(other.url) && Arrays.equals(credentials, other.credentials);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * url.hashCode() + Arrays.hashCode(credentials);
+		}
+
+		@Override
+		public String toString() {
+			// never print the password
+			if (credentials != null && credentials.length > 0) {
+				return credentials[0] + "@" + url;
+			}
+			return url.toString();
+		}
+
+	}
+
+	/**
+	 * a connector living in the pool; it notices if the underlying connection fails or gets closed
+	 */
+	static class PooledConnector implements NotificationListener {
+
+		private final ConnectionKey key;
+		private final JMXConnector connector;
+		private final MBeanServerConnection connection;
+		private volatile boolean broken = false;
+
+		PooledConnector(ConnectionKey key, JMXConnector connector) throws IOException {
+			this.key = key;
+			this.connector = connector;
+			this.connection = connector.getMBeanServerConnection();
+			connector.addConnectionNotificationListener(this, null, null);
+		}
+
+		public ConnectionKey getKey() {
+			return key;
+		}
+
+		public MBeanServerConnection getConnection() {
+			return connection;
+		}
+
+		public JMXConnector getConnector() {
+			return connector;
+		}
+
+		public void handleNotification(Notification notification, Object handback) {
+			String type = notification.getType();
+			if (JMXConnectionNotification.FAILED.equals(type) || JMXConnectionNotification.CLOSED.equals(type)) {
+				broken = true;
+			}
 		}
-		
+
+		boolean isValid() {
+			if (broken) {
+				return false;
+			}
+			try {
+				connector.getConnectionId();
+				return true;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		void close() {
+			try {
+				connector.removeConnectionNotificationListener(this);
+			} catch (Exception e) {
+				// the listener is gone with the connector anyway
+			}
+			try {
+				connector.close();
+			} catch (IOException e) {
+				LOGGER.debug("could not close connector to '" + key + "' : " + e.getMessage());
+			}
+		}
+
 	}
-	
-	class FactoryForNewInstances extends BaseKeyedPoolableObjectFactory {
+
+	class FactoryForNewInstances extends BaseKeyedPoolableObjectFactory<ConnectionKey, PooledConnector> {
 
 		@Override
-		public Object makeObject(Object key) throws Exception {
-			JMXServiceURL url = (JMXServiceURL) key;
-			JMXConnector connector = JMXConnectorFactory.connect(url);			
-			
+		public PooledConnector makeObject(ConnectionKey connectionKey) throws Exception {
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("opening new JMX connection to '" + connectionKey + "'");
+			}
+			JMXConnector connector = JMXConnectorFactory.connect(connectionKey.getUrl(), connectionKey.getEnvironment());
+
 			// Retrieve an MBeanServerConnection that represent the MBeanServer the remote
 			// connector server is bound to
-			MBeanServerConnection beanServerConnection = connector.getMBeanServerConnection();
-			return beanServerConnection;
+			try {
+				return new PooledConnector(connectionKey, connector);
+			} catch (IOException e) {
+				connector.close();
+				throw e;
+			}
 		}
-		
+
+		@Override
+		public boolean validateObject(ConnectionKey key, PooledConnector pooledConnector) {
+			boolean valid = pooledConnector.isValid();
+			if (!valid) {
+				LOGGER.debug("discarding broken JMX connection to '" + key + "'");
+			}
+			return valid;
+		}
+
+		@Override
+		public void destroyObject(ConnectionKey key, PooledConnector pooledConnector) throws Exception {
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("closing JMX connection to '" + key + "'");
+			}
+			pooledConnector.close();
+		}
+
 	}
-	
+
 }
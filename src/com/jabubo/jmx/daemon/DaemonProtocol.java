@@ -0,0 +1,205 @@
+package com.jabubo.jmx.daemon;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * wire format between {@link JMXConsoleClient} and {@link JMXConsoleDaemon}
+ * 
+ * The client sends the daemon's token, the number of arguments and the arguments themselves. The
+ * daemon answers with a sequence of frames: output frames for STDOUT and STDERR (type byte, length,
+ * bytes) and a final exit frame (type byte, exit code).
+ * 
+ * The token is a random secret the daemon writes to a file only its user can read (by default
+ * <code>~/.jmxconsole/daemon-&lt;port&gt;.token</code>). Commands run over the daemon's JMX connections,
+ * so other local users must not be able to send any.
+ * 
+ * @author butzi
+ */
+public class DaemonProtocol {
+
+	public static final String PORT_PROPERTY = "jmxconsole.daemon.port";
+	public static final int DEFAULT_PORT = 7197;
+	public static final String TOKEN_FILE_PROPERTY = "jmxconsole.daemon.token_file";
+
+	// exit code sent if the token does not match (the tool itself uses 0 - 3)
+	public static final int EXIT_UNAUTHORIZED = 4;
+
+	private static final int TOKEN_BYTES = 32;
+
+	public static final byte FRAME_STDOUT = 'o';
+	public static final byte FRAME_STDERR = 'e';
+	public static final byte FRAME_EXIT = 'x';
+
+	private DaemonProtocol() {
+		super();
+	}
+
+	public static int getPort() {
+		return Integer.getInteger(PORT_PROPERTY, DEFAULT_PORT);
+	}
+
+	public static File getTokenFile() {
+		String tokenFile = System.getProperty(TOKEN_FILE_PROPERTY);
+		if (tokenFile != null) {
+			return new File(tokenFile);
+		}
+		return new File(new File(System.getProperty("user.home"), ".jmxconsole"), "daemon-" + getPort() + ".token");
+	}
+
+	/**
+	 * creates a new random token and writes it to the file, which is made readable for its owner only
+	 * before the token is written
+	 */
+	public static String createToken(File file) throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory()) {
+			if (!directory.mkdirs()) {
+				throw new IOException("could not create directory '" + directory + "'");
+			}
+			restrictToOwner(directory);
+			directory.setExecutable(false, false);
+			directory.setExecutable(true, true);
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("could not replace token file '" + file + "'");
+		}
+		if (!file.createNewFile() || !restrictToOwner(file)) {
+			throw new IOException("could not create token file '" + file + "' readable for its owner only");
+		}
+
+		byte[] bytes = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder token = new StringBuilder(TOKEN_BYTES * 2);
+		for (byte b : bytes) {
+			token.append(Character.forDigit((b >> 4) & 0xf, 16));
+			token.append(Character.forDigit(b & 0xf, 16));
+		}
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "US-ASCII");
+		try {
+			writer.write(token.toString());
+		} finally {
+			writer.close();
+		}
+		return token.toString();
+	}
+
+	public static String readToken(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+		try {
+			String token = reader.readLine();
+			if (token == null) {
+				throw new IOException("token file '" + file + "' is empty");
+			}
+			return token.trim();
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * compares the tokens in constant time, so the token can't be guessed by timing the daemon's answers
+	 */
+	public static boolean isValidToken(String expected, String actual) {
+		try {
+			return MessageDigest.isEqual(expected.getBytes("US-ASCII"), actual.getBytes("US-ASCII"));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static boolean restrictToOwner(File file) {
+		return file.setReadable(false, false) && file.setReadable(true, true)
+			&& file.setWritable(false, false) && file.setWritable(true, true);
+	}
+
+	public static void writeToken(DataOutputStream out, String token) throws IOException {
+		out.writeUTF(token);
+	}
+
+	public static String readToken(DataInputStream in) throws IOException {
+		return in.readUTF();
+	}
+
+	public static void writeArgs(DataOutputStream out, String[] args) throws IOException {
+		out.writeInt(args.length);
+		for (String arg : args) {
+			out.writeUTF(arg);
+		}
+		out.flush();
+	}
+
+	public static String[] readArgs(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count < 0) {
+			throw new IOException("invalid argument count " + count);
+		}
+		String[] args = new String[count];
+		for (int i = 0; i < count; i++) {
+			args[i] = in.readUTF();
+		}
+		return args;
+	}
+
+	public static void writeExit(DataOutputStream out, int exitCode) throws IOException {
+		synchronized (out) {
+			out.writeByte(FRAME_EXIT);
+			out.writeInt(exitCode);
+			out.flush();
+		}
+	}
+
+	/**
+	 * stream that sends everything written to it as output frames of the given type
+	 */
+	static class FrameOutputStream extends OutputStream {
+
+		private final DataOutputStream out;
+		private final byte frameType;
+
+		FrameOutputStream(DataOutputStream out, byte frameType) {
+			super();
+			this.out = out;
+			this.frameType = frameType;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			// STDOUT and STDERR share the socket
+			synchronized (out) {
+				out.writeByte(frameType);
+				out.writeInt(len);
+				out.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			synchronized (out) {
+				out.flush();
+			}
+		}
+
+	}
+
+}
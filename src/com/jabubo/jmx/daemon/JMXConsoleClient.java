@@ -0,0 +1,84 @@
+package com.jabubo.jmx.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Minimal client for {@link JMXConsoleDaemon} - forwards its arguments to the daemon, prints the 
+ * results and exits with the exit code of the command.
+ * 
+ * This class deliberately does not touch log4j, the commands or any other part of the tool so that
+ * the client JVM starts up as fast as possible.
+ * 
+ * @author butzi
+ */
+public class JMXConsoleClient {
+
+	public static void main(String[] args) {
+		int port = DaemonProtocol.getPort();
+		Socket socket = null;
+		try {
+			String token = DaemonProtocol.readToken(DaemonProtocol.getTokenFile());
+			socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+			DaemonProtocol.writeToken(out, token);
+			DaemonProtocol.writeArgs(out, args);
+			int exitCode = readResponse(in);
+			if (exitCode == DaemonProtocol.EXIT_UNAUTHORIZED) {
+				System.err.println("The JMX console daemon on port " + port + " rejected the token in '" + DaemonProtocol.getTokenFile() + "'");
+			}
+			System.exit(exitCode);
+		} catch (IOException e) {
+			System.err.println("Could not talk to the JMX console daemon on port " + port + " : " + e.getMessage());
+			System.exit(2);
+		} finally {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// we're exiting anyway
+				}
+			}
+		}
+	}
+
+	private static int readResponse(DataInputStream in) throws IOException {
+		byte[] buffer = new byte[8192];
+		while (true) {
+			byte frameType;
+			try {
+				frameType = in.readByte();
+			} catch (EOFException e) {
+				throw new IOException("daemon closed the connection without sending an exit code");
+			}
+
+			if (frameType == DaemonProtocol.FRAME_EXIT) {
+				System.out.flush();
+				System.err.flush();
+				return in.readInt();
+			}
+
+			PrintStream target = (frameType == DaemonProtocol.FRAME_STDERR) ? System.err : System.out;
+			int length = in.readInt();
+			while (length > 0) {
+				int read = in.read(buffer, 0, Math.min(length, buffer.length));
+				if (read < 0) {
+					throw new IOException("unexpected end of stream");
+				}
+				target.write(buffer, 0, read);
+				length -= read;
+			}
+			target.flush();
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.jabubo.jmx.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+import org.hitchhackers.tools.jmx.JMXConsoleTool;
+import org.hitchhackers.tools.jmx.connection.MBeanInfoCache;
+
+/**
+ * Long-running process that executes command lines sent by {@link JMXConsoleClient}.
+ * 
+ * Commands run exactly like they do when called via {@link JMXConsoleTool}, but the JVM, the loaded
+ * classes and the pooled JMX connections stay alive between calls. The daemon only listens on the
+ * loopback interface (port taken from the system property <code>jmxconsole.daemon.port</code>) and
+ * only executes commands of clients that send the token it has written to its token file (see
+ * {@link DaemonProtocol}) - other local users could use its JMX connections otherwise.
+ * 
+ * @author butzi
+ */
+public class JMXConsoleDaemon {
+
+	private static final Logger LOGGER = Logger.getLogger(JMXConsoleDaemon.class);
+
+	private static final int DEFAULT_THREADS = 16;
+
+	// a client has to send its token and command within this time, so idle connections don't block a worker
+	private static final int REQUEST_TIMEOUT_MILLIS = 10 * 1000;
+
+	private final int port;
+	private final ExecutorService executor;
+	private final JMXConsoleTool tool = new JMXConsoleTool();
+	private String token;
+
+	public JMXConsoleDaemon(int port, int threads) {
+		super();
+		this.port = port;
+		this.executor = Executors.newFixedThreadPool(threads);
+	}
+
+	public static void main(String[] args) throws IOException {
+		JMXConsoleDaemon daemon = new JMXConsoleDaemon(
+			DaemonProtocol.getPort(), 
+			Integer.getInteger("jmxconsole.daemon.threads", DEFAULT_THREADS)
+		);
+		daemon.tool.initLog4J(args);
+		// the pooled connections live as long as the daemon, so MBeanInfos are worth caching
+		MBeanInfoCache.getInstance().setEnabled(true);
+		daemon.run();
+	}
+
+	public void run() throws IOException {
+		File tokenFile = DaemonProtocol.getTokenFile();
+		token = DaemonProtocol.createToken(tokenFile);
+		tokenFile.deleteOnExit();
+
+		ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		LOGGER.info("listening for commands on 127.0.0.1:" + port + " (token in '" + tokenFile + "')");
+		try {
+			while (true) {
+				final Socket socket = serverSocket.accept();
+				executor.execute(new Runnable() {
+					public void run() {
+						handle(socket);
+					}
+				});
+			}
+		} finally {
+			serverSocket.close();
+			executor.shutdownNow();
+		}
+	}
+
+	private void handle(Socket socket) {
+		try {
+			socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			
+			if (!DaemonProtocol.isValidToken(token, DaemonProtocol.readToken(in))) {
+				LOGGER.warn("rejected a command with an invalid token");
+				DaemonProtocol.writeExit(out, DaemonProtocol.EXIT_UNAUTHORIZED);
+				return;
+			}
+			String[] args = DaemonProtocol.readArgs(in);
+			// commands may run (and wait for notifications) as long as they like
+			socket.setSoTimeout(0);
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("executing command with " + args.length + " argument(s)");
+			}
+
+			PrintStream stdout = new PrintStream(new BufferedOutputStream(
+					new DaemonProtocol.FrameOutputStream(out, DaemonProtocol.FRAME_STDOUT)), true, "UTF-8");
+			PrintStream stderr = new PrintStream(new BufferedOutputStream(
+					new DaemonProtocol.FrameOutputStream(out, DaemonProtocol.FRAME_STDERR)), true, "UTF-8");
+			
+			int exitCode = tool.execute(args, stdout, stderr);
+			stdout.flush();
+			stderr.flush();
+			DaemonProtocol.writeExit(out, exitCode);
+		} catch (SocketTimeoutException e) {
+			LOGGER.warn("dropped a client that did not send its command within " + REQUEST_TIMEOUT_MILLIS + "ms");
+		} catch (IOException e) {
+			LOGGER.warn("could not process command : " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing left to do here
+			}
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+package com.jabubo.jmx.util;
+
+/**
+ * Runs a task at a fixed rate in the calling thread.
+ *
+ * Ticks are aligned to wall-clock multiples of the interval (an interval of 10 seconds ticks at
+ * :00, :10, :20 ...) and are computed from the first tick, so the schedule does not drift. If a
+ * run takes longer than the interval, the ticks that have been missed are skipped and counted
+ * instead of being executed late.
+ *
+ * @author butzi
+ */
+public class AlignedScheduler {
+
+	public interface Task {
+
+		/**
+		 * @param tickTime the (wall-clock) time this run has been scheduled for
+		 * @param skippedTicks the number of ticks that have been skipped so far
+		 */
+		void run(long tickTime, long skippedTicks) throws Exception;
+
+	}
+
+	private final long intervalMillis;
+
+	private long skippedTicks = 0;
+
+	public AlignedScheduler(long intervalMillis) {
+		super();
+		if (intervalMillis <= 0) {
+			throw new IllegalArgumentException("interval must be positive, but is " + intervalMillis);
+		}
+		this.intervalMillis = intervalMillis;
+	}
+
+	/**
+	 * runs the task until it has been run <code>maxRuns</code> times (forever if maxRuns is 0 or less)
+	 * or the thread is interrupted
+	 */
+	public void run(Task task, long maxRuns) throws Exception {
+		run(task, maxRuns, false);
+	}
+
+	/**
+	 * runs the task until <code>ticks</code> ticks have passed, whether they have been run or skipped,
+	 * i.e. for <code>ticks</code> intervals of wall-clock time (forever if ticks is 0 or less)
+	 */
+	public void runTicks(Task task, long ticks) throws Exception {
+		run(task, ticks, true);
+	}
+
+	private void run(Task task, long maxTicks, boolean countSkipped) throws Exception {
+		long nextTick = getFirstTick(System.currentTimeMillis(), intervalMillis);
+		long firstSkipped = skippedTicks;
+		long runs = 0;
+
+		while (maxTicks <= 0 || runs + (countSkipped ? skippedTicks - firstSkipped : 0) < maxTicks) {
+			sleepUntil(nextTick);
+			task.run(nextTick, skippedTicks);
+			runs++;
+
+			nextTick += intervalMillis;
+			long now = System.currentTimeMillis();
+			if (now > nextTick) {
+				// we're late - don't try to catch up, continue with the next tick in the future
+				long missed = (now - nextTick) / intervalMillis + 1;
+				skippedTicks += missed;
+				nextTick += missed * intervalMillis;
+			}
+		}
+	}
+
+	public long getSkippedTicks() {
+		return skippedTicks;
+	}
+
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	/**
+	 * returns the first multiple of the interval that lies after <code>now</code>
+	 */
+	static long getFirstTick(long now, long intervalMillis) {
+		return (now / intervalMillis + 1) * intervalMillis;
+	}
+
+	private static void sleepUntil(long time) throws InterruptedException {
+		long now;
+		while ((now = System.currentTimeMillis()) < time) {
+			Thread.sleep(time - now);
+		}
+	}
+
+}
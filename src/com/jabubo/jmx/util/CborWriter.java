@@ -0,0 +1,344 @@
+package com.jabubo.jmx.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Map;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * Writes CBOR (RFC 7049), a binary encoding of the JSON data model, straight to an output stream.
+ *
+ * Numbers are written as binary integers and floats in their shortest form, so consumers don't have
+ * to parse them from text. Objects and arrays are written with indefinite length, so they can be
+ * written while their content is produced; if the number of elements is known up front,
+ * {@link #beginArray(int)} writes a (shorter) definite length header instead. Values written at the
+ * top level form a CBOR sequence (RFC 8742) and need no separator.
+ *
+ * The methods are the same as the ones of {@link JsonWriter}; like a PrintStream, the writer does
+ * not throw IOExceptions - use {@link #checkError()}.
+ *
+ * @author butzi
+ */
+public class CborWriter {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// major types (in the upper 3 bits of the initial byte)
+	private static final int TYPE_UNSIGNED = 0;
+	private static final int TYPE_NEGATIVE = 1;
+	private static final int TYPE_BYTES = 2;
+	private static final int TYPE_STRING = 3;
+	private static final int TYPE_ARRAY = 4;
+	private static final int TYPE_MAP = 5;
+	private static final int TYPE_TAG = 6;
+
+	private static final int FALSE = 0xf4;
+	private static final int TRUE = 0xf5;
+	private static final int NULL = 0xf6;
+	private static final int FLOAT32 = 0xfa;
+	private static final int FLOAT64 = 0xfb;
+	private static final int BREAK = 0xff;
+
+	private static final int INDEFINITE_ARRAY = (TYPE_ARRAY << 5) | 31;
+	private static final int INDEFINITE_MAP = (TYPE_MAP << 5) | 31;
+
+	private static final int TAG_POSITIVE_BIGNUM = 2;
+	private static final int TAG_NEGATIVE_BIGNUM = 3;
+	private static final int TAG_DECIMAL_FRACTION = 4;
+
+	private final OutputStream out;
+
+	// large enough for the longest header (1 + 8 bytes)
+	private final byte[] buffer = new byte[9];
+
+	private boolean error = false;
+
+	public CborWriter(OutputStream out) {
+		super();
+		this.out = out;
+	}
+
+	public CborWriter beginObject() {
+		write(INDEFINITE_MAP);
+		return this;
+	}
+
+	public CborWriter endObject() {
+		write(BREAK);
+		return this;
+	}
+
+	public CborWriter beginArray() {
+		write(INDEFINITE_ARRAY);
+		return this;
+	}
+
+	/**
+	 * starts an array of exactly <code>size</code> elements; it must not be ended with {@link #endArray()}
+	 */
+	public CborWriter beginArray(int size) {
+		writeHeader(TYPE_ARRAY, size);
+		return this;
+	}
+
+	public CborWriter endArray() {
+		write(BREAK);
+		return this;
+	}
+
+	public CborWriter name(String name) {
+		writeString(name);
+		return this;
+	}
+
+	public CborWriter value(String value) {
+		if (value == null) {
+			return nullValue();
+		}
+		writeString(value);
+		return this;
+	}
+
+	public CborWriter value(long value) {
+		if (value >= 0) {
+			writeHeader(TYPE_UNSIGNED, value);
+		} else {
+			// -1 - n is written as n
+			writeHeader(TYPE_NEGATIVE, -1 - value);
+		}
+		return this;
+	}
+
+	public CborWriter value(double value) {
+		float floatValue = (float) value;
+		if (floatValue == value || Double.isNaN(value)) {
+			// no precision is lost (this includes the infinities)
+			int bits = Float.floatToIntBits(floatValue);
+			buffer[0] = (byte) FLOAT32;
+			for (int i = 0; i < 4; i++) {
+				buffer[1 + i] = (byte) (bits >>> (24 - i * 8));
+			}
+			write(buffer, 5);
+		} else {
+			long bits = Double.doubleToLongBits(value);
+			buffer[0] = (byte) FLOAT64;
+			for (int i = 0; i < 8; i++) {
+				buffer[1 + i] = (byte) (bits >>> (56 - i * 8));
+			}
+			write(buffer, 9);
+		}
+		return this;
+	}
+
+	public CborWriter value(boolean value) {
+		write(value ? TRUE : FALSE);
+		return this;
+	}
+
+	public CborWriter nullValue() {
+		write(NULL);
+		return this;
+	}
+
+	/**
+	 * writes any value like {@link JsonWriter#value(Object)} does; in addition, byte arrays become byte
+	 * strings and big numbers keep their precision (as bignum or decimal fraction)
+	 */
+	public CborWriter value(Object value) {
+		if (value == null) {
+			return nullValue();
+		} else if (value instanceof String) {
+			return value((String) value);
+		} else if (value instanceof Boolean) {
+			return value(((Boolean) value).booleanValue());
+		} else if (value instanceof Double || value instanceof Float) {
+			return value(((Number) value).doubleValue());
+		} else if (value instanceof BigInteger) {
+			return bigIntegerValue((BigInteger) value);
+		} else if (value instanceof BigDecimal) {
+			BigDecimal decimal = (BigDecimal) value;
+			// [exponent, mantissa] with value = mantissa * 10^exponent
+			writeHeader(TYPE_TAG, TAG_DECIMAL_FRACTION);
+			beginArray(2);
+			value(-decimal.scale());
+			return bigIntegerValue(decimal.unscaledValue());
+		} else if (value instanceof Number) {
+			// Long, Integer, Short, Byte, AtomicLong...
+			return value(((Number) value).longValue());
+		} else if (value instanceof CompositeData) {
+			CompositeData compositeData = (CompositeData) value;
+			beginObject();
+			for (String key : compositeData.getCompositeType().keySet()) {
+				name(key).value(compositeData.get(key));
+			}
+			return endObject();
+		} else if (value instanceof TabularData) {
+			TabularData tabularData = (TabularData) value;
+			beginArray(tabularData.size());
+			for (Object row : tabularData.values()) {
+				value(row);
+			}
+			return this;
+		} else if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			writeHeader(TYPE_BYTES, bytes.length);
+			write(bytes, bytes.length);
+			return this;
+		} else if (value.getClass().isArray()) {
+			return arrayValue(value);
+		} else if (value instanceof Collection<?>) {
+			Collection<?> collection = (Collection<?>) value;
+			beginArray(collection.size());
+			for (Object element : collection) {
+				value(element);
+			}
+			return this;
+		} else if (value instanceof Map<?, ?>) {
+			beginObject();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				name(String.valueOf(entry.getKey())).value(entry.getValue());
+			}
+			return endObject();
+		}
+		return value(value.toString());
+	}
+
+	private CborWriter bigIntegerValue(BigInteger value) {
+		if (value.bitLength() < 64) {
+			return value(value.longValue());
+		}
+		// like integers, negative bignums are written as -1 - n
+		boolean negative = value.signum() < 0;
+		writeHeader(TYPE_TAG, negative ? TAG_NEGATIVE_BIGNUM : TAG_POSITIVE_BIGNUM);
+		byte[] bytes = (negative ? value.negate().subtract(BigInteger.ONE) : value).toByteArray();
+		// toByteArray() may add a leading zero byte for the sign
+		int offset = (bytes[0] == 0) ? 1 : 0;
+		writeHeader(TYPE_BYTES, bytes.length - offset);
+		try {
+			out.write(bytes, offset, bytes.length - offset);
+		} catch (IOException e) {
+			error = true;
+		}
+		return this;
+	}
+
+	private CborWriter arrayValue(Object array) {
+		// primitive arrays are written without boxing their elements
+		if (array instanceof long[]) {
+			long[] values = (long[]) array;
+			beginArray(values.length);
+			for (long element : values) {
+				value(element);
+			}
+		} else if (array instanceof int[]) {
+			int[] values = (int[]) array;
+			beginArray(values.length);
+			for (int element : values) {
+				value(element);
+			}
+		} else if (array instanceof double[]) {
+			double[] values = (double[]) array;
+			beginArray(values.length);
+			for (double element : values) {
+				value(element);
+			}
+		} else if (array instanceof float[]) {
+			float[] values = (float[]) array;
+			beginArray(values.length);
+			for (float element : values) {
+				value(element);
+			}
+		} else if (array instanceof short[]) {
+			short[] values = (short[]) array;
+			beginArray(values.length);
+			for (short element : values) {
+				value(element);
+			}
+		} else if (array instanceof boolean[]) {
+			boolean[] values = (boolean[]) array;
+			beginArray(values.length);
+			for (boolean element : values) {
+				value(element);
+			}
+		} else if (array instanceof char[]) {
+			char[] values = (char[]) array;
+			beginArray(values.length);
+			for (char element : values) {
+				value(String.valueOf(element));
+			}
+		} else {
+			Object[] values = (Object[]) array;
+			beginArray(values.length);
+			for (Object element : values) {
+				value(element);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * returns true if writing to the output has failed
+	 */
+	public boolean checkError() {
+		return error;
+	}
+
+	private void writeString(String string) {
+		byte[] bytes = string.getBytes(UTF_8);
+		writeHeader(TYPE_STRING, bytes.length);
+		write(bytes, bytes.length);
+	}
+
+	/**
+	 * writes the initial byte of a data item along with its argument (a length, a count or the value
+	 * itself) in as few bytes as possible
+	 */
+	private void writeHeader(int majorType, long argument) {
+		int type = majorType << 5;
+		if (argument < 24) {
+			write(type | (int) argument);
+			return;
+		}
+		int length;
+		if (argument < 0x100L) {
+			buffer[0] = (byte) (type | 24);
+			length = 1;
+		} else if (argument < 0x10000L) {
+			buffer[0] = (byte) (type | 25);
+			length = 2;
+		} else if (argument < 0x100000000L) {
+			buffer[0] = (byte) (type | 26);
+			length = 4;
+		} else {
+			buffer[0] = (byte) (type | 27);
+			length = 8;
+		}
+		for (int i = 0; i < length; i++) {
+			buffer[1 + i] = (byte) (argument >>> ((length - 1 - i) * 8));
+		}
+		write(buffer, 1 + length);
+	}
+
+	private void write(int b) {
+		try {
+			out.write(b);
+		} catch (IOException e) {
+			error = true;
+		}
+	}
+
+	private void write(byte[] bytes, int length) {
+		try {
+			out.write(bytes, 0, length);
+		} catch (IOException e) {
+			error = true;
+		}
+	}
+
+}
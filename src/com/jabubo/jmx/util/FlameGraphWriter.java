@@ -0,0 +1,143 @@
+package com.jabubo.jmx.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Renders aggregated stack traces as an SVG flame graph.
+ * 
+ * Stacks are added root frame first. Each frame is drawn as a box whose width is proportional to the
+ * number of samples it appeared in; callees are stacked on top of their callers.
+ * 
+ * @author butzi
+ */
+public class FlameGraphWriter {
+
+	private static final int IMAGE_WIDTH = 1200;
+	private static final int FRAME_HEIGHT = 16;
+	private static final int PADDING = 10;
+	private static final int TITLE_HEIGHT = 30;
+	private static final double CHAR_WIDTH = 7.0;
+	// boxes smaller than this are not drawn at all
+	private static final double MIN_WIDTH = 0.1;
+	// SVG needs dots as decimal separators, whatever the default locale is
+	private static final Locale NUMBER_LOCALE = Locale.ROOT;
+
+	private final Node root = new Node("all");
+	private final String title;
+	private int maxDepth = 0;
+
+	public FlameGraphWriter(String title) {
+		super();
+		this.title = title;
+	}
+
+	public void addStack(String[] frames, long count) {
+		Node node = root;
+		node.count += count;
+		for (String frame : frames) {
+			node = node.getChild(frame);
+			node.count += count;
+		}
+		maxDepth = Math.max(maxDepth, frames.length);
+	}
+
+	public void write(Writer out) throws IOException {
+		int height = TITLE_HEIGHT + (maxDepth + 1) * FRAME_HEIGHT + 2 * PADDING;
+		out.write("<?xml version=\"1.0\" standalone=\"no\"?>\n");
+		out.write("<svg version=\"1.1\" width=\"" + IMAGE_WIDTH + "\" height=\"" + height + "\" "
+				+ "xmlns=\"http://www.w3.org/2000/svg\" font-family=\"Verdana\" font-size=\"12\">\n");
+		out.write("<rect x=\"0\" y=\"0\" width=\"100%\" height=\"100%\" fill=\"#f8f8f8\"/>\n");
+		out.write("<text x=\"" + (IMAGE_WIDTH / 2) + "\" y=\"20\" text-anchor=\"middle\" font-size=\"16\">"
+				+ escape(title) + "</text>\n");
+
+		if (root.count > 0) {
+			double scale = (IMAGE_WIDTH - 2.0 * PADDING) / root.count;
+			writeNode(out, root, PADDING, 0, scale, height);
+		}
+
+		out.write("</svg>\n");
+		out.flush();
+	}
+
+	private void writeNode(Writer out, Node node, double x, int depth, double scale, int height) throws IOException {
+		double width = node.count * scale;
+		if (width < MIN_WIDTH) {
+			return;
+		}
+		double y = height - PADDING - (depth + 1) * FRAME_HEIGHT;
+
+		out.write("<g><title>");
+		out.write(escape(node.name));
+		out.write(" (" + node.count + " samples, ");
+		out.write(String.format(NUMBER_LOCALE, "%.2f", 100.0 * node.count / root.count));
+		out.write("%)</title>");
+		out.write(String.format(NUMBER_LOCALE, "<rect x=\"%.1f\" y=\"%.1f\" width=\"%.1f\" height=\"%d\" fill=\"%s\" rx=\"2\"/>",
+				x, y, width, FRAME_HEIGHT - 1, getColor(node.name)));
+		int maxChars = (int) ((width - 6) / CHAR_WIDTH);
+		if (maxChars >= 3) {
+			String label = node.name;
+			if (label.length() > maxChars) {
+				label = label.substring(0, maxChars - 2) + "..";
+			}
+			out.write(String.format(NUMBER_LOCALE, "<text x=\"%.1f\" y=\"%.1f\">%s</text>", x + 3, y + FRAME_HEIGHT - 4, escape(label)));
+		}
+		out.write("</g>\n");
+
+		double childX = x;
+		for (Node child : node.children.values()) {
+			writeNode(out, child, childX, depth + 1, scale, height);
+			childX += child.count * scale;
+		}
+	}
+
+	/**
+	 * the same frame always gets the same (warm) color
+	 */
+	private static String getColor(String name) {
+		int hash = name.hashCode();
+		int red = 200 + ((hash & 0xff) % 55);
+		int green = 80 + (((hash >> 8) & 0xff) % 150);
+		int blue = ((hash >> 16) & 0xff) % 60;
+		return "rgb(" + red + "," + green + "," + blue + ")";
+	}
+
+	private static String escape(String string) {
+		StringBuilder sb = new StringBuilder(string.length());
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			switch (c) {
+			case '<': sb.append("&lt;"); break;
+			case '>': sb.append("&gt;"); break;
+			case '&': sb.append("&amp;"); break;
+			case '"': sb.append("&quot;"); break;
+			default: sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static class Node {
+		final String name;
+		long count = 0;
+		// sorted by name so that the output is stable
+		final Map<String, Node> children = new TreeMap<String, Node>();
+
+		Node(String name) {
+			this.name = name;
+		}
+
+		Node getChild(String name) {
+			Node child = children.get(name);
+			if (child == null) {
+				child = new Node(name);
+				children.put(name, child);
+			}
+			return child;
+		}
+	}
+
+}
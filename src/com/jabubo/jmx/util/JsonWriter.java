@@ -0,0 +1,350 @@
+package com.jabubo.jmx.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * Writes JSON straight to an output (a stream, a writer or a StringBuilder) while it is produced,
+ * without building up a document in memory first.
+ *
+ * The writer keeps track of the commas between values, so the callers just write names and values
+ * in order: <code>json.beginObject().name("count").value(42).endObject()</code>. Values written at
+ * the top level are not separated (e.g. for one JSON object per line, the caller adds the newlines).
+ *
+ * Output that does not go to a StringBuilder is collected and handed to the output in one piece as
+ * soon as a top-level value is complete (or the collected text exceeds a few kilobytes), so a
+ * PrintStream sees one write per line instead of one per character.
+ *
+ * Like a PrintStream, the writer does not throw IOExceptions - use {@link #checkError()}.
+ *
+ * @author butzi
+ */
+public class JsonWriter {
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	// large values (e.g. a streamed list) are passed on in pieces of about this size
+	private static final int FLUSH_THRESHOLD = 8192;
+
+	private final Appendable out;
+
+	// everything is written here first; it is the output itself if that is a StringBuilder
+	private final StringBuilder buffer;
+
+	// per nesting level: has a value been written at this level yet (i.e. is a comma needed)?
+	private boolean[] hasValue = new boolean[16];
+	private int depth = 0;
+
+	// a name has just been written, the next value belongs to it
+	private boolean afterName = false;
+
+	private boolean error = false;
+
+	public JsonWriter(Appendable out) {
+		super();
+		this.out = out;
+		this.buffer = (out instanceof StringBuilder) ? (StringBuilder) out : new StringBuilder();
+	}
+
+	public JsonWriter beginObject() {
+		beforeValue();
+		write('{');
+		push();
+		return this;
+	}
+
+	public JsonWriter endObject() {
+		pop();
+		write('}');
+		afterValue();
+		return this;
+	}
+
+	public JsonWriter beginArray() {
+		beforeValue();
+		write('[');
+		push();
+		return this;
+	}
+
+	public JsonWriter endArray() {
+		pop();
+		write(']');
+		afterValue();
+		return this;
+	}
+
+	public JsonWriter name(String name) {
+		if (depth > 0 && hasValue[depth]) {
+			write(',');
+		}
+		if (depth > 0) {
+			hasValue[depth] = true;
+		}
+		writeString(name);
+		write(':');
+		afterName = true;
+		return this;
+	}
+
+	public JsonWriter value(String value) {
+		if (value == null) {
+			return nullValue();
+		}
+		beforeValue();
+		writeString(value);
+		afterValue();
+		return this;
+	}
+
+	public JsonWriter value(long value) {
+		beforeValue();
+		write(Long.toString(value));
+		afterValue();
+		return this;
+	}
+
+	public JsonWriter value(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			// JSON has no representation for these
+			return value(Double.toString(value));
+		}
+		beforeValue();
+		write(Double.toString(value));
+		afterValue();
+		return this;
+	}
+
+	public JsonWriter value(boolean value) {
+		beforeValue();
+		write(value ? "true" : "false");
+		afterValue();
+		return this;
+	}
+
+	public JsonWriter nullValue() {
+		beforeValue();
+		write("null");
+		afterValue();
+		return this;
+	}
+
+	/**
+	 * writes a value that already is valid JSON (e.g. written by another JsonWriter)
+	 */
+	public JsonWriter rawValue(CharSequence json) {
+		beforeValue();
+		write(json);
+		afterValue();
+		return this;
+	}
+
+	/**
+	 * writes any value: open types become objects (CompositeData) and arrays of their rows (TabularData),
+	 * arrays and collections become arrays, maps become objects, numbers and booleans stay what they
+	 * are and everything else is written as string
+	 */
+	public JsonWriter value(Object value) {
+		if (value == null) {
+			return nullValue();
+		} else if (value instanceof String) {
+			return value((String) value);
+		} else if (value instanceof Boolean) {
+			return value(((Boolean) value).booleanValue());
+		} else if (value instanceof Double || value instanceof Float) {
+			return value(((Number) value).doubleValue());
+		} else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			return value(((Number) value).longValue());
+		} else if (value instanceof Number) {
+			// BigInteger, BigDecimal, AtomicLong...
+			beforeValue();
+			write(value.toString());
+			afterValue();
+			return this;
+		} else if (value instanceof CompositeData) {
+			CompositeData compositeData = (CompositeData) value;
+			beginObject();
+			for (String key : compositeData.getCompositeType().keySet()) {
+				name(key).value(compositeData.get(key));
+			}
+			return endObject();
+		} else if (value instanceof TabularData) {
+			beginArray();
+			for (Object row : ((TabularData) value).values()) {
+				value(row);
+			}
+			return endArray();
+		} else if (value.getClass().isArray()) {
+			return arrayValue(value);
+		} else if (value instanceof Collection<?>) {
+			beginArray();
+			for (Object element : (Collection<?>) value) {
+				value(element);
+			}
+			return endArray();
+		} else if (value instanceof Map<?, ?>) {
+			beginObject();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				name(String.valueOf(entry.getKey())).value(entry.getValue());
+			}
+			return endObject();
+		}
+		return value(value.toString());
+	}
+
+	private JsonWriter arrayValue(Object array) {
+		// primitive arrays are written without boxing their elements
+		beginArray();
+		if (array instanceof long[]) {
+			for (long element : (long[]) array) {
+				value(element);
+			}
+		} else if (array instanceof int[]) {
+			for (int element : (int[]) array) {
+				value(element);
+			}
+		} else if (array instanceof double[]) {
+			for (double element : (double[]) array) {
+				value(element);
+			}
+		} else if (array instanceof float[]) {
+			for (float element : (float[]) array) {
+				value(element);
+			}
+		} else if (array instanceof short[]) {
+			for (short element : (short[]) array) {
+				value(element);
+			}
+		} else if (array instanceof byte[]) {
+			for (byte element : (byte[]) array) {
+				value(element);
+			}
+		} else if (array instanceof boolean[]) {
+			for (boolean element : (boolean[]) array) {
+				value(element);
+			}
+		} else if (array instanceof char[]) {
+			for (char element : (char[]) array) {
+				value(String.valueOf(element));
+			}
+		} else {
+			for (Object element : (Object[]) array) {
+				value(element);
+			}
+		}
+		return endArray();
+	}
+
+	/**
+	 * passes everything written so far to the output
+	 */
+	public JsonWriter flush() {
+		if (buffer != out && buffer.length() > 0) {
+			try {
+				out.append(buffer);
+			} catch (IOException e) {
+				error = true;
+			}
+			buffer.setLength(0);
+		}
+		return this;
+	}
+
+	/**
+	 * returns true if writing to the output has failed
+	 */
+	public boolean checkError() {
+		return error;
+	}
+
+	private void beforeValue() {
+		if (afterName) {
+			afterName = false;
+			return;
+		}
+		if (depth > 0) {
+			if (hasValue[depth]) {
+				write(',');
+			}
+			hasValue[depth] = true;
+		}
+	}
+
+	private void afterValue() {
+		if (depth == 0 || buffer.length() >= FLUSH_THRESHOLD) {
+			flush();
+		}
+	}
+
+	private void push() {
+		depth++;
+		if (depth == hasValue.length) {
+			hasValue = Arrays.copyOf(hasValue, depth * 2);
+		}
+		hasValue[depth] = false;
+	}
+
+	private void pop() {
+		if (depth == 0) {
+			throw new IllegalStateException("no object or array to end");
+		}
+		depth--;
+	}
+
+	private void writeString(String string) {
+		write('"');
+		int start = 0;
+		for (int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+				continue;
+			}
+			// copy the unescaped part in one go
+			write(string, start, i);
+			start = i + 1;
+			switch (c) {
+			case '"':
+				write("\\\"");
+				break;
+			case '\\':
+				write("\\\\");
+				break;
+			case '\n':
+				write("\\n");
+				break;
+			case '\r':
+				write("\\r");
+				break;
+			case '\t':
+				write("\\t");
+				break;
+			default:
+				write("\\u");
+				write(HEX_DIGITS[(c >> 12) & 0xf]);
+				write(HEX_DIGITS[(c >> 8) & 0xf]);
+				write(HEX_DIGITS[(c >> 4) & 0xf]);
+				write(HEX_DIGITS[c & 0xf]);
+			}
+		}
+		write(string, start, string.length());
+		write('"');
+	}
+
+	private void write(char c) {
+		buffer.append(c);
+	}
+
+	private void write(CharSequence string) {
+		buffer.append(string);
+	}
+
+	private void write(CharSequence string, int start, int end) {
+		buffer.append(string, start, end);
+	}
+
+}
@@ -0,0 +1,348 @@
+package com.jabubo.jmx.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Search index over the names and metadata of MBeans.
+ *
+ * For each field (domain, key property keys and values, attribute and operation names, types) the
+ * index keeps the distinct terms in lower case and sorted, each with the ids of the MBeans it occurs
+ * in. Most MBeans of a VM share their terms (think of 100k partition MBeans that all have the same
+ * attributes), so searches only have to look at the distinct terms and never at the MBeans themselves.
+ *
+ * Terms can be searched by prefix (binary search), substring, wildcard (* and ?) or fuzzy (edit distance).
+ *
+ * @author butzi
+ */
+public class MBeanIndex {
+
+	public enum Field {
+		DOMAIN('D'), KEY('K'), VALUE('V'), ATTRIBUTE('A'), OPERATION('O'), TYPE('T');
+
+		private final char tag;
+
+		private Field(char tag) {
+			this.tag = tag;
+		}
+
+		/**
+		 * short tag for text output, e.g. [A] for attributes (as printed by browse)
+		 */
+		public char getTag() {
+			return tag;
+		}
+	}
+
+	public enum Mode {
+		PREFIX, SUBSTRING, WILDCARD, FUZZY
+	}
+
+	// MBean names by id, sorted if the MBeans have been added in order
+	private final String[] names;
+
+	private final FieldIndex[] fieldIndexes;
+
+	MBeanIndex(String[] names, FieldIndex[] fieldIndexes) {
+		this.names = names;
+		this.fieldIndexes = fieldIndexes;
+	}
+
+	public int getMBeanCount() {
+		return names.length;
+	}
+
+	public int getTermCount() {
+		int count = 0;
+		for (FieldIndex fieldIndex : fieldIndexes) {
+			count += fieldIndex.terms.length;
+		}
+		return count;
+	}
+
+	/**
+	 * returns the matches per MBean name (ordered like the MBeans have been added)
+	 */
+	public SortedMap<Integer, List<Match>> search(String query, Mode mode, Field[] fields) {
+		String lowerQuery = query.toLowerCase();
+		int maxDistance = Math.max(1, lowerQuery.length() / 4);
+
+		SortedMap<Integer, List<Match>> result = new TreeMap<Integer, List<Match>>();
+		for (Field field : fields) {
+			FieldIndex fieldIndex = fieldIndexes[field.ordinal()];
+			int start = 0;
+			int end = fieldIndex.terms.length;
+			if (mode == Mode.PREFIX) {
+				// the terms starting with the prefix are a contiguous range
+				start = lowerBound(fieldIndex.lowerTerms, lowerQuery);
+				end = start;
+				while (end < fieldIndex.lowerTerms.length && fieldIndex.lowerTerms[end].startsWith(lowerQuery)) {
+					end++;
+				}
+			}
+
+			for (int i = start; i < end; i++) {
+				String term = fieldIndex.lowerTerms[i];
+				boolean matches;
+				switch (mode) {
+				case SUBSTRING:
+					matches = term.indexOf(lowerQuery) >= 0;
+					break;
+				case WILDCARD:
+					matches = Wildcard.matches(lowerQuery, term);
+					break;
+				case FUZZY:
+					matches = isWithinDistance(lowerQuery, term, maxDistance);
+					break;
+				default:
+					matches = true;
+				}
+
+				if (matches) {
+					Match match = new Match(field, fieldIndex.terms[i]);
+					for (int id : fieldIndex.postings[i]) {
+						List<Match> matchesOfMBean = result.get(id);
+						if (matchesOfMBean == null) {
+							matchesOfMBean = new ArrayList<Match>(2);
+							result.put(id, matchesOfMBean);
+						}
+						matchesOfMBean.add(match);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	public String getName(int id) {
+		return names[id];
+	}
+
+	private static int lowerBound(String[] sorted, String key) {
+		int index = Arrays.binarySearch(sorted, key);
+		if (index < 0) {
+			return -index - 1;
+		}
+		// the terms are unique, but their lower case versions might not be
+		while (index > 0 && sorted[index - 1].equals(key)) {
+			index--;
+		}
+		return index;
+	}
+
+	/**
+	 * Levenshtein distance between the two strings, aborting as soon as it exceeds maxDistance
+	 */
+	static boolean isWithinDistance(String a, String b, int maxDistance) {
+		if (Math.abs(a.length() - b.length()) > maxDistance) {
+			return false;
+		}
+		int[] previous = new int[b.length() + 1];
+		int[] current = new int[b.length() + 1];
+		for (int j = 0; j <= b.length(); j++) {
+			previous[j] = j;
+		}
+		for (int i = 1; i <= a.length(); i++) {
+			current[0] = i;
+			int rowMinimum = current[0];
+			for (int j = 1; j <= b.length(); j++) {
+				int cost = (a.charAt(i - 1) == b.charAt(j - 1)) ? 0 : 1;
+				current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+				rowMinimum = Math.min(rowMinimum, current[j]);
+			}
+			if (rowMinimum > maxDistance) {
+				return false;
+			}
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return previous[b.length()] <= maxDistance;
+	}
+
+	/**
+	 * a term that matched the search
+	 */
+	public static class Match {
+
+		private final Field field;
+		private final String term;
+
+		Match(Field field, String term) {
+			this.field = field;
+			this.term = term;
+		}
+
+		public Field getField() {
+			return field;
+		}
+
+		public String getTerm() {
+			return term;
+		}
+
+	}
+
+	/**
+	 * the sorted terms of one field along with the (ascending) ids of the MBeans they occur in
+	 */
+	static class FieldIndex {
+
+		final String[] terms;
+		final String[] lowerTerms;
+		final int[][] postings;
+
+		FieldIndex(String[] terms, String[] lowerTerms, int[][] postings) {
+			this.terms = terms;
+			this.lowerTerms = lowerTerms;
+			this.postings = postings;
+		}
+
+	}
+
+	/**
+	 * collects the MBeans; add them in the order they should be reported in (e.g. sorted by canonical name)
+	 */
+	public static class Builder {
+
+		private final List<String> names = new ArrayList<String>();
+
+		private final List<Map<String, IntList>> postingsByField = new ArrayList<Map<String, IntList>>();
+
+		private int currentId = -1;
+
+		public Builder() {
+			super();
+			for (int i = 0; i < Field.values().length; i++) {
+				postingsByField.add(new HashMap<String, IntList>());
+			}
+		}
+
+		/**
+		 * starts a new MBean; the terms added afterwards belong to it
+		 */
+		public Builder addMBean(String canonicalName) {
+			names.add(canonicalName);
+			currentId = names.size() - 1;
+
+			// domain and key properties are part of the name
+			int colon = canonicalName.indexOf(':');
+			addTerm(Field.DOMAIN, canonicalName.substring(0, colon));
+			for (String property : splitProperties(canonicalName.substring(colon + 1))) {
+				int equals = property.indexOf('=');
+				addTerm(Field.KEY, property.substring(0, equals));
+				addTerm(Field.VALUE, property.substring(equals + 1));
+			}
+			return this;
+		}
+
+		public Builder addAttribute(String name, String type) {
+			addTerm(Field.ATTRIBUTE, name);
+			addTerm(Field.TYPE, type);
+			return this;
+		}
+
+		public Builder addOperation(String name, String returnType, String[] parameterTypes) {
+			addTerm(Field.OPERATION, name);
+			addTerm(Field.TYPE, returnType);
+			for (String parameterType : parameterTypes) {
+				addTerm(Field.TYPE, parameterType);
+			}
+			return this;
+		}
+
+		private void addTerm(Field field, String term) {
+			if (currentId < 0) {
+				throw new IllegalStateException("addMBean() has to be called first");
+			}
+			if (term == null) {
+				return;
+			}
+			Map<String, IntList> postings = postingsByField.get(field.ordinal());
+			IntList ids = postings.get(term);
+			if (ids == null) {
+				ids = new IntList();
+				postings.put(term, ids);
+			}
+			// terms often occur more than once per MBean (e.g. types)
+			if (ids.size == 0 || ids.values[ids.size - 1] != currentId) {
+				ids.add(currentId);
+			}
+		}
+
+		public MBeanIndex build() {
+			FieldIndex[] fieldIndexes = new FieldIndex[Field.values().length];
+			for (Field field : Field.values()) {
+				Map<String, IntList> postings = postingsByField.get(field.ordinal());
+				String[] terms = postings.keySet().toArray(new String[postings.size()]);
+				Arrays.sort(terms, new Comparator<String>() {
+					public int compare(String o1, String o2) {
+						int result = o1.toLowerCase().compareTo(o2.toLowerCase());
+						return (result != 0) ? result : o1.compareTo(o2);
+					}
+				});
+				String[] lowerTerms = new String[terms.length];
+				int[][] termPostings = new int[terms.length][];
+				for (int i = 0; i < terms.length; i++) {
+					lowerTerms[i] = terms[i].toLowerCase();
+					termPostings[i] = postings.get(terms[i]).toArray();
+				}
+				fieldIndexes[field.ordinal()] = new FieldIndex(terms, lowerTerms, termPostings);
+			}
+			return new MBeanIndex(names.toArray(new String[names.size()]), fieldIndexes);
+		}
+
+		/**
+		 * splits a canonical key property list at the commas that are not inside quoted values
+		 */
+		static List<String> splitProperties(String propertyList) {
+			List<String> result = new ArrayList<String>();
+			boolean quoted = false;
+			int start = 0;
+			for (int i = 0; i < propertyList.length(); i++) {
+				char c = propertyList.charAt(i);
+				if (c == '\\' && quoted) {
+					i++;
+				} else if (c == '"') {
+					quoted = !quoted;
+				} else if (c == ',' && !quoted) {
+					result.add(propertyList.substring(start, i));
+					start = i + 1;
+				}
+			}
+			if (start < propertyList.length()) {
+				result.add(propertyList.substring(start));
+			}
+			return result;
+		}
+
+	}
+
+	/**
+	 * growable int array, so the postings don't have to box every id
+	 */
+	static class IntList {
+
+		int[] values = new int[4];
+		int size = 0;
+
+		void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+
+	}
+
+}
@@ -0,0 +1,90 @@
+package com.jabubo.jmx.util;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.Query;
+import javax.management.QueryExp;
+import javax.management.ValueExp;
+
+/**
+ * Builds {@link QueryExp}s from simple attribute conditions like <code>Size&gt;1000</code>, so they
+ * can be evaluated by the MBeanServer of the target instead of on the client.
+ * 
+ * Supported operators are =, !=, &lt;, &lt;=, &gt;, &gt;= and ~ (wildcard match with * and ?, for
+ * string attributes only). Values that look like numbers or booleans are compared as such, everything
+ * else as string (unless the value is quoted).
+ * 
+ * @author butzi
+ */
+public class QueryExpParser {
+	
+	private static final Pattern CONDITION_PATTERN = Pattern.compile("\\s*([^=!<>~\\s]+)\\s*(=|!=|<=|>=|<|>|~)\\s*(.*?)\\s*");
+	private static final Pattern LONG_PATTERN = Pattern.compile("-?\\d+");
+	private static final Pattern DOUBLE_PATTERN = Pattern.compile("-?\\d*\\.\\d+([eE][-+]?\\d+)?");
+
+	private QueryExpParser() {
+		super();
+	}
+
+	/**
+	 * combines all conditions with AND
+	 */
+	public static QueryExp parse(String[] conditions) {
+		QueryExp result = null;
+		for (String condition : conditions) {
+			QueryExp queryExp = parse(condition);
+			result = (result == null) ? queryExp : Query.and(result, queryExp);
+		}
+		return result;
+	}
+	
+	public static QueryExp parse(String condition) {
+		Matcher matcher = CONDITION_PATTERN.matcher(condition);
+		if (!matcher.matches()) {
+			throw new IllegalArgumentException("invalid query condition '" + condition + "', expected something like 'Size>1000'");
+		}
+		String attributeName = matcher.group(1);
+		String operator = matcher.group(2);
+		String value = matcher.group(3);
+		
+		if (operator.equals("~")) {
+			return Query.match(Query.attr(attributeName), Query.value(value));
+		}
+		
+		ValueExp attribute = Query.attr(attributeName);
+		ValueExp valueExp = toValueExp(value);
+		if (operator.equals("=")) {
+			return Query.eq(attribute, valueExp);
+		} else if (operator.equals("!=")) {
+			return Query.not(Query.eq(attribute, valueExp));
+		} else if (operator.equals("<")) {
+			return Query.lt(attribute, valueExp);
+		} else if (operator.equals("<=")) {
+			return Query.leq(attribute, valueExp);
+		} else if (operator.equals(">")) {
+			return Query.gt(attribute, valueExp);
+		}
+		return Query.geq(attribute, valueExp);
+	}
+
+	private static ValueExp toValueExp(String value) {
+		if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+			// quoted values are always strings
+			return Query.value(value.substring(1, value.length() - 1));
+		} else if (LONG_PATTERN.matcher(value).matches()) {
+			try {
+				return Query.value(Long.parseLong(value));
+			} catch (NumberFormatException e) {
+				// too large for a long, compare it as double
+				return Query.value(Double.parseDouble(value));
+			}
+		} else if (DOUBLE_PATTERN.matcher(value).matches()) {
+			return Query.value(Double.parseDouble(value));
+		} else if (value.equals("true") || value.equals("false")) {
+			return Query.value(Boolean.parseBoolean(value));
+		}
+		return Query.value(value);
+	}
+	
+}
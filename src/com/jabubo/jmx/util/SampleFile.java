@@ -0,0 +1,722 @@
+package com.jabubo.jmx.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Format of the sample files written by <i>get_attribute</i> with <i>record</i> and read by <i>history</i>.
+ *
+ * Samples (timestamp and double value of a series) are appended to segment files in a directory. A
+ * segment is named <code>samples-&lt;creation time&gt;.seg</code>, so the segments sort by time, and is
+ * never modified once a newer one has been started. It starts with the magic bytes "JMXS" and the
+ * format version (int), followed by records:
+ * <pre>
+ * series: 1 (byte), series id (int), name length (int), name (UTF-8)
+ * chunk:  2 (byte), series id (int), sample count (int), first timestamp (long), last timestamp (long),
+ *         data length (int), data
+ * </pre>
+ * The series record of a series precedes its first chunk in each segment. A chunk holds consecutive
+ * samples of one series, compressed like the Gorilla TSDB does: timestamps are stored as the difference
+ * of successive deltas (a single bit for samples taken at a fixed interval), values as the XOR with the
+ * previous value, leaving out its leading and trailing zero bits (a single bit for unchanged values). The
+ * first timestamp is taken from the chunk header, the first value is stored as is.
+ *
+ * A chunk is written to the segment once it holds {@link #DEFAULT_CHUNK_SAMPLES} samples (or when the
+ * writer is closed). When the writer syncs, the chunks that are still open are written to the tail file
+ * <code>samples.tail</code> instead, in the same format as a segment; the tail is replaced at each sync,
+ * so syncing does not cut the chunks short. An open chunk may thus be found in several versions - the
+ * tail, a segment a crashed writer's tail has been recovered into and finally the segment it has been
+ * completed in. All versions of a chunk start with the same timestamp and the reader uses the first one
+ * it comes across in time order, which is the complete one. A truncated record at the end of a segment
+ * (e.g. after a crash) is ignored by the reader.
+ *
+ * @author butzi
+ */
+public class SampleFile {
+
+	public static final int VERSION = 1;
+
+	public static final int DEFAULT_CHUNK_SAMPLES = 120;
+	public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+
+	private static final int MAGIC = 0x4a4d5853;
+	private static final int HEADER_BYTES = 8;
+
+	private static final byte SERIES_RECORD = 1;
+	private static final byte CHUNK_RECORD = 2;
+	private static final int CHUNK_HEADER_BYTES = 1 + 4 + 4 + 8 + 8 + 4;
+
+	private static final String SEGMENT_PREFIX = "samples-";
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String TAIL_NAME = "samples.tail";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private SampleFile() {
+		super();
+	}
+
+	/**
+	 * receives the samples read from the segments
+	 */
+	public interface Visitor {
+
+		void sample(String series, long timestamp, double value);
+
+	}
+
+	/**
+	 * appends samples to the segments of a directory; the methods may be called from several threads
+	 *
+	 * The timestamps of each series must be strictly ascending. If the tail of a writer that has not been
+	 * closed is found, its chunks are copied to the new segment.
+	 */
+	public static class Writer implements Closeable {
+
+		private final File directory;
+		private final int chunkSamples;
+		private final long syncIntervalMillis;
+		private final long segmentBytes;
+
+		// the open chunk of each series, by series name
+		private final Map<String, ChunkEncoder> encoders = new LinkedHashMap<String, ChunkEncoder>();
+
+		private FileOutputStream segment;
+		private FileChannel channel;
+		private long position;
+		private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+		private long lastSync;
+		private long samplesWritten = 0;
+		private long bytesWritten = 0;
+
+		/**
+		 * @param syncIntervalMillis maximum time after which appended samples are written and synced to disk
+		 */
+		public Writer(File directory, long syncIntervalMillis) throws IOException {
+			this(directory, syncIntervalMillis, DEFAULT_CHUNK_SAMPLES, DEFAULT_SEGMENT_BYTES);
+		}
+
+		public Writer(File directory, long syncIntervalMillis, int chunkSamples, long segmentBytes) throws IOException {
+			super();
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("could not create directory '" + directory + "'");
+			}
+			this.directory = directory;
+			this.syncIntervalMillis = syncIntervalMillis;
+			this.chunkSamples = chunkSamples;
+			this.segmentBytes = segmentBytes;
+			openSegment();
+			recoverTail();
+			lastSync = System.currentTimeMillis();
+		}
+
+		public synchronized void append(String series, long timestamp, double value) throws IOException {
+			if (channel == null) {
+				throw new IOException("the writer has been closed");
+			}
+			ChunkEncoder encoder = encoders.get(series);
+			if (encoder == null) {
+				encoder = new ChunkEncoder(encoders.size(), series);
+				encoders.put(series, encoder);
+			}
+			if (encoder.lastTimestamp != Long.MIN_VALUE && timestamp <= encoder.lastTimestamp) {
+				throw new IllegalArgumentException("sample of series '" + series + "' is not newer than the latest one ("
+					+ timestamp + " <= " + encoder.lastTimestamp + ")");
+			}
+			encoder.append(timestamp, value);
+			samplesWritten++;
+			if (encoder.count >= chunkSamples) {
+				writeChunk(encoder);
+			}
+			if (System.currentTimeMillis() - lastSync >= syncIntervalMillis) {
+				sync();
+			}
+		}
+
+		/**
+		 * forces the completed chunks to disk and replaces the tail with the open chunks of all series
+		 */
+		public synchronized void sync() throws IOException {
+			if (channel == null) {
+				return;
+			}
+			// the segment first, the tail must not get ahead of it
+			channel.force(false);
+			writeTail();
+			lastSync = System.currentTimeMillis();
+		}
+
+		/**
+		 * writes the open chunks of all series to the segment and removes the tail
+		 */
+		public synchronized void close() throws IOException {
+			if (channel == null) {
+				return;
+			}
+			try {
+				for (ChunkEncoder encoder : encoders.values()) {
+					if (encoder.count > 0) {
+						writeChunk(encoder);
+					}
+				}
+				channel.force(false);
+				// if this fails, the reader just skips the outdated versions of the chunks in the tail
+				new File(directory, TAIL_NAME).delete();
+			} finally {
+				segment.close();
+				channel = null;
+			}
+		}
+
+		public synchronized long getSamplesWritten() {
+			return samplesWritten;
+		}
+
+		/**
+		 * returns the number of bytes written to the segments so far (without the open chunks, i.e. the tail)
+		 */
+		public synchronized long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		private void writeChunk(ChunkEncoder encoder) throws IOException {
+			if (position >= segmentBytes) {
+				channel.force(false);
+				segment.close();
+				openSegment();
+			}
+
+			buffer.clear();
+			putChunk(encoder, !encoder.inSegment);
+			encoder.inSegment = true;
+			buffer.flip();
+			write(buffer);
+			encoder.reset();
+		}
+
+		/**
+		 * puts the chunk into the buffer, preceded by the series record if requested; the buffer grows if needed
+		 */
+		private void putChunk(ChunkEncoder encoder, boolean withSeries) {
+			byte[] name = withSeries ? encoder.name.getBytes(UTF_8) : null;
+			int length = CHUNK_HEADER_BYTES + encoder.bits.byteLength() + ((name != null) ? 9 + name.length : 0);
+			if (buffer.remaining() < length) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+			if (name != null) {
+				buffer.put(SERIES_RECORD).putInt(encoder.id).putInt(name.length).put(name);
+			}
+			buffer.put(CHUNK_RECORD).putInt(encoder.id).putInt(encoder.count);
+			buffer.putLong(encoder.firstTimestamp).putLong(encoder.lastTimestamp);
+			buffer.putInt(encoder.bits.byteLength()).put(encoder.bits.bytes, 0, encoder.bits.byteLength());
+		}
+
+		/**
+		 * replaces the tail with the open chunks; the new tail is written to a temporary file first, so
+		 * there always is a complete one
+		 */
+		private void writeTail() throws IOException {
+			buffer.clear();
+			buffer.putInt(MAGIC).putInt(VERSION);
+			for (ChunkEncoder encoder : encoders.values()) {
+				if (encoder.count > 0) {
+					putChunk(encoder, true);
+				}
+			}
+			buffer.flip();
+
+			File temp = new File(directory, TAIL_NAME + ".tmp");
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				FileChannel tailChannel = out.getChannel();
+				while (buffer.hasRemaining()) {
+					tailChannel.write(buffer);
+				}
+				tailChannel.force(false);
+			} finally {
+				out.close();
+			}
+			File tail = new File(directory, TAIL_NAME);
+			// renaming replaces the old tail in one step where the platform allows it
+			if (!temp.renameTo(tail) && !(tail.delete() && temp.renameTo(tail))) {
+				throw new IOException("could not replace '" + tail + "'");
+			}
+		}
+
+		/**
+		 * copies the chunks of the tail a writer that has not been closed left behind to the current segment
+		 */
+		private void recoverTail() throws IOException {
+			File tail = new File(directory, TAIL_NAME);
+			if (!tail.isFile()) {
+				return;
+			}
+			ByteBuffer data = map(tail);
+			if (data.remaining() < HEADER_BYTES || data.getInt() != MAGIC || data.getInt() > VERSION) {
+				throw new IOException("'" + tail + "' is not a sample tail");
+			}
+			// the series records come along, so the ids of the chunks stay valid
+			write(data);
+			channel.force(false);
+			if (!tail.delete()) {
+				throw new IOException("could not delete '" + tail + "'");
+			}
+		}
+
+		private void openSegment() throws IOException {
+			long now = System.currentTimeMillis();
+			File file;
+			while ((file = new File(directory, getSegmentName(now))).exists()) {
+				now++;
+			}
+			segment = new FileOutputStream(file);
+			channel = segment.getChannel();
+			position = 0;
+			for (ChunkEncoder encoder : encoders.values()) {
+				encoder.inSegment = false;
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			header.putInt(MAGIC).putInt(VERSION);
+			header.flip();
+			write(header);
+		}
+
+		private void write(ByteBuffer data) throws IOException {
+			int length = data.remaining();
+			while (data.hasRemaining()) {
+				channel.write(data);
+			}
+			position += length;
+			bytesWritten += length;
+		}
+
+	}
+
+	/**
+	 * reads the samples of all segments of a directory through memory mapped buffers
+	 */
+	public static class Reader {
+
+		private final File[] segments;
+		private final File tail;
+
+		// sizes of the chunks that have been decoded and the number of samples they hold
+		private long chunkBytes = 0;
+		private long chunkSamples = 0;
+
+		public Reader(File directory) {
+			super();
+			segments = directory.listFiles(new FileFilter() {
+				public boolean accept(File file) {
+					return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+				}
+			});
+			if (segments == null) {
+				throw new IllegalArgumentException("'" + directory + "' is not a directory");
+			}
+			Arrays.sort(segments);
+			tail = new File(directory, TAIL_NAME);
+		}
+
+		public int getSegmentCount() {
+			return segments.length;
+		}
+
+		/**
+		 * returns the number of bytes of the chunks that have been scanned (including their headers)
+		 */
+		public long getChunkBytes() {
+			return chunkBytes;
+		}
+
+		/**
+		 * returns the number of samples in the chunks that have been scanned - some of them might have been
+		 * outside the requested range
+		 */
+		public long getChunkSamples() {
+			return chunkSamples;
+		}
+
+		/**
+		 * passes all samples of the series matching one of the (wildcard) patterns with
+		 * <code>from &lt;= timestamp &lt; to</code> to the visitor and returns their number; chunks that
+		 * don't overlap the range are skipped without being decoded
+		 *
+		 * @param patterns the patterns of the series to read, all series are read if null or empty
+		 */
+		public long scan(Collection<String> patterns, long from, long to, Visitor visitor) throws IOException {
+			// the last timestamp read per series, to skip outdated versions of chunks
+			Map<String, Long> lastTimestamps = new HashMap<String, Long>();
+			long count = 0;
+			for (File file : segments) {
+				count += scan(file, map(file), patterns, from, to, visitor, lastTimestamps);
+			}
+			if (tail.isFile()) {
+				count += scan(tail, map(tail), patterns, from, to, visitor, lastTimestamps);
+			}
+			return count;
+		}
+
+		private long scan(File file, ByteBuffer buffer, Collection<String> patterns, long from, long to, Visitor visitor,
+				Map<String, Long> lastTimestamps) {
+			if (buffer.remaining() == 0) {
+				// the segment has just been created
+				return 0;
+			}
+			if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC) {
+				throw new IllegalArgumentException("'" + file + "' is not a sample segment");
+			}
+			int version = buffer.getInt();
+			if (version > VERSION) {
+				throw new IllegalArgumentException("'" + file + "' has been written by a newer version (" + version + ")");
+			}
+
+			// names of the series of this segment by id, null if they don't match
+			Map<Integer, String> names = new HashMap<Integer, String>();
+			long count = 0;
+			while (buffer.remaining() > 0) {
+				int start = buffer.position();
+				byte type = buffer.get();
+				if (type == SERIES_RECORD) {
+					if (buffer.remaining() < 8) {
+						break;
+					}
+					int id = buffer.getInt();
+					int length = buffer.getInt();
+					if (buffer.remaining() < length) {
+						break;
+					}
+					byte[] name = new byte[length];
+					buffer.get(name);
+					String series = new String(name, UTF_8);
+					names.put(Integer.valueOf(id), matches(patterns, series) ? series : null);
+				} else if (type == CHUNK_RECORD) {
+					if (buffer.remaining() < CHUNK_HEADER_BYTES - 1) {
+						break;
+					}
+					String series = names.get(Integer.valueOf(buffer.getInt()));
+					int sampleCount = buffer.getInt();
+					long firstTimestamp = buffer.getLong();
+					long lastTimestamp = buffer.getLong();
+					int length = buffer.getInt();
+					if (buffer.remaining() < length) {
+						break;
+					}
+					if (series != null && isLatestVersion(series, firstTimestamp, lastTimestamp, lastTimestamps)
+							&& lastTimestamp >= from && firstTimestamp < to) {
+						BitReader bits = new BitReader(buffer, buffer.position());
+						count += ChunkDecoder.decode(series, sampleCount, firstTimestamp, bits, from, to, visitor);
+						chunkBytes += buffer.position() + length - start;
+						chunkSamples += sampleCount;
+					}
+					buffer.position(buffer.position() + length);
+				} else {
+					throw new IllegalArgumentException("'" + file + "' is corrupt - unknown record type " + type + " at " + start);
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * returns false for a chunk whose samples have been read from another version already
+		 */
+		private static boolean isLatestVersion(String series, long firstTimestamp, long lastTimestamp, Map<String, Long> lastTimestamps) {
+			Long last = lastTimestamps.get(series);
+			if (last != null && firstTimestamp <= last.longValue()) {
+				return false;
+			}
+			lastTimestamps.put(series, Long.valueOf(lastTimestamp));
+			return true;
+		}
+
+		private static boolean matches(Collection<String> patterns, String series) {
+			if (patterns == null || patterns.isEmpty()) {
+				return true;
+			}
+			for (String pattern : patterns) {
+				if (Wildcard.matches(pattern, series)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+	}
+
+	static String getSegmentName(long timestamp) {
+		return SEGMENT_PREFIX + timestamp + SEGMENT_SUFFIX;
+	}
+
+	private static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			// the mapping stays valid after the channel has been closed
+			FileChannel channel = randomAccessFile.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * compresses the samples of the open chunk of a series
+	 */
+	static class ChunkEncoder {
+
+		final int id;
+		final String name;
+		final BitWriter bits = new BitWriter();
+
+		// whether the series record has been written to the current segment
+		boolean inSegment = false;
+
+		int count;
+		long firstTimestamp;
+		// kept across chunks, so the timestamps of the series can be checked
+		long lastTimestamp = Long.MIN_VALUE;
+		private long lastDelta;
+		private long lastValue;
+		// the range of meaningful bits of the last XOR that has been written in full (leading < 0 = none)
+		private int leading;
+		private int trailing;
+
+		ChunkEncoder(int id, String name) {
+			this.id = id;
+			this.name = name;
+			reset();
+		}
+
+		void reset() {
+			bits.reset();
+			count = 0;
+			lastDelta = 0;
+			leading = -1;
+		}
+
+		void append(long timestamp, double value) {
+			long valueBits = Double.doubleToRawLongBits(value);
+			if (count == 0) {
+				firstTimestamp = timestamp;
+				bits.write(valueBits, 64);
+			} else {
+				long delta = timestamp - lastTimestamp;
+				writeDeltaOfDelta(delta - lastDelta);
+				lastDelta = delta;
+				writeXor(valueBits ^ lastValue);
+			}
+			lastTimestamp = timestamp;
+			lastValue = valueBits;
+			count++;
+		}
+
+		/**
+		 * 0 | 10 + 7 bits | 110 + 9 bits | 1110 + 12 bits | 11110 + 32 bits | 11111 + 64 bits
+		 */
+		private void writeDeltaOfDelta(long deltaOfDelta) {
+			if (deltaOfDelta == 0) {
+				bits.write(0, 1);
+			} else if (fits(deltaOfDelta, 7)) {
+				bits.write(0x2, 2);
+				bits.write(deltaOfDelta, 7);
+			} else if (fits(deltaOfDelta, 9)) {
+				bits.write(0x6, 3);
+				bits.write(deltaOfDelta, 9);
+			} else if (fits(deltaOfDelta, 12)) {
+				bits.write(0xe, 4);
+				bits.write(deltaOfDelta, 12);
+			} else if (fits(deltaOfDelta, 32)) {
+				bits.write(0x1e, 5);
+				bits.write(deltaOfDelta, 32);
+			} else {
+				bits.write(0x1f, 5);
+				bits.write(deltaOfDelta, 64);
+			}
+		}
+
+		/**
+		 * 0 (same value) | 10 + meaningful bits within the previous range | 11 + 5 bits leading zeros +
+		 * 6 bits length + meaningful bits
+		 */
+		private void writeXor(long xor) {
+			if (xor == 0) {
+				bits.write(0, 1);
+				return;
+			}
+			int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+			int trailingZeros = Long.numberOfTrailingZeros(xor);
+			if (leading >= 0 && leadingZeros >= leading && trailingZeros >= trailing) {
+				bits.write(0x2, 2);
+				bits.write(xor >>> trailing, 64 - leading - trailing);
+			} else {
+				int length = 64 - leadingZeros - trailingZeros;
+				bits.write(0x3, 2);
+				bits.write(leadingZeros, 5);
+				// a length of 64 is written as 0
+				bits.write(length, 6);
+				bits.write(xor >>> trailingZeros, length);
+				leading = leadingZeros;
+				trailing = trailingZeros;
+			}
+		}
+
+		/**
+		 * returns true if the value lies within the range of a <code>bits</code> wide bucket, which is
+		 * -(2^(bits-1) - 1) .. 2^(bits-1)
+		 */
+		private static boolean fits(long value, int bits) {
+			long max = 1L << (bits - 1);
+			return value > -max && value <= max;
+		}
+
+	}
+
+	/**
+	 * decompresses a chunk written by the {@link ChunkEncoder}
+	 */
+	static class ChunkDecoder {
+
+		static int decode(String series, int sampleCount, long firstTimestamp, BitReader bits, long from, long to, Visitor visitor) {
+			int count = 0;
+			long timestamp = firstTimestamp;
+			long delta = 0;
+			long value = bits.read(64);
+			int leading = 0;
+			int trailing = 0;
+			for (int i = 0; i < sampleCount; i++) {
+				if (i > 0) {
+					delta += readDeltaOfDelta(bits);
+					timestamp += delta;
+					if (bits.read(1) != 0) {
+						if (bits.read(1) != 0) {
+							leading = (int) bits.read(5);
+							int length = (int) bits.read(6);
+							if (length == 0) {
+								length = 64;
+							}
+							trailing = 64 - leading - length;
+						}
+						value ^= bits.read(64 - leading - trailing) << trailing;
+					}
+				}
+				if (timestamp >= to) {
+					break;
+				}
+				if (timestamp >= from) {
+					visitor.sample(series, timestamp, Double.longBitsToDouble(value));
+					count++;
+				}
+			}
+			return count;
+		}
+
+		private static long readDeltaOfDelta(BitReader bits) {
+			int prefix = 0;
+			while (prefix < 5 && bits.read(1) != 0) {
+				prefix++;
+			}
+			switch (prefix) {
+				case 0:
+					return 0;
+				case 1:
+					return readSigned(bits, 7);
+				case 2:
+					return readSigned(bits, 9);
+				case 3:
+					return readSigned(bits, 12);
+				case 4:
+					return readSigned(bits, 32);
+				default:
+					return bits.read(64);
+			}
+		}
+
+		private static long readSigned(BitReader bits, int length) {
+			long value = bits.read(length);
+			// values above 2^(length-1) are negative
+			return (value > (1L << (length - 1))) ? value - (1L << length) : value;
+		}
+
+	}
+
+	/**
+	 * writes values of up to 64 bits into a growing byte array, most significant bit first
+	 */
+	static class BitWriter {
+
+		byte[] bytes = new byte[256];
+		private long bitLength = 0;
+
+		void write(long value, int length) {
+			int byteIndex = (int) (bitLength >>> 3);
+			if (byteIndex + 9 > bytes.length) {
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			}
+			while (length > 0) {
+				int free = 8 - (int) (bitLength & 7);
+				int count = Math.min(free, length);
+				int part = (int) (value >>> (length - count)) & ((1 << count) - 1);
+				bytes[(int) (bitLength >>> 3)] |= part << (free - count);
+				bitLength += count;
+				length -= count;
+			}
+		}
+
+		int byteLength() {
+			return (int) ((bitLength + 7) >>> 3);
+		}
+
+		void reset() {
+			Arrays.fill(bytes, 0, byteLength(), (byte) 0);
+			bitLength = 0;
+		}
+
+	}
+
+	/**
+	 * reads the values written by the {@link BitWriter} from a buffer
+	 */
+	static class BitReader {
+
+		private final ByteBuffer buffer;
+		private final int offset;
+		private long bitPosition = 0;
+
+		BitReader(ByteBuffer buffer, int offset) {
+			this.buffer = buffer;
+			this.offset = offset;
+		}
+
+		long read(int length) {
+			long value = 0;
+			while (length > 0) {
+				int available = 8 - (int) (bitPosition & 7);
+				int count = Math.min(available, length);
+				int current = buffer.get(offset + (int) (bitPosition >>> 3)) & 0xff;
+				value = (value << count) | ((current >>> (available - count)) & ((1 << count) - 1));
+				bitPosition += count;
+				length -= count;
+			}
+			return value;
+		}
+
+	}
+
+}
@@ -0,0 +1,227 @@
+package com.jabubo.jmx.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recent samples (timestamp and value) of a number of time series in memory.
+ *
+ * Each series is a ring buffer of fixed capacity: once it is full, every sample that is appended
+ * replaces the oldest one. The samples are held in primitive arrays that are allocated when a series
+ * is added (16 bytes per sample), so appending and querying never allocate - e.g. 24 hours of
+ * 10 second samples (8640 samples) take 135K per series. Series are addressed by the id returned by
+ * {@link #addSeries(String)}; indices within a series run from 0 (the oldest sample) to size - 1 (the
+ * latest one).
+ *
+ * Timestamps must be appended in ascending order, which allows range queries to find their first
+ * sample by binary search. The store is not thread-safe.
+ *
+ * @author butzi
+ */
+public class SampleStore {
+
+	/**
+	 * receives the samples of a range query
+	 */
+	public interface Visitor {
+
+		void sample(long timestamp, double value);
+
+	}
+
+	private final int capacity;
+
+	private final Map<String, Integer> idsByName = new HashMap<String, Integer>();
+	private String[] names = new String[16];
+	private int seriesCount = 0;
+
+	// per series: the samples, the position the next sample is written to and the number of samples
+	private long[][] timestamps = new long[16][];
+	private double[][] values = new double[16][];
+	private int[] heads = new int[16];
+	private int[] sizes = new int[16];
+
+	/**
+	 * @param capacity the number of samples kept per series
+	 */
+	public SampleStore(int capacity) {
+		super();
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive, but is " + capacity);
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * adds a series and returns its id; if a series of that name exists already, its id is returned
+	 */
+	public int addSeries(String name) {
+		Integer id = idsByName.get(name);
+		if (id != null) {
+			return id.intValue();
+		}
+		if (seriesCount == names.length) {
+			int newLength = names.length * 2;
+			names = Arrays.copyOf(names, newLength);
+			timestamps = Arrays.copyOf(timestamps, newLength);
+			values = Arrays.copyOf(values, newLength);
+			heads = Arrays.copyOf(heads, newLength);
+			sizes = Arrays.copyOf(sizes, newLength);
+		}
+		int series = seriesCount++;
+		names[series] = name;
+		timestamps[series] = new long[capacity];
+		values[series] = new double[capacity];
+		idsByName.put(name, Integer.valueOf(series));
+		return series;
+	}
+
+	/**
+	 * returns the id of the series of that name or -1 if there is none
+	 */
+	public int getSeriesId(String name) {
+		Integer id = idsByName.get(name);
+		return (id != null) ? id.intValue() : -1;
+	}
+
+	public String getSeriesName(int series) {
+		checkSeries(series);
+		return names[series];
+	}
+
+	public int getSeriesCount() {
+		return seriesCount;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * appends a sample to the series, replacing its oldest sample if the series is full
+	 */
+	public void append(int series, long timestamp, double value) {
+		checkSeries(series);
+		int size = sizes[series];
+		if (size > 0 && timestamp < getLatestTimestamp(series)) {
+			throw new IllegalArgumentException("sample of series '" + names[series] + "' is older than the latest one ("
+				+ timestamp + " < " + getLatestTimestamp(series) + ")");
+		}
+		int head = heads[series];
+		timestamps[series][head] = timestamp;
+		values[series][head] = value;
+		heads[series] = (head + 1 == capacity) ? 0 : head + 1;
+		if (size < capacity) {
+			sizes[series] = size + 1;
+		}
+	}
+
+	/**
+	 * returns the number of samples of the series
+	 */
+	public int size(int series) {
+		checkSeries(series);
+		return sizes[series];
+	}
+
+	public long getTimestamp(int series, int index) {
+		return timestamps[series][position(series, index)];
+	}
+
+	public double getValue(int series, int index) {
+		return values[series][position(series, index)];
+	}
+
+	/**
+	 * returns the timestamp of the latest sample or Long.MIN_VALUE if the series is empty
+	 */
+	public long getLatestTimestamp(int series) {
+		return (size(series) > 0) ? getTimestamp(series, sizes[series] - 1) : Long.MIN_VALUE;
+	}
+
+	/**
+	 * returns the value of the latest sample or NaN if the series is empty
+	 */
+	public double getLatestValue(int series) {
+		return (size(series) > 0) ? getValue(series, sizes[series] - 1) : Double.NaN;
+	}
+
+	/**
+	 * returns the index of the first sample with a timestamp of at least <code>timestamp</code>
+	 * (the size of the series if there is none)
+	 */
+	public int indexOf(int series, long timestamp) {
+		int low = 0;
+		int high = size(series);
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (getTimestamp(series, middle) < timestamp) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * passes all samples with <code>from &lt;= timestamp &lt; to</code> to the visitor (oldest first)
+	 * and returns their number
+	 */
+	public int range(int series, long from, long to, Visitor visitor) {
+		int size = size(series);
+		int count = 0;
+		for (int index = indexOf(series, from); index < size; index++) {
+			int position = position(series, index);
+			long timestamp = timestamps[series][position];
+			if (timestamp >= to) {
+				break;
+			}
+			visitor.sample(timestamp, values[series][position]);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * copies the samples with <code>from &lt;= timestamp &lt; to</code> into the passed arrays (oldest
+	 * first, as many as fit) and returns their number
+	 */
+	public int range(int series, long from, long to, long[] timestampsOut, double[] valuesOut) {
+		int size = size(series);
+		int max = Math.min(timestampsOut.length, valuesOut.length);
+		int count = 0;
+		for (int index = indexOf(series, from); index < size && count < max; index++) {
+			int position = position(series, index);
+			long timestamp = timestamps[series][position];
+			if (timestamp >= to) {
+				break;
+			}
+			timestampsOut[count] = timestamp;
+			valuesOut[count] = values[series][position];
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * maps the index of a sample (0 = oldest) to its position in the arrays of the series
+	 */
+	private int position(int series, int index) {
+		int size = size(series);
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index " + index + " of series '" + names[series] + "' with " + size + " samples");
+		}
+		// the oldest sample is at the head once the buffer is full
+		int position = heads[series] - size + index;
+		return (position < 0) ? position + capacity : position;
+	}
+
+	private void checkSeries(int series) {
+		if (series < 0 || series >= seriesCount) {
+			throw new IllegalArgumentException("unknown series " + series);
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+package com.jabubo.jmx.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.sf.json.JSONObject;
+
+/**
+ * Format of the MBean snapshot files written by the <i>snapshot</i> command.
+ * 
+ * A snapshot is a UTF-8 text file with one JSON object per line (gzipped if the file name ends with
+ * <code>.gz</code>). The first line is a header (<code>{"snapshot":1,"url":...,"timestamp":...}</code>),
+ * each following line describes one MBean. MBeans are sorted by their canonical name and their
+ * attributes by name, so two snapshots can be compared without loading them completely:
+ * <pre>
+ * {"name":"java.lang:type=Memory","class":"sun.management.MemoryImpl",
+ *  "attributes":[{"name":"Verbose","type":"boolean","writable":true,"value":false}, ...],
+ *  "operations":[{"name":"gc","return_type":"void","params":[]}]}
+ * </pre>
+ * Attributes that could not be read have an "error" instead of a "value", MBeans whose
+ * information could not be read have an "error" instead of attributes and operations.
+ * 
+ * @author butzi
+ */
+public class SnapshotFile {
+	
+	public static final int VERSION = 1;
+	
+	public static final String HEADER_VERSION = "snapshot";
+	public static final String HEADER_URL = "url";
+	public static final String HEADER_TIMESTAMP = "timestamp";
+	
+	private static final String CHARSET = "UTF-8";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private SnapshotFile() {
+		super();
+	}
+	
+	public static Writer openWriter(File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		if (isCompressed(file)) {
+			out = new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+		return new BufferedWriter(new OutputStreamWriter(out, CHARSET), BUFFER_SIZE);
+	}
+	
+	public static BufferedReader openReader(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		if (isCompressed(file)) {
+			in = new GZIPInputStream(in, BUFFER_SIZE);
+		}
+		return new BufferedReader(new InputStreamReader(in, CHARSET), BUFFER_SIZE);
+	}
+	
+	/**
+	 * reads a snapshot one MBean at a time
+	 */
+	public static class Reader implements Closeable {
+		
+		private final File file;
+		private final BufferedReader reader;
+		private final JSONObject header;
+		private String previousName = null;
+		
+		public Reader(File file) throws IOException {
+			this.file = file;
+			this.reader = openReader(file);
+			String line = reader.readLine();
+			header = (line == null) ? null : JSONObject.fromObject(line);
+			if (header == null || !header.has(HEADER_VERSION)) {
+				reader.close();
+				throw new IllegalArgumentException("'" + file + "' is not a snapshot file");
+			}
+			if (header.getInt(HEADER_VERSION) > VERSION) {
+				reader.close();
+				throw new IllegalArgumentException("'" + file + "' has been written by a newer version (" + header.getInt(HEADER_VERSION) + ")");
+			}
+		}
+		
+		public String getURL() {
+			return header.getString(HEADER_URL);
+		}
+		
+		public long getTimestamp() {
+			return header.getLong(HEADER_TIMESTAMP);
+		}
+		
+		/**
+		 * returns the next MBean or null at the end of the file
+		 */
+		public JSONObject next() throws IOException {
+			String line;
+			do {
+				line = reader.readLine();
+				if (line == null) {
+					return null;
+				}
+			} while (line.length() == 0);
+			
+			JSONObject mbean = JSONObject.fromObject(line);
+			String name = mbean.getString("name");
+			if (previousName != null && previousName.compareTo(name) >= 0) {
+				throw new IllegalArgumentException("'" + file + "' is not sorted by MBean name ('" + name + "' follows '" + previousName + "')");
+			}
+			previousName = name;
+			return mbean;
+		}
+
+		public void close() throws IOException {
+			reader.close();
+		}
+		
+	}
+	
+	private static boolean isCompressed(File file) {
+		return file.getName().endsWith(".gz");
+	}
+	
+}
@@ -0,0 +1,43 @@
+package com.jabubo.jmx.util;
+
+/**
+ * wildcard matching as used for ObjectName patterns
+ * 
+ * @author butzi
+ */
+public class Wildcard {
+
+	private Wildcard() {
+		super();
+	}
+
+	/**
+	 * returns true if the whole string matches the pattern (* matches any number of characters, ? exactly one)
+	 */
+	public static boolean matches(String pattern, String string) {
+		int p = 0;
+		int s = 0;
+		int starP = -1;
+		int starS = -1;
+		while (s < string.length()) {
+			if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == string.charAt(s))) {
+				p++;
+				s++;
+			} else if (p < pattern.length() && pattern.charAt(p) == '*') {
+				starP = p++;
+				starS = s;
+			} else if (starP >= 0) {
+				// let the last * match one more character
+				p = starP + 1;
+				s = ++starS;
+			} else {
+				return false;
+			}
+		}
+		while (p < pattern.length() && pattern.charAt(p) == '*') {
+			p++;
+		}
+		return p == pattern.length();
+	}
+
+}
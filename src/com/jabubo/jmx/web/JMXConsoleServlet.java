@@ -1,6 +1,7 @@
 package com.jabubo.jmx.web;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.regex.Matcher;
@@ -15,6 +16,7 @@ import org.apache.log4j.Logger;
 import org.hitchhackers.tools.jmx.CommandProcessor;
 import org.hitchhackers.tools.jmx.HelpRequiredException;
 import org.hitchhackers.tools.jmx.commands.CommandBase;
+import org.hitchhackers.tools.jmx.connection.MBeanInfoCache;
 
 public class JMXConsoleServlet extends HttpServlet {
 	
@@ -24,6 +26,13 @@ public class JMXConsoleServlet extends HttpServlet {
 	// TODO setup embedded servlet container
 	// TODO add support for different output formats (json?)
 	
+	@Override
+	public void init() throws ServletException {
+		super.init();
+		// the pooled connections are reused by all requests
+		MBeanInfoCache.getInstance().setEnabled(true);
+	}
+	
 	private void displayUsage(HttpServletRequest req, HttpServletResponse resp, String reason) throws ServletException, IOException {
 		req.setAttribute("version", CommandBase.USAGE_VERSION);
 		req.setAttribute("error_message", reason);
@@ -72,19 +81,34 @@ public class JMXConsoleServlet extends HttpServlet {
 		}
 		
 		// and execute the command
+		PrintStream out = null;
 		try {
 			CommandProcessor processor = new CommandProcessor(commandName);
 			processor.init(
 				args.toArray(new String[args.size()])
 			);
+			// commands that stream their output write it to the response directly
+			out = new PrintStream(resp.getOutputStream(), true);
+			processor.getCommand().setOut(out);
 			String result = processor.execute();
-			resp.getOutputStream().println(result);
+			if (result != null && result.length() > 0) {
+				out.println(result);
+			}
+			out.flush();
 		} catch (Exception e) {
 			String errorString = null;
 			if (!(e instanceof HelpRequiredException)) {
 				LOGGER.error("could not execute command : ", e);
 				errorString = e.getMessage();
 			}
+			if (resp.isCommitted()) {
+				// streamed output has been sent already (or the client went away), so the usage page can't be shown
+				if (out != null && errorString != null) {
+					out.println("ERROR: " + errorString);
+					out.flush();
+				}
+				return;
+			}
 			displayUsage(req, resp, errorString);
 		}
 	}